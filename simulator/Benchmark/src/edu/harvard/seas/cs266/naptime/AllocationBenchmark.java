@@ -0,0 +1,175 @@
+/**
+ * @file AllocationBenchmark.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.07
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import sim.util.Bag;
+import sim.util.Double2D;
+
+/**
+ * Regression check on the garbage produced by the simulation hot path.
+ * Runs a Tournament to steady state, then measures the bytes allocated
+ * per schedule step using HotSpot's per-thread allocation counter. All
+ * that should be left is the Double2D each robot (and any treat it
+ * pushes or carries) moves to, and MASON's bookkeeping for those moves
+ * and the schedule. The budget is what MASON itself allocates to move
+ * every robot and check it for collisions, measured the same way, plus
+ * a small allowance for the Schedule, cell changes and carried treats,
+ * so that anything more per robot fails.
+ * Strategy evaluation on its own is primitive throughout, so it's held
+ * to nothing at all. Exits with status 1 if either is over budget.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class AllocationBenchmark {
+	/**
+	 * Runs one Tournament and reports its steady-state allocation rate.
+	 * 
+	 * @return Bytes allocated per schedule step.
+	 */
+	static double bytesPerStep(List<Grammar.Step> strategy, int warmupSteps, int measuredSteps) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		
+		// Warm up, so the JIT has had a chance to eliminate what it can
+		Tournament tourney = new Tournament(Population.seed, strategy, strategy);
+		tourney.start();
+		for (int s = 0; s < warmupSteps; s++)
+			if (!tourney.schedule.step(tourney))
+				tourney.start();
+		
+		// Measure, not counting restarts
+		long allocated = 0, steps = 0;
+		long before = threads.getThreadAllocatedBytes(thread);
+		while (steps < measuredSteps) {
+			if (tourney.schedule.step(tourney)) {
+				steps++;
+				continue;
+			}
+			allocated += threads.getThreadAllocatedBytes(thread) - before;
+			tourney.start();
+			before = threads.getThreadAllocatedBytes(thread);
+		}
+		allocated += threads.getThreadAllocatedBytes(thread) - before;
+		return ((double) allocated)/steps;
+	}
+	
+	/**
+	 * Bytes per step MASON needs beyond what moving and collision-checking
+	 * robots costs: the two Schedule keys (24 bytes each), cell changes
+	 * (a Bag and a map entry, for the ~1 in 5 moves that cross a 1-unit
+	 * cell at the strategies' speeds) and moving carried treats.
+	 */
+	static final double allowance = 320;
+	
+	/**
+	 * Measures the least a step can allocate: every robot moving to a new
+	 * Double2D (here, of where it already is, so no cell changes) and
+	 * checking for obstacles, as Robot.step() does, on a Tournament run to
+	 * steady state.
+	 * 
+	 * @return Bytes allocated per step's worth of moves.
+	 */
+	static double floorBytesPerStep(List<Grammar.Step> strategy, int warmupSteps, int measuredSteps) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		
+		Tournament tourney = new Tournament(Population.seed, strategy, strategy);
+		tourney.start();
+		for (int s = 0; s < warmupSteps; s++)
+			if (!tourney.schedule.step(tourney))
+				tourney.start();
+		
+		// Warm up the moves too, then measure them
+		Bag obstacles = new Bag();
+		long before = 0;
+		for (int s = 0; s < warmupSteps + measuredSteps; s++) {
+			if (s == warmupSteps)
+				before = threads.getThreadAllocatedBytes(thread);
+			for (int r = 0; r < tourney.robots.size(); r++) {
+				Robot robot = tourney.robots.get(r);
+				Double2D current = tourney.field.getObjectLocation(robot);
+				tourney.field.setObjectLocation(robot, new Double2D(current.x, current.y));
+				tourney.field.getObjectsWithinDistance(current, Robot.robotSize, false, true, obstacles);
+			}
+		}
+		return ((double) (threads.getThreadAllocatedBytes(thread) - before))/measuredSteps;
+	}
+	
+	/**
+	 * Evaluates a strategy over and over for a single robot, without
+	 * stepping the simulation.
+	 * 
+	 * @return Bytes allocated per evaluation.
+	 */
+	static double bytesPerEval(Grammar.Step strategy, int warmupEvaluations, int measuredEvaluations) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		
+		List<Grammar.Step> strategies = new ArrayList<Grammar.Step>(1);
+		strategies.add(strategy);
+		Tournament tourney = new Tournament(Population.seed, strategies, strategies);
+		tourney.start();
+		Robot robot = tourney.robots.get(0);
+		robot.perceive(tourney);
+		for (int e = 0; e < warmupEvaluations; e++)
+			strategy.eval(robot);
+		
+		long before = threads.getThreadAllocatedBytes(thread);
+		for (int e = 0; e < measuredEvaluations; e++)
+			strategy.eval(robot);
+		return ((double) (threads.getThreadAllocatedBytes(thread) - before))/measuredEvaluations;
+	}
+	
+	/**
+	 * Runs the allocation check.
+	 * 
+	 * @param args Path to the strategy S-expression file (e.g. steps/baseline.sexp),
+	 * optionally followed by the budget in bytes per step (by default,
+	 * MASON's own cost of a step's moves plus the allowance).
+	 */
+	public static void main(String[] args) throws Exception {
+		// Check command-line parameters
+		if (args.length < 1 || args.length > 2) {
+			System.out.println("Usage: allocationbenchmark <strategy> [bytes per step]");
+			System.exit(0);
+		}
+		List<Grammar.Step> strategy = new ArrayList<Grammar.Step>();
+		strategy.add(Grammar.ExpressionFactory.buildStep(new Sexp(new File(args[0]))));
+		double budget;
+		if (args.length > 1)
+			budget = Double.parseDouble(args[1]);
+		else {
+			double floor = floorBytesPerStep(strategy, 20000, 20000);
+			budget = floor + allowance;
+			System.out.printf("moves alone\t%.1f bytes/step, budget %.1f\n", floor, budget);
+		}
+		
+		// Check both the interpreted and compiled strategy paths
+		boolean overBudget = false;
+		for (boolean compiled: new boolean[] {false, true}) {
+			Tournament.compileStrategies = compiled;
+			double rate = bytesPerStep(strategy, 20000, 20000);
+			System.out.printf("%s\t%.1f bytes/step\n", compiled ? "compiled" : "interpreted", rate);
+			overBudget |= rate > budget;
+		}
+		
+		// Check that evaluating the tree itself doesn't box anything
+		Tournament.compileStrategies = false;
+		for (boolean optimized: new boolean[] {false, true}) {
+			Grammar.Step evaluated = optimized ? strategy.get(0).getOptimized() : strategy.get(0);
+			double rate = bytesPerEval(evaluated, 100000, 100000);
+			System.out.printf("%s eval\t%.3f bytes/eval\n", optimized ? "optimized" : "interpreted", rate);
+			overBudget |= rate >= 1.0;
+		}
+		System.exit(overBudget ? 1 : 0);
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ * @file BatchConformance.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.13
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import sim.util.Bag;
+import sim.util.Double2D;
+
+/**
+ * Checks that BatchSimulator plays out the same as the MASON-backed
+ * Tournament: every example strategy (and team) plays the baseline in
+ * both, all of them at once in a single batch, and the robot poses and
+ * scores are compared after every step. Like Individual.run(), each
+ * plays several simulations in a row, reusing its Tournaments, so the
+ * random state BatchSimulator hands back is checked too: the treats must
+ * be laid out the same at the start of every simulation.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class BatchConformance {
+	/**
+	 * Runs the comparison.
+	 * 
+	 * @param args Path to the steps directory, and optionally the number
+	 * of simulations per strategy (default 3).
+	 */
+	public static void main(String[] args) throws Exception {
+		// Check command-line parameters
+		if (args.length < 1 || args.length > 2) {
+			System.out.println("Usage: batchconformance <steps directory> [simulations]");
+			System.exit(0);
+		}
+		int simulations = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		
+		// Load every strategy file and team directory, with one Tournament to run serially and one to start the batch from
+		File stepsDir = new File(args[0]);
+		Individual baseline = new Individual(new File(stepsDir, "baseline.sexp"));
+		File[] stepFiles = stepsDir.listFiles();
+		Arrays.sort(stepFiles);
+		List<String> names = new ArrayList<String>();
+		List<Tournament> tourneys = new ArrayList<Tournament>(), batchTourneys = new ArrayList<Tournament>();
+		for (File stepFile: stepFiles) {
+			if (!stepFile.isDirectory() && !stepFile.getName().endsWith(".sexp"))
+				continue;
+			List<Grammar.Step> strategies = new Individual(stepFile).getStrategies();
+			names.add(stepFile.getName());
+			tourneys.add(new Tournament(Population.seed, strategies, baseline.getStrategies()));
+			batchTourneys.add(new Tournament(Population.seed, strategies, baseline.getStrategies()));
+		}
+		int count = tourneys.size();
+		BatchSimulator batch = new BatchSimulator(count, tourneys.get(0).nTreats);
+		
+		int failures = 0;
+		System.out.println("strategy\tsimulation\tsteps\tscore\tbatch steps\tbatch score\tfirst difference");
+		for (int s = 0; s < simulations; s++) {
+			// Start them all in one batch
+			long[] divergence = new long[count];
+			Arrays.fill(divergence, -1);
+			for (int t = 0; t < count; t++) {
+				tourneys.get(t).start();
+				batchTourneys.get(t).start();
+				batch.start(t, batchTourneys.get(t));
+				if (!sameTreats(tourneys.get(t), batchTourneys.get(t)))
+					divergence[t] = 0;
+			}
+			
+			// Step both in lockstep, noting the first step where anything differs
+			boolean[] running = new boolean[count];
+			Arrays.fill(running, true);
+			int remaining = count;
+			while (remaining > 0) {
+				batch.step();
+				for (int t = 0; t < count; t++) {
+					if (!running[t])
+						continue;
+					Tournament tourney = tourneys.get(t);
+					boolean tourneyRunning = tourney.schedule.step(tourney);
+					if (divergence[t] < 0 && !matches(tourney, batch, t))
+						divergence[t] = tourney.schedule.getSteps();
+					if (!tourneyRunning || !batch.isRunning(t) || tourney.schedule.getSteps() >= Individual.stepBudget) {
+						running[t] = false;
+						batch.stop(t);
+						remaining--;
+					}
+				}
+			}
+			
+			// Report, then finish both as Individual.run() does
+			for (int t = 0; t < count; t++) {
+				Tournament tourney = tourneys.get(t);
+				boolean same = divergence[t] != 0 && tourney.getFitness() == batch.getFitness(t) &&
+							   tourney.schedule.getSteps() == batch.getSteps(t);
+				if (!same)
+					failures++;
+				System.out.printf("%s\t%d\t%d\t%d-%d\t%d\t%d-%d\t%s%s\n", names.get(t), s,
+								  tourney.schedule.getSteps(), tourney.score[0], tourney.score[1],
+								  batch.getSteps(t), batch.getScore(t, 0), batch.getScore(t, 1),
+								  divergence[t] < 0 ? "none" : divergence[t] == 0 ? "treats" : "step " + divergence[t],
+								  same ? "" : "\tFITNESS DIFFERS");
+				tourney.finish();
+				batch.finish(t, batchTourneys.get(t));
+			}
+		}
+		System.exit(failures > 0 ? 1 : 0);
+	}
+	
+	/**
+	 * @return Whether two started Tournaments placed their treats in exactly
+	 * the same places.
+	 */
+	private static boolean sameTreats(Tournament tourney, Tournament other) {
+		Bag objects = tourney.field.getAllObjects(), otherObjects = other.field.getAllObjects();
+		if (objects.numObjs != otherObjects.numObjs)
+			return false;
+		for (int o = 0; o < objects.numObjs; o++) {
+			if (objects.objs[o].getClass() != Treat.class)
+				continue;
+			if (!tourney.field.getObjectLocation(objects.objs[o]).equals(other.field.getObjectLocation(otherObjects.objs[o])))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return Whether every robot's pose and the score are exactly the same.
+	 */
+	private static boolean matches(Tournament tourney, BatchSimulator batch, int t) {
+		if (tourney.score[0] != batch.getScore(t, 0) || tourney.score[1] != batch.getScore(t, 1))
+			return false;
+		for (int r = 0; r < tourney.robots.size(); r++) {
+			Robot robot = tourney.robots.get(r);
+			Double2D location = tourney.field.getObjectLocation(robot);
+			if (location.x != batch.getX(t, r) || location.y != batch.getY(t, r) ||
+				robot.orientation2D() != batch.getOrientation(t, r) || !robot.inState(batch.getState(t, r)))
+				return false;
+		}
+		return true;
+	}
+}
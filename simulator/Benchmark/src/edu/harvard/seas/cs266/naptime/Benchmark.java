@@ -0,0 +1,157 @@
+/**
+ * @file Benchmark.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.06
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * Bare-bones timing harness: warm up, then time batches of a repeated
+ * operation and report the mean time (and, on HotSpot, the bytes
+ * allocated) per operation.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public abstract class Benchmark {
+	/**
+	 * The outcome of a single benchmark.
+	 */
+	public static class Result {
+		public final String name;
+		
+		/**
+		 * Mean and standard deviation across batches of the time per operation.
+		 */
+		public final double meanNanos, deviationNanos;
+		
+		public final int batches, operationsPerBatch;
+		
+		/**
+		 * Mean bytes allocated per operation, or -1 if the JVM can't tell us.
+		 */
+		public final double allocatedBytes;
+		
+		public Result(String name, double meanNanos, double deviationNanos, int batches, int operationsPerBatch, double allocatedBytes) {
+			this.name = name;
+			this.meanNanos = meanNanos;
+			this.deviationNanos = deviationNanos;
+			this.batches = batches;
+			this.operationsPerBatch = operationsPerBatch;
+			this.allocatedBytes = allocatedBytes;
+		}
+		
+		/**
+		 * @return This result as a JSON object.
+		 */
+		public String toJson() {
+			return String.format(Locale.US, "{\"name\": \"%s\", \"meanNanos\": %.1f, \"deviationNanos\": %.1f, \"batches\": %d, \"operationsPerBatch\": %d, \"allocatedBytes\": %.1f}",
+								 escape(name), meanNanos, deviationNanos, batches, operationsPerBatch, allocatedBytes);
+		}
+	}
+	
+	/**
+	 * @return A string with quotes, backslashes and control characters
+	 * escaped, for writing inside a JSON string.
+	 */
+	static String escape(String string) {
+		StringBuilder escaped = new StringBuilder(string.length());
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			if (c == '"' || c == '\\')
+				escaped.append('\\').append(c);
+			else if (c < ' ')
+				escaped.append(String.format("\\u%04x", (int) c));
+			else
+				escaped.append(c);
+		}
+		return escaped.toString();
+	}
+	
+	/**
+	 * Human-readable name of what's being measured.
+	 */
+	protected String name;
+	
+	/**
+	 * How many untimed batches to run first, so the JIT settles.
+	 */
+	protected int warmupBatches = 5;
+	
+	/**
+	 * How many timed batches to run.
+	 */
+	protected int batches = 10;
+	
+	/**
+	 * How many operations in each batch.
+	 */
+	protected int operationsPerBatch = 1000;
+	
+	public Benchmark(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * Creates a benchmark with non-default batching, e.g. for slow operations.
+	 */
+	public Benchmark(String name, int warmupBatches, int batches, int operationsPerBatch) {
+		this.name = name;
+		this.warmupBatches = warmupBatches;
+		this.batches = batches;
+		this.operationsPerBatch = operationsPerBatch;
+	}
+	
+	/**
+	 * Prepares state for the operation. Called once, before warmup.
+	 */
+	protected void setUp() throws Exception { }
+	
+	/**
+	 * The operation being measured.
+	 */
+	protected abstract void operation() throws Exception;
+	
+	/**
+	 * @return Bytes allocated so far by the current thread, or -1 if
+	 * this JVM doesn't count them.
+	 */
+	static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	/**
+	 * Runs the benchmark.
+	 * 
+	 * @return The time and allocation per operation.
+	 */
+	public Result measure() throws Exception {
+		setUp();
+		for (int b = 0; b < warmupBatches; b++)
+			for (int o = 0; o < operationsPerBatch; o++)
+				operation();
+		double[] times = new double[batches];
+		double mean = 0.0;
+		long allocatedBefore = allocatedBytes();
+		for (int b = 0; b < batches; b++) {
+			long start = System.nanoTime();
+			for (int o = 0; o < operationsPerBatch; o++)
+				operation();
+			times[b] = ((double) (System.nanoTime() - start))/operationsPerBatch;
+			mean += times[b]/batches;
+		}
+		double allocated = allocatedBefore < 0 ? -1 : ((double) (allocatedBytes() - allocatedBefore))/(batches*operationsPerBatch);
+		double variance = 0.0;
+		for (double time: times)
+			variance += (time - mean)*(time - mean)/batches;
+		System.out.printf("%s\t%.1f ns/op\t%.0f B/op\n", name, mean, allocated);
+		return new Result(name, mean, Math.sqrt(variance), batches, operationsPerBatch, allocated);
+	}
+}
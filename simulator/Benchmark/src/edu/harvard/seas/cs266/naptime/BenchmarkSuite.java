@@ -0,0 +1,413 @@
+/**
+ * @file BenchmarkSuite.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.08
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import ec.util.MersenneTwisterFast;
+
+/**
+ * Runs every benchmark we care about (simulator steps and setup, sensors,
+ * interpreter, parser, serialization, genetic operators, selection, a whole
+ * generation) and writes the results as JSON, so runs can be compared
+ * across commits.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class BenchmarkSuite {
+	/**
+	 * The results collected so far.
+	 */
+	private List<Benchmark.Result> results = new ArrayList<Benchmark.Result>();
+	
+	/**
+	 * Directory of example strategies (steps/).
+	 */
+	private File stepsDir;
+	
+	public BenchmarkSuite(File stepsDir) {
+		this.stepsDir = stepsDir;
+	}
+	
+	/**
+	 * Runs a benchmark and keeps its result.
+	 */
+	public void run(Benchmark benchmark) throws Exception {
+		results.add(benchmark.measure());
+	}
+	
+	/**
+	 * Loads a single strategy file from the steps directory.
+	 */
+	List<Grammar.Step> load(String fileName) throws Exception {
+		List<Grammar.Step> strategy = new ArrayList<Grammar.Step>();
+		strategy.add(Grammar.ExpressionFactory.buildStep(new Sexp(new File(stepsDir, fileName))));
+		return strategy;
+	}
+	
+	/**
+	 * Creates a started Tournament of baseline against baseline.
+	 */
+	Tournament baselineTournament() throws Exception {
+		List<Grammar.Step> baseline = load("baseline.sexp");
+		Tournament tourney = new Tournament(Population.seed, baseline, baseline);
+		tourney.start();
+		return tourney;
+	}
+	
+	/**
+	 * Runs all of the benchmarks.
+	 */
+	public void runAll() throws Exception {
+		// One schedule step of the whole simulation
+		run(new Benchmark("Tournament.schedule.step/baseline") {
+			Tournament tourney;
+			
+			protected void setUp() throws Exception {
+				tourney = baselineTournament();
+			}
+			
+			protected void operation() {
+				if (!tourney.schedule.step(tourney))
+					tourney.start();
+			}
+		});
+		
+		// Setting up a simulation, to compare with a step of it: from
+		// scratch, restarting in place, and restarting on a seed seen before
+		run(new Benchmark("Tournament.start/new") {
+			List<Grammar.Step> baseline;
+			
+			protected void setUp() throws Exception {
+				baseline = load("baseline.sexp");
+			}
+			
+			protected void operation() {
+				new Tournament(Population.seed, baseline, baseline).start();
+			}
+		});
+		run(new Benchmark("Tournament.start/reused") {
+			Tournament tourney;
+			
+			protected void setUp() throws Exception {
+				tourney = baselineTournament();
+			}
+			
+			protected void operation() {
+				tourney.start();
+			}
+		});
+		run(new Benchmark("Tournament.start/reseeded") {
+			Tournament tourney;
+			
+			protected void setUp() throws Exception {
+				tourney = baselineTournament();
+			}
+			
+			protected void operation() {
+				tourney.reseed(Population.seed);
+				tourney.start();
+			}
+		});
+		
+		// The sensors on their own
+		run(new Benchmark("Robot.perceive/baseline") {
+			Tournament tourney;
+			
+			protected void setUp() throws Exception {
+				tourney = baselineTournament();
+			}
+			
+			protected void operation() {
+				for (Robot robot: tourney.robots)
+					robot.perceive(tourney);
+			}
+		});
+		
+		// Binning offsets into range sensors, by comparisons and as it was by atan2()
+		final double[] offsets = new double[2*1024];
+		MersenneTwisterFast offsetGenerator = new MersenneTwisterFast(Population.seed);
+		for (int o = 0; o < offsets.length; o++)
+			offsets[o] = (offsetGenerator.nextDouble()*2 - 1)*Tournament.fieldLength;
+		run(new Benchmark("RangeModel.sector/1024 offsets", 5, 10, 100) {
+			int total;
+			
+			protected void operation() {
+				for (int o = 0; o < offsets.length; o += 2)
+					total += RangeModel.sector(offsets[o], offsets[o + 1]);
+			}
+		});
+		run(new Benchmark("RangeConformance.referenceSector/1024 offsets", 5, 10, 100) {
+			int total;
+			
+			protected void operation() {
+				for (int o = 0; o < offsets.length; o += 2)
+					total += RangeConformance.referenceSector(offsets[o], offsets[o + 1]);
+			}
+		});
+		
+		// The interpreter and compiled programs, for every example strategy
+		File[] stepFiles = stepsDir.listFiles();
+		Arrays.sort(stepFiles);
+		for (final File stepFile: stepFiles) {
+			if (!stepFile.isFile() || !stepFile.getName().endsWith(".sexp"))
+				continue;
+			run(new Benchmark(String.format("Grammar.Step.eval/%s", stepFile.getName())) {
+				Grammar.Step strategy;
+				Robot robot;
+				
+				protected void setUp() throws Exception {
+					strategy = Grammar.ExpressionFactory.buildStep(new Sexp(stepFile));
+					Tournament tourney = baselineTournament();
+					robot = tourney.robots.get(0);
+					robot.perceive(tourney);
+				}
+				
+				protected void operation() throws Exception {
+					strategy.eval(robot);
+				}
+			});
+			run(new Benchmark(String.format("Grammar.Step.eval/optimized/%s", stepFile.getName())) {
+				Grammar.Step strategy;
+				Robot robot;
+				
+				protected void setUp() throws Exception {
+					strategy = Grammar.ExpressionFactory.buildStep(new Sexp(stepFile)).getOptimized();
+					Tournament tourney = baselineTournament();
+					robot = tourney.robots.get(0);
+					robot.perceive(tourney);
+				}
+				
+				protected void operation() throws Exception {
+					strategy.eval(robot);
+				}
+			});
+			run(new Benchmark(String.format("Grammar.Program.eval/%s", stepFile.getName())) {
+				Grammar.Program program;
+				Robot robot;
+				
+				protected void setUp() throws Exception {
+					program = Grammar.ExpressionFactory.buildStep(new Sexp(stepFile)).getProgram();
+					Tournament tourney = baselineTournament();
+					robot = tourney.robots.get(0);
+					robot.perceive(tourney);
+				}
+				
+				protected void operation() throws Exception {
+					program.eval(robot);
+				}
+			});
+			run(new Benchmark(String.format("Grammar.Program.interpret/%s", stepFile.getName())) {
+				Grammar.Program program;
+				Robot robot;
+				
+				protected void setUp() throws Exception {
+					program = Grammar.ExpressionFactory.buildStep(new Sexp(stepFile)).getProgram();
+					Tournament tourney = baselineTournament();
+					robot = tourney.robots.get(0);
+					robot.perceive(tourney);
+				}
+				
+				protected void operation() throws Exception {
+					program.interpret(robot);
+				}
+			});
+		}
+		
+		// The S-expression parser
+		run(new Benchmark("Sexp.parse/n40s80m02.sexp", 5, 10, 100) {
+			File file;
+			
+			protected void setUp() {
+				file = new File(stepsDir, "n40s80m02.sexp");
+			}
+			
+			protected void operation() throws Exception {
+				new Sexp(file);
+			}
+		});
+		run(new Benchmark("Grammar.ExpressionFactory.build/n40s80m02.sexp", 5, 10, 100) {
+			Sexp sexp;
+			
+			protected void setUp() throws Exception {
+				sexp = new Sexp(new File(stepsDir, "n40s80m02.sexp"));
+			}
+			
+			protected void operation() throws Exception {
+				Grammar.ExpressionFactory.build(sexp);
+			}
+		});
+		
+		// Serialization, for the largest example strategies
+		File[] largest = stepFiles.clone();
+		Arrays.sort(largest, new Comparator<File>() {
+			public int compare(File left, File right) {
+				return right.length() < left.length() ? -1 : (right.length() == left.length() ? 0 : 1);
+			}
+		});
+		int serialized = 0;
+		for (final File stepFile: largest) {
+			if (serialized == 3)
+				break;
+			if (!stepFile.isFile() || !stepFile.getName().endsWith(".sexp"))
+				continue;
+			serialized++;
+			run(new Benchmark(String.format("Sexp.toString/%s", stepFile.getName()), 5, 10, 100) {
+				Sexp sexp;
+				
+				protected void setUp() throws Exception {
+					sexp = new Sexp(stepFile);
+				}
+				
+				protected void operation() {
+					sexp.toString();
+				}
+			});
+			run(new Benchmark(String.format("Grammar.Step.toString/%s", stepFile.getName()), 5, 10, 100) {
+				Grammar.Step strategy;
+				
+				protected void setUp() throws Exception {
+					strategy = Grammar.ExpressionFactory.buildStep(new Sexp(stepFile));
+				}
+				
+				protected void operation() {
+					strategy.toString();
+				}
+			});
+			run(new Benchmark(String.format("Grammar.Step.toCompactString/%s", stepFile.getName()), 5, 10, 100) {
+				Grammar.Step strategy;
+				
+				protected void setUp() throws Exception {
+					strategy = Grammar.ExpressionFactory.buildStep(new Sexp(stepFile));
+				}
+				
+				protected void operation() {
+					strategy.toCompactString();
+				}
+			});
+		}
+		
+		// The genetic operators
+		run(new Benchmark("Grammar.Step.copy/n40s80m02.sexp", 5, 10, 100) {
+			Grammar.Step strategy;
+			
+			protected void setUp() throws Exception {
+				strategy = load("n40s80m02.sexp").get(0);
+			}
+			
+			protected void operation() throws Exception {
+				Grammar.ExpressionFactory.build(strategy);
+			}
+		});
+		run(new Benchmark("Individual.mutate/n40s80m02.sexp", 5, 10, 100) {
+			List<Grammar.Step> strategy;
+			MersenneTwisterFast generator;
+			
+			protected void setUp() throws Exception {
+				strategy = load("n40s80m02.sexp");
+				generator = new MersenneTwisterFast(Population.seed);
+			}
+			
+			protected void operation() {
+				new Individual(strategy).mutate(0.05, generator);
+			}
+		});
+		run(new Benchmark("Individual.crossoverAndMutate/n40s80m02.sexp", 5, 10, 100) {
+			Individual left, right;
+			MersenneTwisterFast generator;
+			
+			protected void setUp() throws Exception {
+				left = new Individual(load("n40s80m02.sexp"));
+				right = new Individual(load("n20s40m05.sexp"));
+				generator = new MersenneTwisterFast(Population.seed);
+			}
+			
+			protected void operation() {
+				left.crossoverAndMutate(right, 0.05, generator);
+			}
+		});
+		
+		// Parent selection, on populations of random fitness
+		for (int size = 100; size <= 1000000; size *= 100) {
+			final List<Individual> individuals = new ArrayList<Individual>(size);
+			MersenneTwisterFast fitnessGenerator = new MersenneTwisterFast(Population.seed);
+			for (int i = 0; i < size; i++) {
+				Individual individual = new Individual(new ArrayList<Grammar.Step>());
+				individual.setFitness(fitnessGenerator.nextDouble());
+				individuals.add(individual);
+			}
+			Selection[] selections = {new RouletteSelection(), new TournamentSelection(2), new RankSelection(), new UniversalSelection()};
+			for (final Selection selection: selections) {
+				run(new Benchmark(String.format("%s.select/%d individuals", selection.getClass().getSimpleName(), size), 2, 5, Math.max(1, 100000/size)) {
+					MersenneTwisterFast generator;
+					
+					protected void setUp() {
+						generator = new MersenneTwisterFast(Population.seed);
+					}
+					
+					protected void operation() {
+						selection.select(individuals, individuals.size(), generator);
+					}
+				});
+			}
+		}
+		
+		// A whole (small) generation
+		run(new Benchmark("Population.evolve/4 individuals", 1, 3, 1) {
+			Population population;
+			
+			protected void setUp() throws Exception {
+				population = new Population(new File(stepsDir, "baseline.sexp"), new File(stepsDir, "baseline.sexp"), 4, 0.05, 1);
+			}
+			
+			protected void operation() {
+				population.evolve();
+			}
+		});
+	}
+	
+	/**
+	 * Writes the collected results as a JSON document.
+	 * 
+	 * @param label Identifies this run, e.g. a commit hash.
+	 */
+	public void write(File output, String label) throws Exception {
+		PrintWriter writer = new PrintWriter(output, "UTF-8");
+		writer.printf(Locale.US, "{\n  \"label\": \"%s\",\n  \"timestamp\": %d,\n  \"java\": \"%s\",\n  \"processors\": %d,\n  \"results\": [\n",
+					  Benchmark.escape(label), System.currentTimeMillis(), Benchmark.escape(System.getProperty("java.version")),
+					  Runtime.getRuntime().availableProcessors());
+		for (int r = 0; r < results.size(); r++)
+			writer.printf("    %s%s\n", results.get(r).toJson(), r < results.size() - 1 ? "," : "");
+		writer.print("  ]\n}\n");
+		writer.close();
+	}
+	
+	/**
+	 * Runs the benchmark suite.
+	 * 
+	 * @param args Path to the steps directory, the JSON output file, and
+	 * optionally a label for this run (e.g. the commit hash).
+	 */
+	public static void main(String[] args) throws Exception {
+		// Check command-line parameters
+		if (args.length < 2 || args.length > 3) {
+			System.out.println("Usage: benchmarksuite <steps directory> <output.json> [label]");
+			System.exit(0);
+		}
+		
+		BenchmarkSuite suite = new BenchmarkSuite(new File(args[0]));
+		suite.runAll();
+		suite.write(new File(args[1]), args.length > 2 ? args[2] : "");
+		System.exit(0);
+	}
+}
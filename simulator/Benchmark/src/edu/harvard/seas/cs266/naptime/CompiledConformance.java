@@ -0,0 +1,99 @@
+/**
+ * @file CompiledConformance.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.16
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.io.File;
+import java.util.Arrays;
+
+import sim.util.Double2D;
+
+/**
+ * Checks that compiled strategies (Grammar.Program) drive robots exactly
+ * like the tree interpreter they're compiled from: every example strategy
+ * (and team) plays the baseline twice from the same start, once
+ * interpreted and once compiled, and the robot poses, states and scores
+ * are compared after every step. Exits with status 1 at the first
+ * difference.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class CompiledConformance {
+	/**
+	 * Runs the comparison.
+	 * 
+	 * @param args Path to the steps directory.
+	 */
+	public static void main(String[] args) throws Exception {
+		// Check command-line parameters
+		if (args.length != 1) {
+			System.out.println("Usage: compiledconformance <steps directory>");
+			System.exit(0);
+		}
+		
+		// Load every strategy file and team directory
+		File stepsDir = new File(args[0]);
+		Individual baseline = new Individual(new File(stepsDir, "baseline.sexp"));
+		File[] stepFiles = stepsDir.listFiles();
+		Arrays.sort(stepFiles);
+		System.out.println("strategy\tsteps\tscore");
+		for (File stepFile: stepFiles) {
+			if (!stepFile.isDirectory() && !stepFile.getName().endsWith(".sexp"))
+				continue;
+			Individual individual = new Individual(stepFile);
+			
+			// Robots pick interpreted or compiled when they're built, i.e. on the first start()
+			Tournament.compileStrategies = false;
+			Tournament interpreted = new Tournament(Population.seed, individual.getStrategies(), baseline.getStrategies());
+			interpreted.start();
+			Tournament.compileStrategies = true;
+			Tournament compiled = new Tournament(Population.seed, individual.getStrategies(), baseline.getStrategies());
+			compiled.start();
+			Tournament.compileStrategies = false;
+			
+			// Step both in lockstep until either ends
+			boolean interpretedRunning = true, compiledRunning = true;
+			while (interpretedRunning && compiledRunning && interpreted.schedule.getSteps() < Individual.stepBudget) {
+				interpretedRunning = interpreted.schedule.step(interpreted);
+				compiledRunning = compiled.schedule.step(compiled);
+				String difference = compare(interpreted, compiled);
+				if (difference == null && interpretedRunning != compiledRunning)
+					difference = interpretedRunning ? "compiled ended first" : "interpreted ended first";
+				if (difference != null) {
+					System.out.printf("%s\tDIFFERS at step %d: %s\n", stepFile.getName(), interpreted.schedule.getSteps(), difference);
+					System.exit(1);
+				}
+			}
+			System.out.printf("%s\t%d\t%d-%d\n", stepFile.getName(), interpreted.schedule.getSteps(),
+							  interpreted.score[0], interpreted.score[1]);
+		}
+		System.exit(0);
+	}
+	
+	/**
+	 * @return What differs between the two Tournaments' scores and robots,
+	 * or null if they're exactly the same.
+	 */
+	private static String compare(Tournament interpreted, Tournament compiled) {
+		if (interpreted.score[0] != compiled.score[0] || interpreted.score[1] != compiled.score[1])
+			return String.format("score %d-%d, compiled %d-%d", interpreted.score[0], interpreted.score[1],
+								 compiled.score[0], compiled.score[1]);
+		for (int r = 0; r < interpreted.robots.size(); r++) {
+			Robot robot = interpreted.robots.get(r), other = compiled.robots.get(r);
+			Double2D location = interpreted.field.getObjectLocation(robot);
+			Double2D otherLocation = compiled.field.getObjectLocation(other);
+			if (location.x != otherLocation.x || location.y != otherLocation.y ||
+				robot.orientation2D() != other.orientation2D())
+				return String.format("robot %d at (%f, %f, %f), compiled (%f, %f, %f)", r,
+									 location.x, location.y, robot.orientation2D(),
+									 otherLocation.x, otherLocation.y, other.orientation2D());
+			for (Robot.State state: Robot.State.values())
+				if (robot.inState(state) != other.inState(state))
+					return String.format("robot %d state differs", r);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ * @file OptimizerReport.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.15
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.io.File;
+import java.util.Arrays;
+
+import ec.util.MersenneTwisterFast;
+
+/**
+ * Reports what Grammar.Step.getOptimized() does for each example
+ * strategy: how many nodes it removes, and how much faster the
+ * interpreter (and compiled program) runs the result. With "-check", it
+ * instead makes sure the optimized strategies behave exactly like the
+ * originals.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class OptimizerReport {
+	/**
+	 * An Agent with random senses and state, which records everything a
+	 * strategy does to it. Two built from the same seed are identical,
+	 * down to whether each pick up or drop succeeds.
+	 */
+	static class RandomAgent implements Agent {
+		private final MersenneTwisterFast generator;
+		
+		private final double[] senses = new double[Agent.SENSES];
+		
+		private Robot.State state;
+		
+		/**
+		 * Everything done to this agent, in order.
+		 */
+		final StringBuilder actions = new StringBuilder();
+		
+		public RandomAgent(long seed) {
+			generator = new MersenneTwisterFast(seed);
+			for (int r = 0; r < RangeModel.sensors; r++)
+				senses[Agent.RANGES + r] = generator.nextInt(4) == 0 ? 0.0 : generator.nextDouble()*Tournament.fieldLength;
+			senses[Agent.MIDPOINT] = generator.nextInt(30);
+			senses[Agent.WIDTH] = generator.nextInt(31);
+			senses[Agent.TRAVEL] = generator.nextDouble()*Tournament.fieldLength;
+			senses[Agent.ROTATIONS] = generator.nextInt(4);
+			Robot.State[] states = Robot.State.values();
+			state = states[generator.nextInt(states.length)];
+		}
+		
+		public double[] getSenses() {
+			return senses;
+		}
+		
+		public double getRange(int sensor) {
+			return senses[Agent.RANGES + sensor];
+		}
+		
+		public int findMidpointOfObjectiveInView() {
+			return (int) senses[Agent.MIDPOINT];
+		}
+		
+		public int findWidthOfObjectiveInView() {
+			return (int) senses[Agent.WIDTH];
+		}
+		
+		public double getDistanceTraveled() {
+			return senses[Agent.TRAVEL];
+		}
+		
+		public double getRotations() {
+			return senses[Agent.ROTATIONS];
+		}
+		
+		public void setSpeed(double left, double right) {
+			actions.append(String.format("setSpeed %s %s\n", left, right));
+		}
+		
+		public boolean inState(Robot.State state) {
+			return this.state == state;
+		}
+		
+		public void setState(Robot.State state) {
+			actions.append(String.format("setState %s\n", state));
+			this.state = state;
+			senses[Agent.TRAVEL] = 0.0;
+			senses[Agent.ROTATIONS] = 0.0;
+		}
+		
+		public boolean pickUp() {
+			boolean success = generator.nextBoolean();
+			actions.append(String.format("pickUp %b\n", success));
+			return success;
+		}
+		
+		public boolean drop() {
+			boolean success = generator.nextBoolean();
+			actions.append(String.format("drop %b\n", success));
+			return success;
+		}
+	}
+	
+	/**
+	 * Evaluates a strategy and its optimized copy on the same random
+	 * inputs. Robots ignore what a whole strategy returns, so the
+	 * optimizer is free to change it; only what they do must match.
+	 * 
+	 * @return A description of the first input they behave differently
+	 * on, or null if they always behave the same.
+	 */
+	static String compare(Grammar.Step strategy, Grammar.Step optimized, long seed, int inputs) {
+		for (int i = 0; i < inputs; i++) {
+			RandomAgent original = new RandomAgent(seed + i), other = new RandomAgent(seed + i);
+			strategy.eval(original);
+			optimized.eval(other);
+			if (!original.actions.toString().equals(other.actions.toString()))
+				return String.format("input %d:\n%soptimized:\n%s", i, original.actions, other.actions);
+		}
+		return null;
+	}
+	
+	/**
+	 * Times one evaluation of a strategy by a robot that has just sensed
+	 * the start of a baseline Tournament.
+	 * 
+	 * @param compiled Whether to run the compiled program instead of the tree.
+	 */
+	static Benchmark.Result time(final BenchmarkSuite suite, final Grammar.Step strategy, final boolean compiled, String name) throws Exception {
+		return new Benchmark(name) {
+			Grammar.Program program;
+			Robot robot;
+			
+			protected void setUp() throws Exception {
+				program = strategy.getProgram();
+				Tournament tourney = suite.baselineTournament();
+				robot = tourney.robots.get(0);
+				robot.perceive(tourney);
+			}
+			
+			protected void operation() throws Exception {
+				if (compiled && program != null)
+					program.eval(robot);
+				else
+					strategy.eval(robot);
+			}
+		}.measure();
+	}
+	
+	/**
+	 * Checks every example strategy, and a chain of mutants of each,
+	 * against its optimized copy.
+	 * 
+	 * @return Whether they all behaved the same.
+	 */
+	static boolean check(File[] stepFiles, int inputs, int mutants) throws Exception {
+		MersenneTwisterFast generator = new MersenneTwisterFast(Population.seed);
+		int checked = 0;
+		for (File stepFile: stepFiles) {
+			if (!stepFile.isFile() || !stepFile.getName().endsWith(".sexp"))
+				continue;
+			Grammar.Step strategy = Grammar.ExpressionFactory.buildStep(new Sexp(stepFile));
+			for (int m = 0; m <= mutants; m++) {
+				String difference = compare(strategy, strategy.getOptimized(), generator.nextLong(), inputs);
+				if (difference != null) {
+					System.out.printf("%s\tDIFFERS in mutant %d on %s\n%s\noptimized:\n%s", stepFile.getName(), m,
+									  difference, strategy, strategy.getOptimized());
+					return false;
+				}
+				checked++;
+				strategy = strategy.mutate(0.05, generator);
+			}
+		}
+		System.out.printf("%d strategies behaved the same optimized on %d inputs each\n", checked, inputs);
+		return true;
+	}
+	
+	/**
+	 * Runs the report.
+	 * 
+	 * @param args Path to the steps directory, optionally followed by
+	 * "-check" and the number of random inputs to try each strategy on
+	 * (default 1000), to check instead of timing. Exits with status 1 if
+	 * the check finds any difference.
+	 */
+	public static void main(String[] args) throws Exception {
+		// Check command-line parameters
+		if (args.length < 1 || args.length > 3 || (args.length > 1 && !args[1].equals("-check"))) {
+			System.out.println("Usage: optimizerreport <steps directory> [-check [inputs]]");
+			System.exit(0);
+		}
+		File stepsDir = new File(args[0]);
+		File[] stepFiles = stepsDir.listFiles();
+		Arrays.sort(stepFiles);
+		if (args.length > 1)
+			System.exit(check(stepFiles, args.length > 2 ? Integer.parseInt(args[2]) : 1000, 100) ? 0 : 1);
+		BenchmarkSuite suite = new BenchmarkSuite(stepsDir);
+		
+		StringBuilder report = new StringBuilder("strategy\tnodes\toptimized\treduction\teval speedup\tprogram speedup\n");
+		int totalNodes = 0, totalOptimized = 0;
+		for (File stepFile: stepFiles) {
+			if (!stepFile.isFile() || !stepFile.getName().endsWith(".sexp"))
+				continue;
+			Grammar.Step strategy = Grammar.ExpressionFactory.buildStep(new Sexp(stepFile));
+			Grammar.Step optimized = strategy.getOptimized();
+			int nodes = strategy.countNodes(), optimizedNodes = optimized.countNodes();
+			totalNodes += nodes;
+			totalOptimized += optimizedNodes;
+			
+			String name = stepFile.getName();
+			double eval = time(suite, strategy, false, "eval/" + name).meanNanos;
+			double optimizedEval = time(suite, optimized, false, "eval/optimized/" + name).meanNanos;
+			double program = time(suite, strategy, true, "program/" + name).meanNanos;
+			double optimizedProgram = time(suite, optimized, true, "program/optimized/" + name).meanNanos;
+			report.append(String.format("%s\t%d\t%d\t%.1f%%\t%.2fx\t%.2fx\n", name, nodes, optimizedNodes,
+										100.0*(nodes - optimizedNodes)/nodes, eval/optimizedEval, program/optimizedProgram));
+		}
+		report.append(String.format("total\t%d\t%d\t%.1f%%\n", totalNodes, totalOptimized,
+									100.0*(totalNodes - totalOptimized)/totalNodes));
+		System.out.print(report);
+		System.exit(0);
+	}
+}
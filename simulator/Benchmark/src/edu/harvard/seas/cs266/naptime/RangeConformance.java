@@ -0,0 +1,138 @@
+/**
+ * @file RangeConformance.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.16
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import ec.util.MersenneTwisterFast;
+
+/**
+ * Checks RangeModel against the sensor model it replaced, which used
+ * atan2() to bin obstacles and cos() per sensor to reach the walls. Random
+ * offsets are binned both ways, ignoring those within rounding error of a
+ * sector boundary. Wall distances are compared at the starting
+ * orientations, at every multiple of pi/16 and at random orientations,
+ * from random positions, to within a relative tolerance. The camera's
+ * in-front test is checked the same way. Exits with status 1 on any
+ * difference.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class RangeConformance {
+	/**
+	 * How close to a sector boundary (in radians) an offset can be and
+	 * still have to agree.
+	 */
+	static final double boundaryTolerance = 1e-12;
+	
+	/**
+	 * The largest relative difference allowed in a wall distance.
+	 */
+	static final double distanceTolerance = 1e-12;
+	
+	/**
+	 * The old binning, as Robot.updateRanges() did it.
+	 */
+	static int referenceSector(double x, double y) {
+		double obstacleAngle = Math.atan2(y, x);
+		return (((int) Math.round(obstacleAngle*8/Math.PI)) + 16) % 16;
+	}
+	
+	/**
+	 * The old wall distance for one sensor, as Robot.updateRanges() did it.
+	 */
+	static double referenceWall(double orientation, int r, double x, double y, double width, double height) {
+		double sensorAngle = (orientation + r*Math.PI/8) % (2*Math.PI);
+		if (sensorAngle > Math.PI)
+			sensorAngle -= 2*Math.PI;
+		if (sensorAngle >= -Math.PI/4 && sensorAngle < Math.PI/4)
+			return (width - x)/Math.cos(sensorAngle);
+		else if (sensorAngle >= Math.PI/4 && sensorAngle < 3*Math.PI/4)
+			return (height - y)/Math.cos(sensorAngle - Math.PI/2);
+		else if (sensorAngle >= 3*Math.PI/4)
+			return x/Math.cos(sensorAngle - Math.PI);
+		else if (sensorAngle < -3*Math.PI/4)
+			return x/Math.cos(sensorAngle + Math.PI);
+		else
+			return y/Math.cos(sensorAngle + Math.PI/2);
+	}
+	
+	/**
+	 * @return How far an offset's angle is from the nearest sector boundary.
+	 */
+	static double distanceToBoundary(double x, double y) {
+		double sectors = Math.atan2(y, x)*8/Math.PI - 0.5;
+		return Math.abs(sectors - Math.rint(sectors))*Math.PI/8;
+	}
+	
+	/**
+	 * Runs the comparison.
+	 * 
+	 * @param args Optionally, the number of random trials (default 1000000).
+	 */
+	public static void main(String[] args) {
+		int trials = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		MersenneTwisterFast random = new MersenneTwisterFast(Population.seed);
+		double width = Tournament.fieldLength, height = Tournament.fieldWidth;
+		
+		// Binning, at every scale from touching robots to across the field
+		int sectorFailures = 0, nearBoundary = 0;
+		for (int t = 0; t < trials; t++) {
+			double scale = Math.pow(10, random.nextDouble()*4 - 1);
+			double x = (random.nextDouble()*2 - 1)*scale, y = (random.nextDouble()*2 - 1)*scale;
+			if (t % 16 == 0)
+				// Exactly on an axis, as robots that haven't turned see each other
+				if (random.nextBoolean())
+					x = 0.0;
+				else
+					y = 0.0;
+			if (RangeModel.sector(x, y) == referenceSector(x, y))
+				continue;
+			if (distanceToBoundary(x, y) < boundaryTolerance)
+				nearBoundary++;
+			else if (sectorFailures++ < 10)
+				System.out.printf("sector differs at (%g, %g): %d, was %d\n", x, y, RangeModel.sector(x, y), referenceSector(x, y));
+		}
+		
+		// Walls, at the orientations robots start at, every multiple of pi/16, then anywhere
+		int orientations = 2 + 33 + trials/RangeModel.sensors;
+		int wallFailures = 0;
+		int[] walls = new int[RangeModel.sensors];
+		double[] cosines = new double[RangeModel.sensors];
+		for (int o = 0; o < orientations; o++) {
+			double orientation;
+			if (o < 2)
+				orientation = o == 0 ? 0.0 : Math.PI;
+			else if (o < 35)
+				orientation = -Math.PI + (o - 2)*Math.PI/16;
+			else
+				orientation = (random.nextDouble()*2 - 1)*Math.PI;
+			RangeModel.aim(orientation, walls, cosines, 0);
+			double x = width*random.nextDouble(), y = height*random.nextDouble();
+			for (int r = 0; r < RangeModel.sensors; r++) {
+				double expected = referenceWall(orientation, r, x, y, width, height);
+				double actual = RangeModel.toWall(walls[r], cosines[r], x, y, width, height);
+				if (Math.abs(actual - expected) > distanceTolerance*Math.abs(expected) && wallFailures++ < 10)
+					System.out.printf("wall distance differs at orientation %g, sensor %d, (%g, %g): %g, was %g\n",
+									  orientation, r, x, y, actual, expected);
+			}
+		}
+		
+		// The camera's in-front test
+		int cameraFailures = 0;
+		for (int t = 0; t < trials; t++) {
+			double x = (random.nextDouble()*2 - 1)*width, y = (random.nextDouble()*2 - 1)*height;
+			double objectiveAngle = Math.atan2(y, x);
+			boolean expected = !(objectiveAngle < -Math.PI/2 || objectiveAngle > Math.PI/2);
+			if ((x >= 0) != expected && Math.abs(Math.abs(objectiveAngle) - Math.PI/2) > boundaryTolerance)
+				cameraFailures++;
+		}
+		
+		System.out.printf("sectors: %d trials, %d differ, %d more within %g of a boundary\n", trials, sectorFailures, nearBoundary, boundaryTolerance);
+		System.out.printf("walls: %d orientations, %d distances differ by more than %g\n", orientations, wallFailures, distanceTolerance);
+		System.out.printf("camera: %d trials, %d differ\n", trials, cameraFailures);
+		System.exit(sectorFailures + wallFailures + cameraFailures > 0 ? 1 : 0);
+	}
+}
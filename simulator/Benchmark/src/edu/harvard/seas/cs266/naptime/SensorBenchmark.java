@@ -0,0 +1,68 @@
+/**
+ * @file SensorBenchmark.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.06
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import sim.util.Double2D;
+
+/**
+ * Measures how the cost of a robot's perception (range sensors and
+ * camera, updated together) scales with the number of treats in the field.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class SensorBenchmark {
+	/**
+	 * Sets up a started Tournament with the specified number of treats,
+	 * scattered uniformly (Tournament.start()'s rejection sampling can't
+	 * fit thousands of treats).
+	 */
+	static Tournament crowdedTournament(File strategyPath, int nTreats) throws Exception {
+		List<Grammar.Step> strategy = new ArrayList<Grammar.Step>();
+		strategy.add(Grammar.ExpressionFactory.buildStep(new Sexp(strategyPath)));
+		Tournament tourney = new Tournament(Population.seed, strategy, strategy);
+		tourney.nTreats = 0;
+		tourney.start();
+		for (int t = 0; t < nTreats; t++)
+			tourney.moveTreat(new Treat(), new Double2D(tourney.field.getWidth()*(tourney.random.nextDouble()*0.8 + 0.1),
+														tourney.field.getHeight()*(tourney.random.nextDouble()*0.8 + 0.1)));
+		tourney.nTreats = nTreats;
+		return tourney;
+	}
+	
+	/**
+	 * Runs the sensor benchmarks.
+	 * 
+	 * @param args Path to the strategy S-expression file (e.g. steps/baseline.sexp).
+	 */
+	public static void main(String[] args) throws Exception {
+		// Check command-line parameters
+		if (args.length != 1) {
+			System.out.println("Usage: sensorbenchmark <strategy>");
+			System.exit(0);
+		}
+		final File strategyPath = new File(args[0]);
+		
+		for (final int nTreats: new int[] {20, 200, 2000}) {
+			new Benchmark(String.format("perceive/%d treats", nTreats)) {
+				Tournament tourney;
+				
+				protected void setUp() throws Exception {
+					tourney = crowdedTournament(strategyPath, nTreats);
+				}
+				
+				protected void operation() {
+					for (Robot robot: tourney.robots)
+						robot.perceive(tourney);
+				}
+			}.measure();
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * @file SerializationConformance.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.16
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import ec.util.MersenneTwisterFast;
+
+/**
+ * Checks the streaming serializers (Sexp.Printer and Expression.write())
+ * against the string-concatenating ones they replaced, reimplemented
+ * here: every example strategy, and a chain of mutants of each, is
+ * serialized both ways, pretty and compact, and the output compared byte
+ * for byte. Exits with status 1 at the first difference.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class SerializationConformance {
+	/**
+	 * The old Sexp.prettyString(), which Sexp.toString() and
+	 * Expression.toString() went through.
+	 */
+	static String referencePretty(Sexp sexp, int depth) {
+		String indent = "";
+		for (int i = 0; i < depth; i++)
+			indent += "  ";
+		String pretty = indent + "(\n";
+		for (Object child: sexp.getChildren()) {
+			if (child.getClass() == Sexp.class) {
+				pretty += referencePretty((Sexp)child, depth + 1);
+			} else {
+				pretty += indent + child.toString() + "\n";
+			}
+		}
+		pretty += indent + ")\n";
+		return pretty;
+	}
+	
+	/**
+	 * The old Sexp.toCompactString(), which Individual.getCanonicalForm()
+	 * went through.
+	 */
+	static void referenceCompact(Sexp sexp, StringBuilder compact) {
+		compact.append('(');
+		for (int c = 0; c < sexp.getChildren().size(); c++) {
+			if (c > 0)
+				compact.append(' ');
+			Object child = sexp.getChildren().get(c);
+			if (child.getClass() == Sexp.class)
+				referenceCompact((Sexp)child, compact);
+			else
+				compact.append(child.toString());
+		}
+		compact.append(')');
+	}
+	
+	/**
+	 * @return The old output for a strategy, pretty or compact, via toSexp().
+	 */
+	static String reference(Grammar.Step strategy, boolean pretty) {
+		Sexp sexp = (Sexp)strategy.toSexp();
+		if (pretty)
+			return referencePretty(sexp, 0);
+		StringBuilder compact = new StringBuilder();
+		referenceCompact(sexp, compact);
+		return compact.toString();
+	}
+	
+	/**
+	 * @return A description of how a strategy's serializations differ
+	 * from the old ones, or null if they're identical.
+	 */
+	static String compare(Grammar.Step strategy) throws Exception {
+		String pretty = reference(strategy, true), compact = reference(strategy, false);
+		if (!strategy.toString().equals(pretty))
+			return "Step.toString()";
+		if (!strategy.toCompactString().equals(compact))
+			return "Step.toCompactString()";
+		StringWriter writer = new StringWriter();
+		strategy.write(writer, true);
+		if (!writer.toString().equals(pretty))
+			return "Step.write(pretty)";
+		Sexp sexp = (Sexp)strategy.toSexp();
+		if (!sexp.toString().equals(pretty))
+			return "Sexp.toString()";
+		if (!sexp.toCompactString().equals(compact))
+			return "Sexp.toCompactString()";
+		return null;
+	}
+	
+	/**
+	 * Runs the comparison.
+	 * 
+	 * @param args Path to the steps directory, and optionally the number
+	 * of mutants of each strategy to check (default 100).
+	 */
+	public static void main(String[] args) throws Exception {
+		// Check command-line parameters
+		if (args.length < 1 || args.length > 2) {
+			System.out.println("Usage: serializationconformance <steps directory> [mutants]");
+			System.exit(0);
+		}
+		int mutants = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		
+		File[] stepFiles = new File(args[0]).listFiles();
+		Arrays.sort(stepFiles);
+		MersenneTwisterFast generator = new MersenneTwisterFast(Population.seed);
+		int checked = 0;
+		for (File stepFile: stepFiles) {
+			if (!stepFile.isFile() || !stepFile.getName().endsWith(".sexp"))
+				continue;
+			
+			// The file as parsed, then as written
+			Sexp parsed = new Sexp(stepFile);
+			if (!parsed.toString().equals(referencePretty(parsed, 0))) {
+				System.out.printf("%s\tDIFFERS: Sexp.toString() of the parsed file\n", stepFile.getName());
+				System.exit(1);
+			}
+			Grammar.Step strategy = Grammar.ExpressionFactory.buildStep(parsed);
+			for (int m = 0; m <= mutants; m++) {
+				String difference = compare(strategy);
+				if (difference != null) {
+					System.out.printf("%s\tDIFFERS in mutant %d: %s\n", stepFile.getName(), m, difference);
+					System.exit(1);
+				}
+				checked++;
+				strategy = strategy.mutate(0.05, generator);
+			}
+		}
+		System.out.printf("%d strategies serialized identically\n", checked);
+		System.exit(0);
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * @file SexpRoundTrip.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.16
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that every example strategy survives a round trip through the
+ * parser: each steps/ file is parsed, written back out, pretty and
+ * compact, and re-parsed, and the trees compared atom by atom. The
+ * strategies built from them must serialize identically too. Exits with
+ * status 1 at the first mismatch.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class SexpRoundTrip {
+	/**
+	 * @return Where two S-expressions first differ, or null if they're
+	 * the same tree.
+	 */
+	static String compare(Sexp expected, Sexp actual, String path) {
+		List<Object> expectedChildren = expected.getChildren(), actualChildren = actual.getChildren();
+		if (expectedChildren.size() != actualChildren.size())
+			return String.format("%s has %d children, was %d", path, actualChildren.size(), expectedChildren.size());
+		for (int c = 0; c < expectedChildren.size(); c++) {
+			Object expectedChild = expectedChildren.get(c), actualChild = actualChildren.get(c);
+			String childPath = String.format("%s/%d", path, c);
+			if (expectedChild.getClass() != actualChild.getClass())
+				return String.format("%s is a %s, was a %s", childPath, actualChild.getClass().getSimpleName(),
+									 expectedChild.getClass().getSimpleName());
+			if (expectedChild.getClass() == Sexp.class) {
+				String difference = compare((Sexp)expectedChild, (Sexp)actualChild, childPath);
+				if (difference != null)
+					return difference;
+			} else if (!expectedChild.equals(actualChild))
+				return String.format("%s is %s, was %s", childPath, actualChild, expectedChild);
+		}
+		return null;
+	}
+	
+	/**
+	 * Runs the round trips.
+	 * 
+	 * @param args Path to the steps directory.
+	 */
+	public static void main(String[] args) throws Exception {
+		// Check command-line parameters
+		if (args.length != 1) {
+			System.out.println("Usage: sexproundtrip <steps directory>");
+			System.exit(0);
+		}
+		
+		File[] stepFiles = new File(args[0]).listFiles();
+		Arrays.sort(stepFiles);
+		int checked = 0;
+		for (File stepFile: stepFiles) {
+			if (!stepFile.isFile() || !stepFile.getName().endsWith(".sexp"))
+				continue;
+			
+			// Parse, write and re-parse the file both ways
+			Sexp parsed = new Sexp(stepFile);
+			String difference = compare(parsed, new Sexp(parsed.toString()), "pretty");
+			if (difference == null)
+				difference = compare(parsed, new Sexp(parsed.toCompactString()), "compact");
+			
+			// Then the strategy built from it
+			if (difference == null) {
+				Grammar.Step strategy = Grammar.ExpressionFactory.buildStep(parsed);
+				Grammar.Step reparsed = Grammar.ExpressionFactory.buildStep(new Sexp(strategy.toString()));
+				if (!reparsed.toString().equals(strategy.toString()))
+					difference = "strategy serializes differently after re-parsing";
+			}
+			
+			if (difference != null) {
+				System.out.printf("%s\tMISMATCH: %s\n", stepFile.getName(), difference);
+				System.exit(1);
+			}
+			checked++;
+		}
+		System.out.printf("%d files round-tripped\n", checked);
+		System.exit(0);
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * @file Agent.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.13
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+/**
+ * What a strategy can sense and do: the sensors, motors, state and
+ * gripper of a single robot. Implemented by Robot in a MASON Tournament,
+ * and by BatchSimulator for robots kept in primitive arrays.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public interface Agent {
+	/**
+	 * Where each sense is in getSenses(): the range sensors from RANGES,
+	 * then the camera's midpoint and width, then the odometer.
+	 */
+	public static final int RANGES = 0, MIDPOINT = RANGES + RangeModel.sensors, WIDTH = MIDPOINT + 1,
+							TRAVEL = WIDTH + 1, ROTATIONS = TRAVEL + 1, SENSES = ROTATIONS + 1;
+	
+	/**
+	 * Everything a strategy can sense, as of the start of the current
+	 * step, in one flat array so strategies read it directly rather than
+	 * through the accessors below. Kept up to date by setState(), which
+	 * resets the odometer. Not to be modified.
+	 */
+	public double[] getSenses();
+	
+	/**
+	 * @param sensor Index into the range sensors. Positive clockwise.
+	 * @return The current distance to an obstacle as seen by the specified sensor.
+	 */
+	public double getRange(int sensor);
+	
+	/**
+	 * @return The pixel at the middle of the object in view, or 0 if none.
+	 */
+	public int findMidpointOfObjectiveInView();
+	
+	/**
+	 * @return The width in pixels of the object in view, or 0 if none.
+	 */
+	public int findWidthOfObjectiveInView();
+	
+	/**
+	 * @return The distance moved since the last state transition.
+	 */
+	public double getDistanceTraveled();
+	
+	/**
+	 * @return The whole rotations completed since the last state transition.
+	 */
+	public double getRotations();
+	
+	/**
+	 * Sets the motor speeds, which are limited to the robot's maximum.
+	 */
+	public void setSpeed(double left, double right);
+	
+	public boolean inState(Robot.State state);
+	
+	/**
+	 * Transitions into a new state, resetting the odometer.
+	 */
+	public void setState(Robot.State state);
+	
+	/**
+	 * Picks up the treat in view, if it's close enough.
+	 * 
+	 * @return True on success.
+	 */
+	public boolean pickUp();
+	
+	/**
+	 * Drops whatever is being carried.
+	 * 
+	 * @return True on success, false if not carrying anything.
+	 */
+	public boolean drop();
+}
@@ -0,0 +1,140 @@
+/**
+ * @file BatchEvaluator.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.13
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.util.List;
+
+/**
+ * Runs the whole generation's simulations in lockstep in a
+ * BatchSimulator, one tournament per individual, on the calling thread.
+ * Each tournament is set up from a Tournament seeded the same way as in
+ * Individual.run() and Individual.sample(), so the results match
+ * SerialEvaluator except where BatchSimulator resolves simultaneous
+ * collisions differently. They're never mixed with serial results in a
+ * FitnessCache, so Population won't cache fitness with this evaluator.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class BatchEvaluator implements Evaluator {
+	@Override
+	public void evaluate(List<Individual> individuals, Individual baseline, int simulations, EarlyExit earlyExit) {
+		int count = individuals.size();
+		if (count == 0)
+			return;
+		Tournament[] tourneys = new Tournament[count];
+		for (int i = 0; i < count; i++)
+			tourneys[i] = new Tournament(Population.seed, individuals.get(i).getStrategies(), baseline.getStrategies());
+		BatchSimulator batch = new BatchSimulator(count, tourneys[0].nTreats);
+		
+		// Like Individual.run(), reuse each Tournament so its random state carries over between simulations
+		boolean[] active = new boolean[count];
+		boolean[] hopeless = new boolean[count];
+		double[] totals = new double[count];
+		for (int s = 0; s < simulations; s++) {
+			for (int i = 0; i < count; i++) {
+				tourneys[i].start();
+				batch.start(i, tourneys[i]);
+				active[i] = true;
+			}
+			double[] results = run(batch, active, earlyExit, hopeless);
+			for (int i = 0; i < count; i++) {
+				totals[i] += results[i];
+				batch.finish(i, tourneys[i]);
+			}
+		}
+		for (int i = 0; i < count; i++)
+			individuals.get(i).setRunResult(totals[i]/simulations, hopeless[i]);
+	}
+	
+	@Override
+	public void sample(List<Individual> individuals, Individual baseline, long[] seeds, int target, EarlyExit earlyExit) {
+		int count = individuals.size();
+		if (count == 0)
+			return;
+		Tournament[] tourneys = new Tournament[count];
+		for (int i = 0; i < count; i++)
+			tourneys[i] = new Tournament(seeds[0], individuals.get(i).getStrategies(), baseline.getStrategies());
+		BatchSimulator batch = new BatchSimulator(count, tourneys[0].nTreats);
+		
+		// Each round takes the next sample of every individual that still needs one
+		int limit = Math.min(target, seeds.length);
+		while (true) {
+			boolean[] active = new boolean[count];
+			boolean any = false;
+			for (int i = 0; i < count; i++) {
+				int samples = individuals.get(i).getSampleCount();
+				if (samples >= limit)
+					continue;
+				tourneys[i].reseed(seeds[samples]);
+				tourneys[i].start();
+				batch.start(i, tourneys[i]);
+				active[i] = any = true;
+			}
+			if (!any)
+				break;
+			boolean[] hopeless = new boolean[count];
+			double[] results = run(batch, active, earlyExit, hopeless);
+			for (int i = 0; i < count; i++)
+				if (active[i])
+					individuals.get(i).addSample(results[i], hopeless[i]);
+		}
+	}
+	
+	/**
+	 * Runs every started tournament to the end (or until it's stopped
+	 * early), as Individual.simulate() does for one.
+	 * 
+	 * @param active Which tournaments were started.
+	 * @param hopeless Set for the tournaments stopped for being hopeless.
+	 * @return The fitness of each tournament.
+	 */
+	private double[] run(BatchSimulator batch, boolean[] active, EarlyExit earlyExit, boolean[] hopeless) {
+		double[] results = new double[active.length];
+		boolean[] finished = new boolean[active.length];
+		int remaining = 0;
+		for (boolean started: active)
+			if (started)
+				remaining++;
+		while (remaining > 0) {
+			batch.step();
+			for (int t = 0; t < active.length; t++) {
+				if (!active[t] || finished[t])
+					continue;
+				EarlyExit.Reason reason = null;
+				if (!batch.isRunning(t))
+					// Stop if the end condition has been reached
+					reason = EarlyExit.Reason.COMPLETED;
+				else if (batch.getSteps(t) >= Individual.stepBudget)
+					reason = EarlyExit.Reason.BUDGET;
+				else if (earlyExit != null)
+					reason = earlyExit.check(batch.getSteps(t), batch.getLastMoved(t, 0), batch.getScore(t, 0), batch.getScore(t, 1),
+											 batch.getTreatsLeft(t), batch.getFitnessUpperBound(t));
+				if (reason == null)
+					continue;
+				
+				batch.stop(t);
+				finished[t] = true;
+				remaining--;
+				if (reason.isEarly())
+					results[t] = batch.getFitness(t, Individual.stepBudget);
+				else
+					results[t] = batch.getFitness(t);
+				if (earlyExit != null)
+					earlyExit.count(reason);
+				if (Individual.telemetry != null)
+					Individual.telemetry.recordSimulation(batch.getSteps(t), reason);
+				hopeless[t] |= reason == EarlyExit.Reason.HOPELESS;
+			}
+		}
+		return results;
+	}
+	
+	@Override
+	public void shutdown() {
+		// Nothing to clean up
+	}
+}
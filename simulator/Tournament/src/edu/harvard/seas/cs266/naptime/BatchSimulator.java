@@ -0,0 +1,885 @@
+/**
+ * @file BatchSimulator.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.13
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import ec.util.MersenneTwisterFast;
+import sim.util.Bag;
+import sim.util.Double2D;
+
+/**
+ * Runs many Tournaments at once without MASON: the robots and treats of
+ * every tournament live in primitive arrays (struct of arrays), and all
+ * running tournaments advance in lockstep, one robot slot at a time, so
+ * the inner loops sweep the same field of every tournament in turn.
+ * 
+ * The physics and sensor models are ports of Robot, Team and Goal, with
+ * the same arithmetic in the same order, so given the same start a
+ * tournament here plays out exactly like the Tournament. Where a robot
+ * touches several things in the same step, they're resolved in the
+ * order MASON reports them, except that the order of things sharing a
+ * 1-unit cell depends on MASON's history of the cell, so this assumes
+ * robots first, then treats, each by index. Tournaments are set up from
+ * a started Tournament, so treat placement is MASON's too, and each keeps
+ * a copy of its Tournament's random number generator to shuffle the order
+ * the two teams step in, as MASON's Schedule does. finish() hands the
+ * advanced copy back, so the Tournament's next start() draws from the same
+ * state as it would have after running serially.
+ * 
+ * Robot arrays are indexed by robot*capacity + tournament, where robots
+ * 0-2 are our team and 3-5 the opposing team, as in Tournament.robots.
+ * Treat arrays are indexed by tournament*treatsPerTournament + treat.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class BatchSimulator {
+	/**
+	 * Robots per team, and in each tournament.
+	 */
+	public static final int teamSize = 3, robotsPerTournament = 2*teamSize;
+	
+	private static final int sensors = RangeModel.sensors, pixels = 30;
+	
+	/**
+	 * Field dimensions, as in Tournament.field.
+	 */
+	private static final double width = Tournament.fieldLength, height = Tournament.fieldWidth;
+	
+	/**
+	 * Camera pixel contents besides treat indices.
+	 */
+	private static final int NOTHING = -1, GOAL = -2;
+	
+	/**
+	 * Robot states by ordinal.
+	 */
+	private static final Robot.State[] states = Robot.State.values();
+	
+	private static final int SEARCH = Robot.State.SEARCH.ordinal(), CARRY = Robot.State.CARRY.ordinal();
+	
+	/**
+	 * Camera geometry, as in Robot.
+	 */
+	private static final double robotSize = Robot.robotSize, imageWidth = Math.tan(Math.PI/6)*robotSize;
+	
+	/**
+	 * How many tournaments fit, and how many treats each starts with.
+	 */
+	private final int capacity, treatsPerTournament;
+	
+	/**
+	 * Per tournament: whether it's still running, whether it ended during
+	 * the current step, its step count and the penalty on our fitness.
+	 */
+	private final boolean[] running, killed;
+	
+	private final long[] steps;
+	
+	private final double[] penalty;
+	
+	/**
+	 * Per tournament: the random state the Schedule would shuffle with, and
+	 * whether the opposing team stepped first on the last step (the
+	 * Schedule starts each step from the last step's order).
+	 */
+	private final MersenneTwisterFast[] random;
+	
+	private final boolean[] opposingFirst;
+	
+	/**
+	 * Per tournament and team (indexed tournament*2 + team): the score,
+	 * and the last step on which any of the team's robots moved.
+	 */
+	private final int[] score;
+	
+	private final long[] lastMoved;
+	
+	/**
+	 * Per tournament: the number of treats not yet scored.
+	 */
+	private final int[] treatsLeft;
+	
+	/**
+	 * Per robot: pose, motor speeds, odometer (distance and rotation since
+	 * the last state transition, and total distance), state, the treat
+	 * being carried (or -1), and whether it moved on its last step.
+	 */
+	private final double[] x, y, orientation, leftSpeed, rightSpeed, travel, rotation, totalTravel;
+	
+	private final int[] state, carrying;
+	
+	private final boolean[] moved;
+	
+	/**
+	 * Per robot: its strategy, and the compiled form if any.
+	 */
+	private final Grammar.Step[] strategies;
+	
+	private final Grammar.Program[] programs;
+	
+	/**
+	 * Per robot: the range sensors (robot*sensors + sensor), and the
+	 * camera (robot*pixels + pixel) as the treat index, NOTHING or GOAL
+	 * seen by each pixel, plus its depth buffer.
+	 */
+	private final double[] ranges, depthBuffer;
+	
+	private final int[] camera;
+	
+	/**
+	 * Per robot: the midpoint and width of the object in its camera, as
+	 * of its last perceive().
+	 */
+	private final int[] objectiveMidpoint, objectiveWidth;
+	
+	/**
+	 * Per robot: the orientation its sensor geometry was worked out for
+	 * (NaN for none), the sine and cosine of the rotation into its frame,
+	 * and the wall each range sensor faces with the cosine of its angle
+	 * off that wall's normal (robot*sensors + sensor), as in Robot.
+	 */
+	private final double[] frameOrientation, frameSin, frameCos, sensorCosines;
+	
+	private final int[] sensorWalls;
+	
+	/**
+	 * Per treat: position, and whether it's carried or has been scored.
+	 */
+	private final double[] treatX, treatY;
+	
+	private final boolean[] carried, removed;
+	
+	/**
+	 * Scratch space for findObstacles().
+	 */
+	private final long[] obstacles;
+	
+	/**
+	 * Per robot: what the strategy sees of it.
+	 */
+	private final BatchAgent[] agents;
+	
+	/**
+	 * One robot of one tournament, as seen by its strategy.
+	 */
+	private class BatchAgent implements Agent {
+		/**
+		 * Index into the robot arrays.
+		 */
+		private final int robot;
+		
+		/**
+		 * The tournament the robot is in.
+		 */
+		private final int tournament;
+		
+		/**
+		 * What the strategy senses this step, as Robot.getSenses().
+		 */
+		private final double[] senses = new double[Agent.SENSES];
+		
+		BatchAgent(int robot, int tournament) {
+			this.robot = robot;
+			this.tournament = tournament;
+		}
+		
+		public double[] getSenses() {
+			return senses;
+		}
+		
+		public double getRange(int sensor) {
+			return ranges[robot*sensors + sensor];
+		}
+		
+		public int findMidpointOfObjectiveInView() {
+			return objectiveMidpoint[robot];
+		}
+		
+		public int findWidthOfObjectiveInView() {
+			return objectiveWidth[robot];
+		}
+		
+		public double getDistanceTraveled() {
+			return travel[robot];
+		}
+		
+		public double getRotations() {
+			return rotation[robot]/(2*Math.PI);
+		}
+		
+		public void setSpeed(double left, double right) {
+			final double maxSpeed = 0.6;
+			if (left < -maxSpeed)
+				leftSpeed[robot] = -maxSpeed;
+			else if (left > maxSpeed)
+				leftSpeed[robot] = maxSpeed;
+			else
+				leftSpeed[robot] = left;
+			if (right < -maxSpeed)
+				rightSpeed[robot] = -maxSpeed;
+			else if (right > maxSpeed)
+				rightSpeed[robot] = maxSpeed;
+			else
+				rightSpeed[robot] = right;
+		}
+		
+		public boolean inState(Robot.State state) {
+			return BatchSimulator.this.state[robot] == state.ordinal();
+		}
+		
+		public void setState(Robot.State state) {
+			BatchSimulator.this.state[robot] = state.ordinal();
+			travel[robot] = 0.0;
+			rotation[robot] = 0.0;
+			senses[Agent.TRAVEL] = senses[Agent.ROTATIONS] = 0.0;
+		}
+		
+		public boolean pickUp() {
+			if (carrying[robot] == -1) {
+				for (int pixel = 0; pixel < pixels; pixel++) {
+					int seen = camera[robot*pixels + pixel];
+					if (seen >= 0 && depthBuffer[robot*pixels + pixel] < robotSize*0.75) {
+						carrying[robot] = seen;
+						carried[tournament*treatsPerTournament + seen] = true;
+						setState(Robot.State.CARRY);
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+		
+		public boolean drop() {
+			if (carrying[robot] != -1) {
+				carried[tournament*treatsPerTournament + carrying[robot]] = false;
+				carrying[robot] = -1;
+				setState(Robot.State.BACKUP);
+				return true;
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * @param capacity The most tournaments that can run at once.
+	 * @param treatsPerTournament How many treats each tournament starts
+	 * with (Tournament.nTreats).
+	 */
+	public BatchSimulator(int capacity, int treatsPerTournament) {
+		this.capacity = capacity;
+		this.treatsPerTournament = treatsPerTournament;
+		running = new boolean[capacity];
+		killed = new boolean[capacity];
+		steps = new long[capacity];
+		penalty = new double[capacity];
+		random = new MersenneTwisterFast[capacity];
+		opposingFirst = new boolean[capacity];
+		score = new int[2*capacity];
+		lastMoved = new long[2*capacity];
+		treatsLeft = new int[capacity];
+		int robots = robotsPerTournament*capacity;
+		x = new double[robots];
+		y = new double[robots];
+		orientation = new double[robots];
+		leftSpeed = new double[robots];
+		rightSpeed = new double[robots];
+		travel = new double[robots];
+		rotation = new double[robots];
+		totalTravel = new double[robots];
+		state = new int[robots];
+		carrying = new int[robots];
+		moved = new boolean[robots];
+		strategies = new Grammar.Step[robots];
+		programs = new Grammar.Program[robots];
+		ranges = new double[robots*sensors];
+		depthBuffer = new double[robots*pixels];
+		camera = new int[robots*pixels];
+		objectiveMidpoint = new int[robots];
+		objectiveWidth = new int[robots];
+		frameOrientation = new double[robots];
+		frameSin = new double[robots];
+		frameCos = new double[robots];
+		sensorCosines = new double[robots*sensors];
+		sensorWalls = new int[robots*sensors];
+		treatX = new double[capacity*treatsPerTournament];
+		treatY = new double[capacity*treatsPerTournament];
+		carried = new boolean[capacity*treatsPerTournament];
+		removed = new boolean[capacity*treatsPerTournament];
+		obstacles = new long[robotsPerTournament + treatsPerTournament];
+		agents = new BatchAgent[robots];
+		for (int r = 0; r < robotsPerTournament; r++)
+			for (int t = 0; t < capacity; t++)
+				agents[r*capacity + t] = new BatchAgent(r*capacity + t, t);
+	}
+	
+	/**
+	 * Starts a tournament in the given slot from the initial state of a
+	 * Tournament: robot positions and strategies, and treat positions.
+	 * 
+	 * @param tournament The slot, which need not have finished.
+	 * @param tourney A Tournament that has just been started, with
+	 * treatsPerTournament treats.
+	 */
+	public void start(int tournament, Tournament tourney) {
+		running[tournament] = true;
+		killed[tournament] = false;
+		steps[tournament] = 0;
+		penalty[tournament] = 1.0;
+		random[tournament] = (MersenneTwisterFast) tourney.random.clone();
+		opposingFirst[tournament] = false;
+		for (int team = 0; team < 2; team++) {
+			score[tournament*2 + team] = 0;
+			lastMoved[tournament*2 + team] = 0;
+		}
+		
+		for (int r = 0; r < robotsPerTournament; r++) {
+			Robot robot = tourney.robots.get(r);
+			Double2D location = tourney.field.getObjectLocation(robot);
+			int i = r*capacity + tournament;
+			x[i] = location.x;
+			y[i] = location.y;
+			orientation[i] = robot.orientation2D();
+			frameOrientation[i] = Double.NaN;
+			leftSpeed[i] = rightSpeed[i] = 0.0;
+			travel[i] = rotation[i] = totalTravel[i] = 0.0;
+			state[i] = SEARCH;
+			carrying[i] = -1;
+			moved[i] = false;
+			strategies[i] = robot.getStrategy();
+			programs[i] = robot.getProgram();
+		}
+		
+		int treat = 0;
+		Bag objects = tourney.field.getAllObjects();
+		for (int o = 0; o < objects.numObjs; o++) {
+			if (objects.objs[o].getClass() != Treat.class)
+				continue;
+			if (treat == treatsPerTournament)
+				throw new IllegalArgumentException(String.format("Tournament has more than %d treats", treatsPerTournament));
+			Double2D location = tourney.field.getObjectLocation(objects.objs[o]);
+			int k = tournament*treatsPerTournament + treat++;
+			treatX[k] = location.x;
+			treatY[k] = location.y;
+			carried[k] = ((Treat) objects.objs[o]).carried;
+			removed[k] = false;
+		}
+		if (treat != treatsPerTournament)
+			throw new IllegalArgumentException(String.format("Tournament has %d treats, expected %d", treat, treatsPerTournament));
+		treatsLeft[tournament] = treatsPerTournament;
+	}
+	
+	/**
+	 * Ends a tournament before its natural end, e.g. at the step budget.
+	 */
+	public void stop(int tournament) {
+		running[tournament] = false;
+	}
+	
+	/**
+	 * Gives the Tournament a tournament was started from the random state
+	 * its Schedule would have left, so it can be started again as in
+	 * Individual.run().
+	 * 
+	 * @param tournament The slot, which must have stopped.
+	 * @param tourney The Tournament it was started from.
+	 */
+	public void finish(int tournament, Tournament tourney) {
+		tourney.random = random[tournament];
+	}
+	
+	/**
+	 * Advances every running tournament by one step, like
+	 * Tournament.schedule.step(): one team's robots step, then its goal
+	 * scores, then the same for the other team, in the shuffled order.
+	 * 
+	 * @return Whether any tournament is still running.
+	 */
+	public boolean step() {
+		// Shuffle the two teams like Bag.shuffle()
+		for (int t = 0; t < capacity; t++)
+			if (running[t] && random[t].nextInt(2) == 0)
+				opposingFirst[t] = !opposingFirst[t];
+		
+		for (int turn = 0; turn < 2; turn++) {
+			for (int member = 0; member < teamSize; member++) {
+				for (int t = 0; t < capacity; t++) {
+					if (!running[t])
+						continue;
+					int r = (opposingFirst[t] ? 1 - turn : turn)*teamSize + member;
+					stepRobot(r*capacity + t, r, t);
+				}
+			}
+			for (int t = 0; t < capacity; t++)
+				if (running[t])
+					stepTeam(opposingFirst[t] ? 1 - turn : turn, t);
+		}
+		
+		boolean any = false;
+		for (int t = 0; t < capacity; t++) {
+			if (!running[t])
+				continue;
+			steps[t]++;
+			if (killed[t])
+				running[t] = false;
+			else
+				any = true;
+		}
+		return any;
+	}
+	
+	/**
+	 * One robot's step, as Robot.step().
+	 * 
+	 * @param i Index into the robot arrays.
+	 * @param r The robot's index within its tournament.
+	 * @param t The tournament.
+	 */
+	private void stepRobot(int i, int r, int t) {
+		// Update the sensor state
+		perceive(i, r, t);
+		
+		// Execute this robot's step program, type-checked when it was built
+		if (programs[i] != null)
+			programs[i].eval(agents[i]);
+		else
+			strategies[i].eval(agents[i]);
+		
+		// Run the "motors" at their current speed settings
+		move(i, r, t);
+	}
+	
+	/**
+	 * The end of a team's step, as Team.step() after its robots and Goal.step().
+	 */
+	private void stepTeam(int team, int t) {
+		// Track travel distance
+		double minDistance = Double.MAX_VALUE, maxDistance = 0.0;
+		for (int member = 0; member < teamSize; member++) {
+			int i = (team*teamSize + member)*capacity + t;
+			if (moved[i])
+				lastMoved[t*2 + team] = steps[t];
+			if (totalTravel[i] < minDistance)
+				minDistance = totalTravel[i];
+			if (totalTravel[i] > maxDistance)
+				maxDistance = totalTravel[i];
+		}
+		
+		// Update the non-movement penalty flag if necessary
+		if (team == 0 && minDistance*100 < maxDistance)
+			penalty[t] = 10;
+		
+		// Determine the bounding box of the goal's scoring area, ours at the far end
+		double maxX = team == 1 ? 4.0 : width;
+		double minX = maxX - 4.0;
+		double minY = height*0.5 - Goal.goalSize/2 - 4.0;
+		double maxY = height*0.5 + Goal.goalSize/2 + 4.0;
+		
+		// Score any treats within bounds
+		boolean done = true;
+		for (int k = t*treatsPerTournament; k < (t + 1)*treatsPerTournament; k++) {
+			if (removed[k])
+				continue;
+			done = false;
+			if (!carried[k] && treatX[k] >= minX && treatX[k] <= maxX && treatY[k] >= minY && treatY[k] <= maxY) {
+				removed[k] = true;
+				treatsLeft[t]--;
+				score[t*2 + team]++;
+			}
+		}
+		if (done)
+			// If there's no food left, end the simulation after this step
+			killed[t] = true;
+	}
+	
+	/**
+	 * Redoes the sensor geometry that depends only on a robot's
+	 * orientation, if it has turned, as Robot.updateFrame().
+	 */
+	private void updateFrame(int i) {
+		if (orientation[i] == frameOrientation[i])
+			return;
+		frameSin[i] = Math.sin(-orientation[i]);
+		frameCos[i] = Math.cos(-orientation[i]);
+		RangeModel.aim(orientation[i], sensorWalls, sensorCosines, i*sensors);
+		frameOrientation[i] = orientation[i];
+	}
+	
+	/**
+	 * Updates a robot's range sensors and camera in one pass, as Robot.perceive().
+	 */
+	private void perceive(int i, int r, int t) {
+		double currentX = x[i], currentY = y[i];
+		int base = i*sensors, pixelBase = i*pixels;
+		
+		// Reset the sensors
+		for (int s = 0; s < sensors; s++)
+			ranges[base + s] = Double.MAX_VALUE;
+		for (int pixel = 0; pixel < pixels; pixel++) {
+			depthBuffer[pixelBase + pixel] = Double.MAX_VALUE;
+			camera[pixelBase + pixel] = NOTHING;
+		}
+		
+		// Find the closest robot to each sensor, and draw it into the camera
+		updateFrame(i);
+		double sin = frameSin[i], cos = frameCos[i];
+		for (int o = 0; o < robotsPerTournament; o++) {
+			if (o == r)
+				continue;
+			int j = o*capacity + t;
+			double dx = x[j] - currentX, dy = y[j] - currentY;
+			double rx = cos*dx + -sin*dy, ry = sin*dx + cos*dy;
+			double distance = Math.sqrt(rx*rx + ry*ry);
+			int sensor = RangeModel.sector(rx, ry);
+			double range = distance - robotSize/2;
+			if (range < ranges[base + sensor])
+				ranges[base + sensor] = range;
+			project(pixelBase, rx, ry, distance, robotSize/2, NOTHING);
+		}
+		
+		// Update distance to closest wall for each sensor, if there isn't a closer obstacle
+		for (int s = 0; s < sensors; s++) {
+			if (ranges[base + s] == Double.MAX_VALUE)
+				ranges[base + s] = RangeModel.toWall(sensorWalls[base + s], sensorCosines[base + s], currentX, currentY, width, height);
+			
+			// Sensors are on the circumference of the robot, so reduce distance by the radius
+			ranges[base + s] -= robotSize/2;
+		}
+		
+		// Draw the objectives for the robot's state
+		if (state[i] == SEARCH) {
+			for (int k = 0; k < treatsPerTournament; k++) {
+				int treat = t*treatsPerTournament + k;
+				if (!removed[treat] && !carried[treat]) {
+					double dx = treatX[treat] - currentX, dy = treatY[treat] - currentY;
+					double rx = cos*dx + -sin*dy, ry = sin*dx + cos*dy;
+					project(pixelBase, rx, ry, Math.sqrt(rx*rx + ry*ry), Treat.treatSize/2, k);
+				}
+			}
+		} else if (state[i] == CARRY)
+			projectGoal(pixelBase, currentX, currentY, sin, cos, r < teamSize ? width : 0.0);
+		
+		// "segment" by removing all but the front-most object
+		double minDistance = Double.MAX_VALUE;
+		for (int pixel = 0; pixel < pixels; pixel++)
+			if (depthBuffer[pixelBase + pixel] < minDistance && camera[pixelBase + pixel] != NOTHING)
+				minDistance = depthBuffer[pixelBase + pixel];
+		for (int pixel = 0; pixel < pixels; pixel++)
+			if (depthBuffer[pixelBase + pixel] != minDistance)
+				camera[pixelBase + pixel] = NOTHING;
+		
+		// Find the boundaries of what's left, then its midpoint and width
+		int pixelLeft = -1;
+		int pixelRight = -1;
+		for (int pixel = 0; pixel < pixels; pixel++) {
+			if (pixelLeft == -1 && camera[pixelBase + pixel] != NOTHING)
+				pixelLeft = pixel;
+			if (pixelLeft != -1 && pixelRight == -1 && camera[pixelBase + pixel] == NOTHING)
+				pixelRight = pixel - 1;
+		}
+		if (pixelLeft == -1) {
+			objectiveMidpoint[i] = 0;
+			objectiveWidth[i] = 0;
+		} else if (pixelRight == -1) {
+			objectiveMidpoint[i] = (pixelLeft + 29)/2;
+			objectiveWidth[i] = 30 - pixelLeft;
+		} else {
+			objectiveMidpoint[i] = (pixelLeft + pixelRight)/2;
+			objectiveWidth[i] = pixelRight - pixelLeft;
+		}
+		
+		// Snapshot it all for the strategy, along with the odometer
+		double[] senses = agents[i].senses;
+		System.arraycopy(ranges, base, senses, Agent.RANGES, sensors);
+		senses[Agent.MIDPOINT] = objectiveMidpoint[i];
+		senses[Agent.WIDTH] = objectiveWidth[i];
+		senses[Agent.TRAVEL] = travel[i];
+		senses[Agent.ROTATIONS] = rotation[i]/(2*Math.PI);
+	}
+	
+	/**
+	 * Draws a round object into a camera, as Robot.project().
+	 * 
+	 * @param base Index of the robot's first pixel.
+	 * @param rx The object's position in the robot's frame.
+	 * @param ry The object's position in the robot's frame.
+	 * @param distance The object's distance from the robot.
+	 * @param radius The object's radius.
+	 * @param seen What the camera records for the object.
+	 */
+	private void project(int base, double rx, double ry, double distance, double radius, int seen) {
+		// Make sure the objective is in front
+		if (rx < 0)
+			return;
+		
+		// Round objects' edges are based on radius
+		double imagePlaneLeft = (ry - radius)*(robotSize/2)/rx;
+		double imagePlaneRight = (ry + radius)*(robotSize/2)/rx;
+		draw(base, imagePlaneLeft, imagePlaneRight, distance, seen);
+	}
+	
+	/**
+	 * Draws a goal into a camera, as Robot.projectGoal().
+	 * 
+	 * @param goalX The goal's position; it's centered vertically.
+	 */
+	private void projectGoal(int base, double currentX, double currentY, double sin, double cos, double goalX) {
+		double goalY = height*0.5;
+		double dx = goalX - currentX, dy = goalY - currentY;
+		double rx = cos*dx + -sin*dy, ry = sin*dx + cos*dy;
+		
+		// Make sure the objective is in front
+		if (rx < 0)
+			return;
+		
+		// Goal is tall, so reproject each end
+		double leftPostY, rightPostY;
+		if (goalX == 0.0) {
+			leftPostY = goalY + Goal.goalSize/2 - currentY;
+			rightPostY = goalY - Goal.goalSize/2 - currentY;
+		} else {
+			leftPostY = goalY - Goal.goalSize/2 - currentY;
+			rightPostY = goalY + Goal.goalSize/2 - currentY;
+		}
+		double imagePlaneLeft = (sin*dx + cos*leftPostY)*(robotSize/2)/(cos*dx + -sin*leftPostY);
+		double imagePlaneRight = (sin*dx + cos*rightPostY)*(robotSize/2)/(cos*dx + -sin*rightPostY);
+		draw(base, imagePlaneLeft, imagePlaneRight, Math.sqrt(rx*rx + ry*ry), GOAL);
+	}
+	
+	/**
+	 * Fills in the pixels an object spans where it isn't obscured.
+	 */
+	private void draw(int base, double imagePlaneLeft, double imagePlaneRight, double distance, int seen) {
+		// Convert into pixels
+		int pixelLeft = (int) Math.round(imagePlaneLeft*30/imageWidth) + 14;
+		int pixelRight = (int) Math.round(imagePlaneRight*30/imageWidth) + 14;
+		
+		// Keep in bounds
+		if (pixelLeft < 0)
+			pixelLeft = 0;
+		if (pixelRight > 29)
+			pixelRight = 29;
+		
+		// Update the depth buffer and camera where not obscured
+		for (int pixel = pixelLeft; pixel <= pixelRight; pixel++) {
+			if (distance < depthBuffer[base + pixel]) {
+				depthBuffer[base + pixel] = distance;
+				camera[base + pixel] = seen;
+			}
+		}
+	}
+	
+	/**
+	 * Moves a robot at its current speed, as Robot.move().
+	 */
+	private void move(int i, int r, int t) {
+		final double minTreatDistance = (robotSize + Treat.treatSize)/2;
+		
+		// Update the orientation based on relative wheel velocity
+		double deltaTheta = -(rightSpeed[i] - leftSpeed[i])/robotSize;
+		orientation[i] += deltaTheta;
+		rotation[i] += deltaTheta;
+		
+		// Keep orientation in [-pi,pi] range
+		if (orientation[i] > Math.PI)
+			orientation[i] -= 2*Math.PI;
+		else if (orientation[i] < -Math.PI)
+			orientation[i] += 2*Math.PI;
+		
+		// Update the position based on midpoint speed and new orientation
+		double midpointSpeed = (rightSpeed[i] + leftSpeed[i])/2;
+		travel[i] += midpointSpeed;
+		double currentX = x[i], currentY = y[i];
+		double directionX = Math.cos(orientation[i]), directionY = Math.sin(orientation[i]);
+		double newX = currentX + directionX*midpointSpeed, newY = currentY + directionY*midpointSpeed;
+		
+		// Check for collisions, with the obstacles MASON would report near the old position
+		int count = findObstacles(r, t, currentX, currentY, carrying[i]);
+		for (int c = 0; c < count; c++) {
+			int obstacle = (int) (obstacles[c] & 0xff);
+			if (obstacle < robotsPerTournament) {
+				int j = obstacle*capacity + t;
+				double dx = newX - x[j], dy = newY - y[j];
+				double distance = Math.sqrt(dx*dx + dy*dy);
+				if (distance < robotSize && distance > 0) {
+					// "Bounce" off the obstacle
+					newX = x[j] + dx*robotSize/distance;
+					newY = y[j] + dy*robotSize/distance;
+				}
+			} else {
+				int k = t*treatsPerTournament + obstacle - robotsPerTournament;
+				double dx = newX - treatX[k], dy = newY - treatY[k];
+				double distance = Math.sqrt(dx*dx + dy*dy);
+				if (distance < minTreatDistance && distance > 0) {
+					// "Shove" the treat
+					treatX[k] = newX + -dx*minTreatDistance/distance;
+					treatY[k] = newY + -dy*minTreatDistance/distance;
+				}
+			}
+		}
+		
+		// Check for wall collisions (the bottom wall is at the field's width, as in Robot)
+		double nextX, nextY;
+		if (newX < robotSize/2)
+			nextX = robotSize/2;
+		else if (newX > width - robotSize/2)
+			nextX = width - robotSize/2;
+		else
+			nextX = newX;
+		if (newY < robotSize/2)
+			nextY = robotSize/2;
+		else if (newY > height - robotSize/2)
+			nextY = width - robotSize/2;
+		else
+			nextY = newY;
+		x[i] = nextX;
+		y[i] = nextY;
+		
+		// Update the long-term odometer for the actual distance moved after collisions
+		double movedX = nextX - currentX, movedY = nextY - currentY;
+		totalTravel[i] += Math.sqrt(movedX*movedX + movedY*movedY);
+		moved[i] = movedX != 0.0 || movedY != 0.0 || deltaTheta != 0.0;
+		
+		// If we're carrying something, update its position too
+		if (carrying[i] != -1) {
+			int k = t*treatsPerTournament + carrying[i];
+			treatX[k] = nextX + directionX*minTreatDistance;
+			treatY[k] = nextY + directionY*minTreatDistance;
+		}
+	}
+	
+	/**
+	 * Finds what Robot.move() would get from Continuous2D.getObjectsWithinDistance():
+	 * everything in the 1-unit cells within a robot's size (plus a cell)
+	 * of the old position, in MASON's order, column by column and then row
+	 * by row. Within a cell, robots come before treats, each by index.
+	 * 
+	 * @param treat The treat being carried, which isn't an obstacle, or -1.
+	 * @return How many obstacles were put in obstacles, as their cell and
+	 * robot index (or robotsPerTournament + treat index) in the low byte.
+	 */
+	private int findObstacles(int r, int t, double currentX, double currentY, int treat) {
+		double reach = robotSize + 1.0;
+		int minColumn = (int) Math.floor(currentX - reach), maxColumn = (int) Math.floor(currentX + reach);
+		int minRow = (int) Math.floor(currentY - reach), maxRow = (int) Math.floor(currentY + reach);
+		int count = 0;
+		for (int o = 0; o < robotsPerTournament; o++)
+			if (o != r)
+				count = addObstacle(count, x[o*capacity + t], y[o*capacity + t], o, minColumn, maxColumn, minRow, maxRow);
+		for (int k = 0; k < treatsPerTournament; k++)
+			if (!removed[t*treatsPerTournament + k] && k != treat)
+				count = addObstacle(count, treatX[t*treatsPerTournament + k], treatY[t*treatsPerTournament + k],
+									robotsPerTournament + k, minColumn, maxColumn, minRow, maxRow);
+		
+		// Insertion sort, since there are rarely more than one or two
+		for (int c = 1; c < count; c++) {
+			long key = obstacles[c];
+			int d = c - 1;
+			for (; d >= 0 && obstacles[d] > key; d--)
+				obstacles[d + 1] = obstacles[d];
+			obstacles[d + 1] = key;
+		}
+		return count;
+	}
+	
+	/**
+	 * Adds an obstacle to obstacles if its cell is within bounds, keyed by
+	 * column, row and then index.
+	 */
+	private int addObstacle(int count, double obstacleX, double obstacleY, int obstacle, int minColumn, int maxColumn, int minRow, int maxRow) {
+		int column = (int) Math.floor(obstacleX), row = (int) Math.floor(obstacleY);
+		if (column < minColumn || column > maxColumn || row < minRow || row > maxRow)
+			return count;
+		obstacles[count] = ((long) (column - minColumn) << 40) | ((long) (row - minRow) << 8) | obstacle;
+		return count + 1;
+	}
+	
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	public boolean isRunning(int tournament) {
+		return running[tournament];
+	}
+	
+	public long getSteps(int tournament) {
+		return steps[tournament];
+	}
+	
+	/**
+	 * @param team 0 for our team, 1 for the opposing team.
+	 */
+	public int getScore(int tournament, int team) {
+		return score[tournament*2 + team];
+	}
+	
+	/**
+	 * @return The last step on which any robot of the team moved or turned.
+	 */
+	public long getLastMoved(int tournament, int team) {
+		return lastMoved[tournament*2 + team];
+	}
+	
+	/**
+	 * @return The number of treats not yet scored, as Tournament.treats.size().
+	 */
+	public int getTreatsLeft(int tournament) {
+		return treatsLeft[tournament];
+	}
+	
+	/**
+	 * @param robot Index as in Tournament.robots.
+	 */
+	public double getX(int tournament, int robot) {
+		return x[robot*capacity + tournament];
+	}
+	
+	public double getY(int tournament, int robot) {
+		return y[robot*capacity + tournament];
+	}
+	
+	public double getOrientation(int tournament, int robot) {
+		return orientation[robot*capacity + tournament];
+	}
+	
+	public Robot.State getState(int tournament, int robot) {
+		return states[state[robot*capacity + tournament]];
+	}
+	
+	/**
+	 * @return The fitness so far, as Tournament.getFitness().
+	 */
+	public double getFitness(int tournament) {
+		return getFitness(tournament, steps[tournament]);
+	}
+	
+	/**
+	 * @return The fitness as if the tournament had run this many steps, as
+	 * Tournament.getFitness(long).
+	 */
+	public double getFitness(int tournament, long steps) {
+		int ours = score[tournament*2], theirs = score[tournament*2 + 1];
+		double collectionRate = ((double)ours)/steps;
+		double opponentRatio;
+		if (theirs == 0)
+			opponentRatio = treatsPerTournament;
+		else
+			opponentRatio = ((double)ours)/theirs;
+		return collectionRate*opponentRatio/penalty[tournament];
+	}
+	
+	/**
+	 * @return The best fitness still reachable, as Tournament.getFitnessUpperBound().
+	 */
+	public double getFitnessUpperBound(int tournament) {
+		double bestScore = score[tournament*2] + treatsLeft[tournament];
+		double opponentRatio;
+		if (score[tournament*2 + 1] == 0)
+			opponentRatio = treatsPerTournament;
+		else
+			opponentRatio = bestScore/score[tournament*2 + 1];
+		return bestScore/(steps[tournament] + 1)*opponentRatio/penalty[tournament];
+	}
+}
@@ -0,0 +1,290 @@
+/**
+ * @file BytecodeWriter.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.17
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Just enough of a class file writer for Grammar.Program to give each
+ * strategy a class of its own: a final class implementing one interface,
+ * with a default constructor and a single method whose bytecode is
+ * written here by the caller. Writes version 49 (Java 5) class files,
+ * which the JVM verifies by inference, so no stack map frames are needed.
+ * Jumps are 16-bit, so long methods must be rejected with fits().
+ * 
+ * @author nward@fas.harvard.edu
+ */
+class BytecodeWriter {
+	/**
+	 * The opcodes used.
+	 */
+	static final int ICONST_0 = 0x03, ICONST_1 = 0x04, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, LDC2_W = 0x14,
+					 ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, ALOAD_2 = 0x2c, DALOAD = 0x31, ASTORE_2 = 0x4d,
+					 POP = 0x57, DUP = 0x59, IAND = 0x7e, IXOR = 0x82, DCMPL = 0x97, DCMPG = 0x98,
+					 IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e, GOTO = 0xa7,
+					 IRETURN = 0xac, RETURN = 0xb1, GETSTATIC = 0xb2, INVOKESPECIAL = 0xb7, INVOKEINTERFACE = 0xb9,
+					 NEW = 0xbb, ATHROW = 0xbf;
+	
+	/**
+	 * Constant pool tags.
+	 */
+	private static final int UTF8 = 1, DOUBLE = 6, CLASS = 7, STRING = 8, FIELD = 9, METHOD = 10,
+							 INTERFACE_METHOD = 11, NAME_AND_TYPE = 12;
+	
+	private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+	
+	private final DataOutputStream pool = new DataOutputStream(poolBytes);
+	
+	/**
+	 * Index of each constant already in the pool, so none is added twice.
+	 */
+	private final Map<String, Integer> poolIndices = new HashMap<String, Integer>();
+	
+	/**
+	 * The next free pool index (doubles take two).
+	 */
+	private int poolCount = 1;
+	
+	private byte[] code = new byte[256];
+	
+	private int length = 0;
+	
+	/**
+	 * @return Where the next instruction will be written.
+	 */
+	int position() {
+		return length;
+	}
+	
+	/**
+	 * @return Whether the method can be written: short enough for 16-bit
+	 * jumps, and with a small enough constant pool.
+	 */
+	boolean fits() {
+		return length <= Short.MAX_VALUE && poolCount <= 0xffff;
+	}
+	
+	private void u1(int value) {
+		if (length == code.length) {
+			byte[] grown = new byte[length*2];
+			System.arraycopy(code, 0, grown, 0, length);
+			code = grown;
+		}
+		code[length++] = (byte) value;
+	}
+	
+	private void u2(int value) {
+		u1(value >> 8);
+		u1(value);
+	}
+	
+	/**
+	 * Writes an instruction without operands.
+	 */
+	void op(int opcode) {
+		u1(opcode);
+	}
+	
+	/**
+	 * Pushes an int, e.g. an array index.
+	 */
+	void pushInt(int value) {
+		if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			u1(BIPUSH);
+			u1(value);
+		} else {
+			u1(SIPUSH);
+			u2(value);
+		}
+	}
+	
+	void pushDouble(double value) {
+		u1(LDC2_W);
+		u2(constant("D" + Double.doubleToRawLongBits(value), DOUBLE, value));
+	}
+	
+	void pushString(String value) {
+		u1(LDC_W);
+		u2(constant("S" + value, STRING, utf8(value)));
+	}
+	
+	/**
+	 * @param owner Internal name, e.g. java/lang/Object.
+	 */
+	void newObject(String owner) {
+		u1(NEW);
+		u2(classRef(owner));
+	}
+	
+	void getStatic(String owner, String name, String descriptor) {
+		u1(GETSTATIC);
+		u2(member(FIELD, owner, name, descriptor));
+	}
+	
+	void invokeSpecial(String owner, String name, String descriptor) {
+		u1(INVOKESPECIAL);
+		u2(member(METHOD, owner, name, descriptor));
+	}
+	
+	/**
+	 * @param arguments The number of argument words, including the receiver.
+	 */
+	void invokeInterface(String owner, String name, String descriptor, int arguments) {
+		u1(INVOKEINTERFACE);
+		u2(member(INTERFACE_METHOD, owner, name, descriptor));
+		u1(arguments);
+		u1(0);
+	}
+	
+	/**
+	 * Writes a jump with its offset to be filled in by patch().
+	 * 
+	 * @return Where the jump is, for patch().
+	 */
+	int jump(int opcode) {
+		u1(opcode);
+		u2(0);
+		return length - 3;
+	}
+	
+	/**
+	 * Points a jump written by jump() at a position.
+	 */
+	void patch(int jump, int target) {
+		int offset = target - jump;
+		code[jump + 1] = (byte) (offset >> 8);
+		code[jump + 2] = (byte) offset;
+	}
+	
+	/**
+	 * Finishes the class. The method written so far takes one object
+	 * argument and returns a boolean.
+	 * 
+	 * @param name Internal name of the class.
+	 * @param implemented Internal name of the interface it implements.
+	 * @param maxStack Deepest operand stack, in words.
+	 * @param maxLocals Local variable slots, including this and the argument.
+	 * @return The class file.
+	 */
+	byte[] toClassFile(String name, String implemented, String methodName, String methodDescriptor, int maxStack, int maxLocals) {
+		try {
+			// Every constant must be in the pool before it's written out
+			int thisClass = classRef(name), superClass = classRef("java/lang/Object"), interfaceClass = classRef(implemented);
+			int constructorName = utf8("<init>"), constructorDescriptor = utf8("()V");
+			int superConstructor = member(METHOD, "java/lang/Object", "<init>", "()V");
+			int methodNameIndex = utf8(methodName), methodDescriptorIndex = utf8(methodDescriptor), codeName = utf8("Code");
+			
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(poolBytes.size() + length + 128);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xcafebabe);
+			out.writeShort(0);
+			out.writeShort(49);
+			out.writeShort(poolCount);
+			pool.flush();
+			poolBytes.writeTo(out);
+			
+			// public final class <name> implements <implemented>
+			out.writeShort(0x0001 | 0x0010 | 0x0020);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(1);
+			out.writeShort(interfaceClass);
+			out.writeShort(0);
+			out.writeShort(2);
+			
+			// public <init>() { super(); }
+			out.writeShort(0x0001);
+			out.writeShort(constructorName);
+			out.writeShort(constructorDescriptor);
+			out.writeShort(1);
+			out.writeShort(codeName);
+			out.writeInt(12 + 5);
+			out.writeShort(1);
+			out.writeShort(1);
+			out.writeInt(5);
+			out.writeByte(ALOAD_0);
+			out.writeByte(INVOKESPECIAL);
+			out.writeShort(superConstructor);
+			out.writeByte(RETURN);
+			out.writeShort(0);
+			out.writeShort(0);
+			
+			// public final boolean <method>(...)
+			out.writeShort(0x0001 | 0x0010);
+			out.writeShort(methodNameIndex);
+			out.writeShort(methodDescriptorIndex);
+			out.writeShort(1);
+			out.writeShort(codeName);
+			out.writeInt(12 + length);
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(length);
+			out.write(code, 0, length);
+			out.writeShort(0);
+			out.writeShort(0);
+			
+			out.writeShort(0);
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			// ByteArrayOutputStreams can't fail to write
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * @return The pool index of a constant, adding it if it's new.
+	 */
+	private int constant(String key, int tag, Object value) {
+		Integer index = poolIndices.get(key);
+		if (index != null)
+			return index;
+		try {
+			pool.writeByte(tag);
+			switch (tag) {
+			case UTF8:
+				pool.writeUTF((String) value);
+				break;
+			case DOUBLE:
+				pool.writeDouble((Double) value);
+				break;
+			case CLASS:
+			case STRING:
+				pool.writeShort((Integer) value);
+				break;
+			default:
+				// References and name-and-types are pairs of indices
+				int[] pair = (int[]) value;
+				pool.writeShort(pair[0]);
+				pool.writeShort(pair[1]);
+				break;
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		poolIndices.put(key, poolCount);
+		poolCount += tag == DOUBLE ? 2 : 1;
+		return poolIndices.get(key);
+	}
+	
+	private int utf8(String value) {
+		return constant("U" + value, UTF8, value);
+	}
+	
+	private int classRef(String name) {
+		return constant("C" + name, CLASS, utf8(name));
+	}
+	
+	private int member(int tag, String owner, String name, String descriptor) {
+		int nameAndType = constant("N" + name + " " + descriptor, NAME_AND_TYPE, new int[] {utf8(name), utf8(descriptor)});
+		return constant(tag + owner + "." + name + " " + descriptor, tag, new int[] {classRef(owner), nameAndType});
+	}
+}
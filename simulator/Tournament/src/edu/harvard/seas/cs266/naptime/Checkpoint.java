@@ -0,0 +1,287 @@
+/**
+ * @file Checkpoint.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.12
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically saves a Population's state to a file, so a long run can
+ * be resumed after a crash. Each generation's mutation and selection
+ * generators are seeded afresh, so there is no random state to save
+ * beyond the seed itself.
+ * 
+ * The file is binary (big-endian, as DataOutputStream writes it):
+ * 
+ *   magic "NAPC", version, generations, generator seed, early exit cutoff,
+ *   number of individuals, then for each individual: fitness, whether it
+ *   was hopeless, sample count, sample sum and sum of squares, number of
+ *   strategies, and each strategy's S-expression tree.
+ * 
+ * Trees are written in preorder: a list is its tag and length followed
+ * by its elements, a number atom is its tag and the double, and any
+ * other atom is its tag and its index in a table of atoms built up as
+ * they first appear (so names like "step" are only spelled out once).
+ * Counts are unsigned LEB128.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class Checkpoint {
+	/**
+	 * A Population's state as read from a checkpoint.
+	 */
+	public static class State {
+		public int generations;
+		
+		public long generatorSeed;
+		
+		public double cutoff;
+		
+		public List<Individual> individuals;
+	}
+	
+	private static final int magic = 0x4e415043, version = 1;
+	
+	/**
+	 * Tree element tags.
+	 */
+	private static final int LIST = 0, NEW_ATOM = 1, ATOM = 2, NUMBER = 3;
+	
+	/**
+	 * Where checkpoints are saved; each replaces the last.
+	 */
+	private File path;
+	
+	/**
+	 * Save every this many generations.
+	 */
+	private int interval;
+	
+	/**
+	 * Writes checkpoints in the background.
+	 */
+	private ExecutorService writer = Executors.newSingleThreadExecutor();
+	
+	/**
+	 * The checkpoint being written, if any.
+	 */
+	private Future<?> pending = null;
+	
+	/**
+	 * @param path Where to save checkpoints.
+	 * @param interval How many generations between checkpoints.
+	 */
+	public Checkpoint(File path, int interval) {
+		this.path = path;
+		this.interval = interval;
+	}
+	
+	/**
+	 * Saves a checkpoint if one is due after this many generations. The
+	 * individuals are snapshotted right away, but encoded and written on
+	 * another thread, so evolution carries on meanwhile. If the previous
+	 * checkpoint is somehow still being written, this one is skipped.
+	 * 
+	 * @param individuals The next generation, about to be evaluated.
+	 * @param cutoff The EarlyExit cutoff for the next generation, or 0.
+	 */
+	public void save(final int generations, final long generatorSeed, final double cutoff, List<Individual> individuals) {
+		if (generations % interval != 0 || (pending != null && !pending.isDone()))
+			return;
+		final List<Individual> snapshot = new ArrayList<Individual>(individuals.size());
+		for (Individual individual: individuals)
+			snapshot.add(individual.snapshot());
+		pending = writer.submit(new Runnable() {
+			public void run() {
+				try {
+					write(generations, generatorSeed, cutoff, snapshot);
+				} catch (IOException e) {
+					System.err.printf("Could not write checkpoint %s: %s\n", path, e.getMessage());
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Writes a checkpoint to a temporary file, then renames it over the
+	 * last one, so a crash never leaves a partial checkpoint behind.
+	 */
+	private void write(int generations, long generatorSeed, double cutoff, List<Individual> individuals) throws IOException {
+		File temporary = new File(path.getPath() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(temporary);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+		try {
+			out.writeInt(magic);
+			out.writeInt(version);
+			out.writeInt(generations);
+			out.writeLong(generatorSeed);
+			out.writeDouble(cutoff);
+			writeCount(out, individuals.size());
+			Map<String, Integer> atoms = new HashMap<String, Integer>();
+			for (Individual individual: individuals)
+				individual.writeTo(out, atoms);
+			out.flush();
+			stream.getFD().sync();
+		} finally {
+			out.close();
+		}
+		
+		// Renaming over an existing file is atomic on POSIX, but fails on Windows
+		if (!temporary.renameTo(path) && !(path.delete() && temporary.renameTo(path)))
+			throw new IOException(String.format("Could not rename %s to %s", temporary, path));
+	}
+	
+	/**
+	 * Reads a checkpoint written by save().
+	 */
+	public static State load(File path) throws IOException, InvalidSexpException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+		try {
+			if (in.readInt() != magic)
+				throw new IOException(String.format("%s is not a checkpoint", path));
+			int fileVersion = in.readInt();
+			if (fileVersion != version)
+				throw new IOException(String.format("%s is checkpoint version %d, expected %d", path, fileVersion, version));
+			State state = new State();
+			state.generations = in.readInt();
+			state.generatorSeed = in.readLong();
+			state.cutoff = in.readDouble();
+			int count = readCount(in);
+			state.individuals = new ArrayList<Individual>(count);
+			List<String> atoms = new ArrayList<String>();
+			for (int i = 0; i < count; i++)
+				state.individuals.add(Individual.readFrom(in, atoms));
+			return state;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Waits for any checkpoint still being written.
+	 */
+	public void close() {
+		writer.shutdown();
+		try {
+			writer.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Writes an S-expression tree (or atom, as returned by Expression.toSexp()).
+	 * 
+	 * @param atoms The index of every atom written so far; updated.
+	 */
+	static void writeSexp(DataOutputStream out, Object sexp, Map<String, Integer> atoms) throws IOException {
+		if (sexp.getClass() == Sexp.class) {
+			List<Object> children = ((Sexp)sexp).getChildren();
+			out.writeByte(LIST);
+			writeCount(out, children.size());
+			for (Object child: children)
+				writeSexp(out, child, atoms);
+			return;
+		}
+		
+		String atom = (String)sexp;
+		Integer index = atoms.get(atom);
+		if (index != null) {
+			out.writeByte(ATOM);
+			writeCount(out, index);
+		} else if (isNumber(atom)) {
+			out.writeByte(NUMBER);
+			out.writeDouble(Double.parseDouble(atom));
+		} else {
+			atoms.put(atom, atoms.size());
+			out.writeByte(NEW_ATOM);
+			out.writeUTF(atom);
+		}
+	}
+	
+	/**
+	 * Reads an S-expression tree written by writeSexp().
+	 * 
+	 * @param atoms The atoms read so far, by index; updated.
+	 * @return The Sexp, or a String for an atom.
+	 */
+	static Object readSexp(DataInputStream in, List<String> atoms) throws IOException {
+		int tag = in.readByte();
+		switch (tag) {
+		case LIST:
+			int count = readCount(in);
+			Object name = count > 0 ? readSexp(in, atoms) : null;
+			if (!(name instanceof String))
+				throw new IOException("Checkpoint S-expression doesn't start with a name");
+			List<Object> children = new ArrayList<Object>(count - 1);
+			for (int c = 1; c < count; c++)
+				children.add(readSexp(in, atoms));
+			return new Sexp((String)name, children);
+		case NEW_ATOM:
+			String atom = in.readUTF();
+			atoms.add(atom);
+			return atom;
+		case ATOM:
+			int index = readCount(in);
+			if (index >= atoms.size())
+				throw new IOException(String.format("Checkpoint refers to unknown atom %d", index));
+			return atoms.get(index);
+		case NUMBER:
+			return Double.toString(in.readDouble());
+		default:
+			throw new IOException(String.format("Unknown checkpoint tag %d", tag));
+		}
+	}
+	
+	/**
+	 * @return Whether an atom is a number that survives the round trip
+	 * through a double unchanged (so "3" for a sensor index isn't).
+	 */
+	private static boolean isNumber(String atom) {
+		char first = atom.length() > 0 ? atom.charAt(0) : ' ';
+		if (first != '-' && (first < '0' || first > '9'))
+			return false;
+		try {
+			return Double.toString(Double.parseDouble(atom)).equals(atom);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+	
+	static void writeCount(DataOutputStream out, int count) throws IOException {
+		while ((count & ~0x7f) != 0) {
+			out.writeByte((count & 0x7f) | 0x80);
+			count >>>= 7;
+		}
+		out.writeByte(count);
+	}
+	
+	static int readCount(DataInputStream in) throws IOException {
+		int count = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			count |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return count;
+		}
+		throw new IOException("Checkpoint count too long");
+	}
+}
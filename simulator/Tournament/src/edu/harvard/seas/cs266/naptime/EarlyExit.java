@@ -0,0 +1,180 @@
+/**
+ * @file EarlyExit.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.10
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Policy for stopping a fitness simulation before the step budget once
+ * its outcome can no longer change in a meaningful way, e.g. because
+ * our team has stopped moving. Also counts why each simulation ended.
+ * Shared by all evaluation threads, so the counts are atomic.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class EarlyExit {
+	/**
+	 * Why a simulation ended.
+	 */
+	public enum Reason {
+		/**
+		 * Every treat was scored (the normal end condition).
+		 */
+		COMPLETED,
+		
+		/**
+		 * The step budget ran out.
+		 */
+		BUDGET,
+		
+		/**
+		 * None of our robots moved or turned for too long.
+		 */
+		IDLE,
+		
+		/**
+		 * The opposing team has scored more than we still could.
+		 */
+		LOST,
+		
+		/**
+		 * Our best possible fitness is below the generation's cutoff.
+		 */
+		HOPELESS;
+		
+		/**
+		 * @return Whether the simulation was stopped before its natural end.
+		 */
+		public boolean isEarly() {
+			return this != COMPLETED && this != BUDGET;
+		}
+	}
+	
+	/**
+	 * How many steps without any movement end a simulation, or 0 to never stop for idleness.
+	 */
+	private int idleSteps;
+	
+	/**
+	 * Whether to stop once the opposing team can't be caught.
+	 */
+	private boolean stopWhenLost;
+	
+	/**
+	 * The cutoff as a fraction of the previous generation's mean fitness, or 0 for none.
+	 */
+	private double cutoffFraction;
+	
+	/**
+	 * The fitness a simulation must still be able to reach to keep running.
+	 * Updated between generations, while no simulations are running.
+	 */
+	private volatile double cutoff = 0.0;
+	
+	/**
+	 * How many simulations ended for each reason since the last call to resetStatistics().
+	 */
+	private AtomicLongArray counts = new AtomicLongArray(Reason.values().length);
+	
+	/**
+	 * @param idleSteps Stop after this many steps without our team moving (0 to disable).
+	 * @param stopWhenLost Stop once the opposing team has mathematically won.
+	 * @param cutoffFraction Stop once the best fitness still reachable is below this
+	 * fraction of the previous generation's mean fitness (0 to disable).
+	 */
+	public EarlyExit(int idleSteps, boolean stopWhenLost, double cutoffFraction) {
+		this.idleSteps = idleSteps;
+		this.stopWhenLost = stopWhenLost;
+		this.cutoffFraction = cutoffFraction;
+	}
+	
+	/**
+	 * Checks whether a running simulation should stop now.
+	 * 
+	 * @param tourney A simulation that has just been stepped.
+	 * @return The reason to stop, or null to keep going.
+	 */
+	public Reason check(Tournament tourney) {
+		return check(tourney.schedule.getSteps(), tourney.teams[0].lastMoved, tourney.score[0], tourney.score[1],
+					 tourney.treats.size(), cutoff > 0.0 ? tourney.getFitnessUpperBound() : 0.0);
+	}
+	
+	/**
+	 * Checks whether a running simulation should stop now, given its state
+	 * (e.g. from a BatchSimulator).
+	 * 
+	 * @param lastMoved The last step on which our team moved.
+	 * @param treatsLeft The treats not yet scored.
+	 * @param fitnessUpperBound As Tournament.getFitnessUpperBound().
+	 * @return The reason to stop, or null to keep going.
+	 */
+	public Reason check(long steps, long lastMoved, int score, int opposingScore, int treatsLeft, double fitnessUpperBound) {
+		if (idleSteps > 0 && steps - lastMoved >= idleSteps)
+			return Reason.IDLE;
+		if (stopWhenLost && opposingScore > score + treatsLeft)
+			return Reason.LOST;
+		if (cutoff > 0.0 && fitnessUpperBound < cutoff)
+			return Reason.HOPELESS;
+		return null;
+	}
+	
+	/**
+	 * Sets the cutoff for the next generation.
+	 * 
+	 * @param meanFitness The mean fitness of the generation just evaluated.
+	 */
+	public void updateCutoff(double meanFitness) {
+		cutoff = cutoffFraction*meanFitness;
+	}
+	
+	public double getCutoff() {
+		return cutoff;
+	}
+	
+	/**
+	 * Restores the cutoff, e.g. from a Checkpoint.
+	 */
+	public void setCutoff(double cutoff) {
+		this.cutoff = cutoff;
+	}
+	
+	/**
+	 * Records how a simulation ended.
+	 */
+	public void count(Reason reason) {
+		counts.incrementAndGet(reason.ordinal());
+	}
+	
+	public long getCount(Reason reason) {
+		return counts.get(reason.ordinal());
+	}
+	
+	public void resetStatistics() {
+		for (int r = 0; r < counts.length(); r++)
+			counts.set(r, 0);
+	}
+	
+	/**
+	 * @return The count for each reason, tab-separated in declaration order.
+	 */
+	public String getCounts() {
+		StringBuilder line = new StringBuilder();
+		for (Reason reason: Reason.values()) {
+			if (line.length() > 0)
+				line.append('\t');
+			line.append(getCount(reason));
+		}
+		return line.toString();
+	}
+	
+	/**
+	 * @return The settings that affect fitness, e.g. for FitnessCache keys.
+	 */
+	public String toString() {
+		return String.format("idle %d lost %b cutoff %s", idleSteps, stopWhenLost, Double.toString(cutoffFraction));
+	}
+}
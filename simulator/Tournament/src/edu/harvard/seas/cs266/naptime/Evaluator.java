@@ -0,0 +1,42 @@
+/**
+ * @file Evaluator.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.02
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.util.List;
+
+/**
+ * Strategy for running the fitness simulations of a whole generation,
+ * so Population doesn't care whether that happens serially or in parallel.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public interface Evaluator {
+	/**
+	 * Updates the fitness of every individual by running it against the
+	 * baseline. Must not return until all individuals have been run.
+	 * 
+	 * @param individuals The current generation.
+	 * @param baseline The comparison individual.
+	 * @param simulations How many simulation iterations to run for each individual.
+	 * @param earlyExit When to stop simulations early, or null to always run them to the end.
+	 */
+	public void evaluate(List<Individual> individuals, Individual baseline, int simulations, EarlyExit earlyExit);
+	
+	/**
+	 * Adds fitness samples on further seeds to every individual, as
+	 * Individual.sample(). Must not return until all individuals have been run.
+	 * 
+	 * @param seeds The seeds shared by the whole population.
+	 * @param target How many samples each individual should have afterwards.
+	 */
+	public void sample(List<Individual> individuals, Individual baseline, long[] seeds, int target, EarlyExit earlyExit);
+	
+	/**
+	 * Releases any resources (threads) held by this evaluator.
+	 */
+	public void shutdown();
+}
@@ -0,0 +1,185 @@
+/**
+ * @file FitnessCache.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.09
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the fitness of strategies that have already been simulated.
+ * Simulations are deterministic given Population.seed, the strategies,
+ * the baseline and the number of simulations, so a structural hash of
+ * those is enough to identify a result. Least recently used entries are
+ * evicted past the capacity. Optionally backed by a file, so resumed
+ * runs don't re-simulate either.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class FitnessCache {
+	/**
+	 * Cached fitness by key, in access order for LRU eviction.
+	 */
+	private Map<Long, Double> fitnesses;
+	
+	/**
+	 * Hash of everything besides the individual that determines fitness.
+	 */
+	private long contextHash;
+	
+	/**
+	 * Appends new entries to the persistence file, if any.
+	 */
+	private PrintWriter writer = null;
+	
+	/**
+	 * Lookup statistics since the last call to resetStatistics().
+	 */
+	private int hits = 0, misses = 0;
+	
+	/**
+	 * Creates an in-memory cache.
+	 * 
+	 * @param baseline The comparison individual fitness is measured against.
+	 * @param simulations How many simulation iterations are run per individual.
+	 * @param earlyExit When simulations are stopped early, or null if never.
+	 * @param capacity Maximum number of entries.
+	 */
+	public FitnessCache(Individual baseline, int simulations, EarlyExit earlyExit, final int capacity) {
+		fitnesses = new LinkedHashMap<Long, Double>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Double> eldest) {
+				return size() > capacity;
+			}
+		};
+		String context = String.format("%d\n%d\n%s", Population.seed, simulations, baseline.getCanonicalForm());
+		if (earlyExit != null)
+			// Stopping early changes fitness, but leave keys from full runs as they were
+			context += earlyExit.toString();
+		contextHash = hash(context);
+	}
+	
+	/**
+	 * Loads any entries from the persistence file, then appends new ones to it.
+	 * 
+	 * @param path The file of hexadecimal key and fitness pairs; need not exist yet.
+	 */
+	public void persistTo(File path) throws IOException {
+		if (path.isFile()) {
+			BufferedReader reader = new BufferedReader(new FileReader(path));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.trim().split(" ");
+				if (fields.length != 2)
+					continue;
+				try {
+					fitnesses.put(parseHex(fields[0]), Double.longBitsToDouble(parseHex(fields[1])));
+				} catch (NumberFormatException e) {
+					// Probably a line cut short by a crash, skip it
+				}
+			}
+			reader.close();
+		}
+		writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(path, true), "UTF-8"));
+	}
+	
+	/**
+	 * @return The key identifying this individual's simulation results.
+	 */
+	public long key(Individual individual) {
+		return hash(individual.getCanonicalForm()) ^ contextHash;
+	}
+	
+	/**
+	 * Looks up a fitness, updating the hit/miss statistics.
+	 * 
+	 * @return The fitness, or null if it isn't cached.
+	 */
+	public synchronized Double get(long key) {
+		Double fitness = fitnesses.get(key);
+		if (fitness == null)
+			misses++;
+		else
+			hits++;
+		return fitness;
+	}
+	
+	/**
+	 * Records a newly simulated fitness.
+	 */
+	public synchronized void put(long key, double fitness) {
+		fitnesses.put(key, fitness);
+		if (writer != null)
+			writer.printf("%016x %016x\n", key, Double.doubleToLongBits(fitness));
+	}
+	
+	/**
+	 * Makes sure everything put so far is in the persistence file.
+	 */
+	public synchronized void flush() {
+		if (writer != null)
+			writer.flush();
+	}
+	
+	/**
+	 * Closes the persistence file, if any.
+	 */
+	public synchronized void close() {
+		if (writer != null)
+			writer.close();
+		writer = null;
+	}
+	
+	/**
+	 * Counts an individual whose fitness was copied from an identical one
+	 * simulated in the same generation, without a lookup.
+	 */
+	public synchronized void countHit() {
+		hits++;
+	}
+	
+	public synchronized int getHits() {
+		return hits;
+	}
+	
+	public synchronized int getMisses() {
+		return misses;
+	}
+	
+	public synchronized void resetStatistics() {
+		hits = misses = 0;
+	}
+	
+	/**
+	 * 64-bit FNV-1a hash of some text.
+	 */
+	static long hash(String text) {
+		long hash = 0xcbf29ce484222325L;
+		for (int c = 0; c < text.length(); c++) {
+			hash ^= text.charAt(c);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+	
+	/**
+	 * Parses 16 hex digits, which Long.parseLong() can't do past 2^63.
+	 */
+	private static long parseHex(String hex) {
+		if (hex.length() != 16)
+			throw new NumberFormatException(hex);
+		return (Long.parseLong(hex.substring(0, 8), 16) << 32) | Long.parseLong(hex.substring(8), 16);
+	}
+}
@@ -6,11 +6,18 @@
 
 package edu.harvard.seas.cs266.naptime;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import sim.engine.SimState;
+import sim.field.continuous.Continuous2D;
 import sim.util.Double2D;
 
 /**
- * Represents a team's goal at one end of the field.
+ * Represents a team's goal at one end of the field. Rather than scanning
+ * the field for treats every step, each goal keeps track of the treats
+ * in its scoring area as they're moved, so scoring costs nothing while
+ * the area is empty.
  * 
  * @author nward@fas.harvard.edu
  */
@@ -25,6 +32,16 @@ public class Goal {
 	 */
 	private Team parent = null;
 	
+	/**
+	 * The bounding box of the scoring area, set by place().
+	 */
+	private double minX, maxX, minY, maxY;
+	
+	/**
+	 * The treats currently within the scoring area, carried or not.
+	 */
+	private List<Treat> inArea = new ArrayList<Treat>();
+	
 	/**
 	 * Sets up the goal.
 	 * 
@@ -34,38 +51,78 @@ public class Goal {
 		this.parent = team;
 	}
 	
-	public void step(SimState state) {
-		// Get the current simulation
-		Tournament tourney = (Tournament) state;
+	/**
+	 * Puts the goal in the field and works out its scoring area.
+	 * 
+	 * @param location The middle of the goal line, at one end of the field.
+	 */
+	public void place(Continuous2D field, Double2D location) {
+		field.setObjectLocation(this, location);
 		
 		// Determine the bounding box of this goal's scoring area
-		Double2D goalPosition = tourney.field.getObjectLocation(this);
-		double maxX;
-		if (goalPosition.x == 0.0)
+		if (location.x == 0.0)
 			maxX = 4.0;
 		else
-			maxX = tourney.field.getWidth();
-		double minX = maxX - 4.0;
-		double minY = goalPosition.y - goalSize/2 - 4.0;
-		double maxY = goalPosition.y + goalSize/2 + 4.0;
+			maxX = field.getWidth();
+		minX = maxX - 4.0;
+		minY = location.y - goalSize/2 - 4.0;
+		maxY = location.y + goalSize/2 + 4.0;
+	}
+	
+	/**
+	 * @return Whether a treat at this location would score for this goal.
+	 */
+	public boolean covers(Double2D location) {
+		return location.x >= minX && location.x <= maxX && location.y >= minY && location.y <= maxY;
+	}
+	
+	/**
+	 * Notes that a treat has entered the scoring area. Kept up to date by
+	 * Tournament.moveTreat().
+	 */
+	void enter(Treat treat) {
+		treat.area = this;
+		inArea.add(treat);
+	}
+	
+	/**
+	 * Forgets every treat in the scoring area, when the field is reset.
+	 */
+	void reset() {
+		for (int t = 0; t < inArea.size(); t++)
+			inArea.get(t).area = null;
+		inArea.clear();
+	}
+	
+	/**
+	 * Notes that a treat has left the scoring area (or the field).
+	 */
+	void leave(Treat treat) {
+		treat.area = null;
+		inArea.remove(treat);
+	}
+	
+	public void step(SimState state) {
+		// Get the current simulation
+		Tournament tourney = (Tournament) state;
 		
-		// Check if any treats are within bounds
-		Boolean done = true;
-		for (Object treat: tourney.field.getAllObjects()) {
-			if (treat.getClass() == Treat.class) {
-				done = false;
-				Double2D treatPosition = tourney.field.getObjectLocation(treat);
-				if (!((Treat)treat).carried && treatPosition.x >= minX && treatPosition.x <= maxX && treatPosition.y >= minY && treatPosition.y <= maxY) {
-					// Clear it from the field
-					tourney.field.remove(treat);
-					
-					// Update the score
-					tourney.score[parent.opposing ? 1 : 0]++;
-				}
+		// If there's no food left, end the simulation immediately
+		if (tourney.treats.size() == 0) {
+			state.kill();
+			return;
+		}
+		
+		// Score any treats in our area that have been let go of (removing
+		// them from the back, since each is dropped from the area too)
+		for (int t = inArea.size() - 1; t >= 0; t--) {
+			Treat treat = inArea.get(t);
+			if (!treat.carried) {
+				// Clear it from the field
+				tourney.removeTreat(treat);
+				
+				// Update the score
+				tourney.score[parent.opposing ? 1 : 0]++;
 			}
 		}
-		if (done)
-			// If there's no food left, end the simulation immediately
-			state.kill();
 	}
 }
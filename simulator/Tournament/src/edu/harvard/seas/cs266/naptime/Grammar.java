@@ -1,7 +1,10 @@
 package edu.harvard.seas.cs266.naptime;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import ec.util.MersenneTwisterFast;
 
@@ -12,6 +15,14 @@ public class Grammar {
 		
 		public Expression() { }
 		
+		/**
+		 * For building expressions directly rather than from S-expressions,
+		 * e.g. in the genetic operators.
+		 */
+		protected Expression(String name) {
+			this.name = name;
+		}
+		
 		public Expression(Sexp sexp, String name) throws InvalidSexpException {
 			// Make sure this is the correct S-expression
 			if (!sexp.firstAtomEquals(name))
@@ -22,7 +33,42 @@ public class Grammar {
 		}
 		
 		public String toString() {
-			return toSexp().toString();
+			return toString(true);
+		}
+		
+		/**
+		 * @return This expression as a single-line S-expression, e.g. for
+		 * hashing; the same as toSexp().toCompactString().
+		 */
+		public String toCompactString() {
+			return toString(false);
+		}
+		
+		private String toString(boolean pretty) {
+			StringBuilder out = new StringBuilder();
+			try {
+				write(out, pretty);
+			} catch (IOException e) {
+				// StringBuilders can't fail to append, but Java makes me do it
+			}
+			return out.toString();
+		}
+		
+		/**
+		 * Writes this expression straight to a stream as an S-expression,
+		 * pretty or compact (see Sexp.toString() and Sexp.toCompactString()),
+		 * without converting it with toSexp() first.
+		 */
+		public void write(Appendable out, boolean pretty) throws IOException {
+			write(new Sexp.Printer(out, pretty));
+		}
+		
+		/**
+		 * Overridden by expressions with children to write them one at a
+		 * time. Leaves are small, so by default they're converted.
+		 */
+		protected void write(Sexp.Printer printer) throws IOException {
+			printer.write(toSexp());
 		}
 		
 		/**
@@ -32,98 +78,1112 @@ public class Grammar {
 		public abstract Object toSexp();
 		
 		/**
-		 * Expected to be overridden by subclasses to produce unparsed
-		 * mutated version of their contents.
+		 * Expected to be overridden by subclasses to produce a mutated
+		 * copy of their contents. This expression is left unchanged.
 		 * 
 		 * @param rate The probability that a given node mutates.
 		 * @param generator The seeded PRNG from the Tournament state.
 		 */
-		public abstract Object mutate(double rate, MersenneTwisterFast generator);
+		public abstract Expression mutate(double rate, MersenneTwisterFast generator);
+		
+		/**
+		 * Set on what mutate() returns if it differs from what was mutated.
+		 */
+		private boolean mutated;
+		
+		/**
+		 * @return Whether mutation actually changed this expression, e.g.
+		 * for counting mutations without comparing whole trees.
+		 */
+		public boolean isMutated() {
+			return mutated;
+		}
+		
+		/**
+		 * For use by mutate() on the mutant it returns.
+		 */
+		protected Expression setMutated(boolean mutated) {
+			this.mutated = mutated;
+			return this;
+		}
+		
+		/**
+		 * Expected to be overridden by subclasses to produce a deep copy,
+		 * sharing no nodes with the original.
+		 */
+		public abstract Expression copy();
+		
+		/**
+		 * Whether this is a real-valued expression, per its Primitive (or
+		 * a literal). Values can only be swapped with each other in
+		 * crossover, and only used as comparison operands.
+		 */
+		protected boolean isValue() {
+			Primitive primitive = primitives.get(name);
+			return primitive != null && primitive.value;
+		}
+		
+		/**
+		 * Lists this expression and its descendants in preorder, along with
+		 * their parents, as candidate crossover points. Overridden by
+		 * expressions with children, and by those that can't be crossed over.
+		 */
+		protected void collect(Expression parent, List<Expression> nodes, List<Expression> parents) {
+			nodes.add(this);
+			parents.add(parent);
+		}
+		
+		/**
+		 * Overridden by expressions with children to swap out a direct
+		 * child (compared by identity) during crossover.
+		 */
+		protected void replace(Expression child, Expression replacement) { }
 
 		/**
 		 * Expected to be overridden by logical expressions (boolean operators, comparisons, etc.)
-		 * @throws InvalidSexpException 
+		 * Only reached by trees that skipped typecheck().
 		 */
-		public Boolean eval(Robot robot) throws InvalidSexpException {
-			throw new InvalidSexpException("Value expression used in logical context");
+		public boolean eval(Agent robot) {
+			throw new IllegalStateException("Value expression used in logical context");
 		}
 		
 		/**
 		 * Expected to be overridden by real-valued expressions (literals, sensors, etc.)
-		 * @throws InvalidSexpException 
+		 * Only reached by trees that skipped typecheck().
+		 */
+		public double getValue(Agent robot) {
+			throw new IllegalStateException("Logical expression used in value context");
+		}
+		
+		/**
+		 * Expected to be overridden by expressions with children to check
+		 * each of them with checkLogical() or checkValue(), so that a tree
+		 * that passes can be evaluated without failing.
+		 * 
+		 * @throws InvalidSexpException If a value is used as a condition or
+		 * statement, or a logical expression as a comparison operand.
+		 */
+		protected void typecheck() throws InvalidSexpException { }
+		
+		protected void checkLogical(Expression child) throws InvalidSexpException {
+			if (child.isValue())
+				throw new InvalidSexpException(String.format("Value expression '%s' used in logical context in '%s'", child.name, name));
+			child.typecheck();
+		}
+		
+		protected void checkValue(Expression child) throws InvalidSexpException {
+			if (!child.isValue())
+				throw new InvalidSexpException(String.format("Logical expression '%s' used in value context in '%s'", child.name, name));
+			child.typecheck();
+		}
+		
+		/**
+		 * Expected to be overridden by logical expressions to emit instructions
+		 * equivalent to eval(). By default fails at run time, like eval().
+		 */
+		protected void compile(Program program) {
+			program.emitFail("Value expression used in logical context");
+		}
+		
+		/**
+		 * Expected to be overridden by real-valued expressions to emit an
+		 * operand equivalent to getValue(). By default fails at run time.
+		 */
+		protected void compileValue(Program program) {
+			program.emitOperand(Program.LOGICAL, 0);
+		}
+		
+		/**
+		 * Expected to be overridden by expressions with children to produce
+		 * a simplified equivalent for running: the same result and the same
+		 * side effects in the same order, including where it would throw.
+		 * May share unchanged leaves with this expression, which is left
+		 * unchanged. Comparison operands are left alone, since simplifying
+		 * them could turn a failure into a value.
+		 */
+		protected Expression optimize() {
+			return this;
+		}
+		
+		/**
+		 * Overridden by logical expressions that always evaluate the same way.
+		 * 
+		 * @return The result (unless evaluation throws), or null if it varies.
+		 */
+		protected Boolean getConstantResult() {
+			return null;
+		}
+		
+		/**
+		 * Overridden by real-valued expressions with a fixed value.
+		 * 
+		 * @return The value, or null if it varies.
+		 */
+		protected Double getConstantValue() {
+			return null;
+		}
+		
+		/**
+		 * Overridden by logical expressions that can be skipped when their
+		 * result isn't needed: no side effects, and they can't throw.
+		 */
+		protected boolean isPure() {
+			return false;
+		}
+		
+		/**
+		 * Overridden by expressions with children.
+		 * 
+		 * @return The number of expressions in this tree, including literals.
+		 */
+		public int countNodes() {
+			return 1;
+		}
+		
+		/**
+		 * Overridden by expressions with children.
+		 * 
+		 * @return The number of expressions on the longest path from here
+		 * down to a leaf, including both ends.
+		 */
+		public int getDepth() {
+			return 1;
+		}
+	}
+	
+	/**
+	 * @return A leaf that always evaluates to the given result: noop for
+	 * true, and an empty or for false.
+	 */
+	Expression newConstant(boolean result) {
+		if (result)
+			return new NoOp();
+		else
+			return new Or(new ArrayList<Expression>(0));
+	}
+	
+	/**
+	 * A Step tree compiled down to a flat instruction array, so the robot
+	 * doesn't walk the expression tree every tick.
+	 * The tree interpreter (Expression.eval) remains the reference.
+	 * 
+	 * The instructions are then translated into JVM bytecode for a class
+	 * of the strategy's own (see generate()), which the JIT compiles like
+	 * any other code, inlining the robot's sensors and motors; interpret()
+	 * runs the instructions directly, for strategies too long for one JVM
+	 * method or if the class can't be defined.
+	 * 
+	 * Logical results live on a stack (packed into the bits of a long when
+	 * interpreting), and comparison operands are always leaves, so
+	 * evaluation needs no allocation and no shared mutable state; one
+	 * Program can be run by any number of robots on any number of threads.
+	 */
+	public static class Program {
+		/**
+		 * Implemented by the class generated for each strategy.
 		 */
-		public double getValue(Robot robot) throws InvalidSexpException {
-			throw new InvalidSexpException("Logical expression used in value context");
+		public interface Generated {
+			public boolean eval(Agent robot);
 		}
+		
+		/**
+		 * Defines each generated class in a loader of its own, so the class
+		 * can be unloaded along with its Program.
+		 */
+		private static class Loader extends ClassLoader {
+			public Loader() {
+				super(Program.class.getClassLoader());
+			}
+			
+			public Class<?> define(String name, byte[] classFile) {
+				return defineClass(name, classFile, 0, classFile.length);
+			}
+		}
+		
+		/**
+		 * Internal names of the classes generated code refers to.
+		 */
+		private static final String agentClass = "edu/harvard/seas/cs266/naptime/Agent",
+									stateClass = "edu/harvard/seas/cs266/naptime/Robot$State";
+		
+		/**
+		 * Opcodes.
+		 */
+		private static final int TRUE = 0, FALSE = 1, NOT = 2, AND = 3,
+								 JUMP = 4, JUMP_IF_FALSE = 5,
+								 JUMP_IF_FALSE_ELSE_POP = 6, JUMP_IF_TRUE_ELSE_POP = 7,
+								 COMPARE = 8, SET_SPEED = 9, IN_STATE = 10, SET_STATE = 11,
+								 PICK_UP = 12, DROP = 13, FAIL = 14;
+		
+		/**
+		 * Comparisons, following the opcode COMPARE.
+		 */
+		private static final int EQ = 0, LT = 1, LTE = 2, GT = 3, GTE = 4;
+		
+		/**
+		 * Operand kinds for comparisons, each followed by an argument: an
+		 * index into the constants, or into Agent.getSenses().
+		 */
+		private static final int CONSTANT = 0, SENSE = 1, LOGICAL = 2;
+		
+		/**
+		 * Cached because values() copies the array on every call.
+		 */
+		private static final Robot.State[] states = Robot.State.values();
+		
+		/**
+		 * The deepest logical stack that fits in a long.
+		 */
+		private static final int maxDepth = 64;
+		
+		private int[] code = new int[64];
+		
+		private int length = 0;
+		
+		private List<Double> constantList = new ArrayList<Double>();
+		
+		private double[] constants;
+		
+		private List<String> messages = new ArrayList<String>();
+		
+		/**
+		 * Current and deepest logical stack depth, tracked while emitting.
+		 */
+		private int depth = 0, deepest = 0;
+		
+		/**
+		 * The strategy's own class, or null to interpret it.
+		 */
+		private Generated generated = null;
+		
+		/**
+		 * Compiles the given strategy.
+		 * 
+		 * @throws InvalidSexpException If the strategy is nested too deeply
+		 * to compile, in which case it should just be interpreted.
+		 */
+		public Program(Step step) throws InvalidSexpException {
+			step.compile(this);
+			if (deepest > maxDepth)
+				throw new InvalidSexpException(String.format("%s nested too deeply to compile", Step.name));
+			
+			// Trim down to the final arrays
+			int[] trimmed = new int[length];
+			System.arraycopy(code, 0, trimmed, 0, length);
+			code = trimmed;
+			constants = new double[constantList.size()];
+			for (int c = 0; c < constants.length; c++)
+				constants[c] = constantList.get(c);
+			constantList = null;
+			
+			try {
+				generated = generate();
+			} catch (Exception e) {
+				System.err.printf("Interpreting %s, since its class couldn't be generated: %s\n", Step.name, e);
+			} catch (LinkageError e) {
+				System.err.printf("Interpreting %s, since its class couldn't be generated: %s\n", Step.name, e);
+			}
+		}
+		
+		/**
+		 * Runs the compiled strategy, with the same side effects and result as
+		 * Step.eval(), including failing where an unchecked tree would.
+		 */
+		public boolean eval(Agent robot) {
+			if (generated != null)
+				return generated.eval(robot);
+			return interpret(robot);
+		}
+		
+		/**
+		 * @return Whether eval() runs a generated class rather than interpret().
+		 */
+		public boolean isGenerated() {
+			return generated != null;
+		}
+		
+		/**
+		 * Runs the instructions one at a time, as eval() does if there's no
+		 * generated class.
+		 */
+		boolean interpret(Agent robot) {
+			// Sensor operands all come from the robot's snapshot for this step
+			double[] senses = robot.getSenses();
+			
+			// Top of stack is bit 0
+			long stack = 0;
+			int pc = 0;
+			while (pc < code.length) {
+				switch (code[pc]) {
+				case TRUE:
+					stack = stack << 1 | 1;
+					pc++;
+					break;
+				case FALSE:
+					stack = stack << 1;
+					pc++;
+					break;
+				case NOT:
+					stack ^= 1;
+					pc++;
+					break;
+				case AND:
+					stack = (stack >>> 1) & ((stack & 1) | ~1L);
+					pc++;
+					break;
+				case JUMP:
+					pc = code[pc + 1];
+					break;
+				case JUMP_IF_FALSE:
+					boolean predicate = (stack & 1) != 0;
+					stack >>>= 1;
+					pc = predicate ? pc + 2 : code[pc + 1];
+					break;
+				case JUMP_IF_FALSE_ELSE_POP:
+					if ((stack & 1) == 0)
+						pc = code[pc + 1];
+					else {
+						stack >>>= 1;
+						pc += 2;
+					}
+					break;
+				case JUMP_IF_TRUE_ELSE_POP:
+					if ((stack & 1) != 0)
+						pc = code[pc + 1];
+					else {
+						stack >>>= 1;
+						pc += 2;
+					}
+					break;
+				case COMPARE:
+					double left = operand(senses, code[pc + 2], code[pc + 3]);
+					double right = operand(senses, code[pc + 4], code[pc + 5]);
+					boolean result;
+					switch (code[pc + 1]) {
+					case EQ:
+						result = left == right;
+						break;
+					case LT:
+						result = left < right;
+						break;
+					case LTE:
+						result = left <= right;
+						break;
+					case GT:
+						result = left > right;
+						break;
+					default:
+						result = left >= right;
+						break;
+					}
+					stack = stack << 1 | (result ? 1 : 0);
+					pc += 6;
+					break;
+				case SET_SPEED:
+					robot.setSpeed(constants[code[pc + 1]], constants[code[pc + 2]]);
+					stack = stack << 1 | 1;
+					pc += 3;
+					break;
+				case IN_STATE:
+					stack = stack << 1 | (robot.inState(states[code[pc + 1]]) ? 1 : 0);
+					pc += 2;
+					break;
+				case SET_STATE:
+					robot.setState(states[code[pc + 1]]);
+					stack = stack << 1 | 1;
+					pc += 2;
+					break;
+				case PICK_UP:
+					stack = stack << 1 | (robot.pickUp() ? 1 : 0);
+					pc++;
+					break;
+				case DROP:
+					stack = stack << 1 | (robot.drop() ? 1 : 0);
+					pc++;
+					break;
+				default:
+					throw new IllegalStateException(messages.get(code[pc + 1]));
+				}
+			}
+			return (stack & 1) != 0;
+		}
+		
+		/**
+		 * Translates the instructions into a class implementing Generated,
+		 * instruction by instruction, with the logical stack on the operand
+		 * stack and the same jumps, so the JIT sees a straight-line method
+		 * per strategy rather than the switch in interpret().
+		 * 
+		 * @return The class's instance, or null if the strategy is too long.
+		 */
+		private Generated generate() throws InstantiationException, IllegalAccessException {
+			BytecodeWriter writer = new BytecodeWriter();
+			
+			// Sensor operands all come from the robot's snapshot for this step
+			writer.op(BytecodeWriter.ALOAD_1);
+			writer.invokeInterface(agentClass, "getSenses", "()[D", 1);
+			writer.op(BytecodeWriter.ASTORE_2);
+			
+			// Where each instruction starts, and the jumps to point at them once they're all written
+			int[] positions = new int[code.length + 1];
+			List<int[]> jumps = new ArrayList<int[]>();
+			int pc = 0;
+			while (pc < code.length) {
+				positions[pc] = writer.position();
+				switch (code[pc]) {
+				case TRUE:
+					writer.op(BytecodeWriter.ICONST_1);
+					pc++;
+					break;
+				case FALSE:
+					writer.op(BytecodeWriter.ICONST_0);
+					pc++;
+					break;
+				case NOT:
+					writer.op(BytecodeWriter.ICONST_1);
+					writer.op(BytecodeWriter.IXOR);
+					pc++;
+					break;
+				case AND:
+					writer.op(BytecodeWriter.IAND);
+					pc++;
+					break;
+				case JUMP:
+					jumps.add(new int[] {writer.jump(BytecodeWriter.GOTO), code[pc + 1]});
+					pc += 2;
+					break;
+				case JUMP_IF_FALSE:
+					jumps.add(new int[] {writer.jump(BytecodeWriter.IFEQ), code[pc + 1]});
+					pc += 2;
+					break;
+				case JUMP_IF_FALSE_ELSE_POP:
+					writer.op(BytecodeWriter.DUP);
+					jumps.add(new int[] {writer.jump(BytecodeWriter.IFEQ), code[pc + 1]});
+					writer.op(BytecodeWriter.POP);
+					pc += 2;
+					break;
+				case JUMP_IF_TRUE_ELSE_POP:
+					writer.op(BytecodeWriter.DUP);
+					jumps.add(new int[] {writer.jump(BytecodeWriter.IFNE), code[pc + 1]});
+					writer.op(BytecodeWriter.POP);
+					pc += 2;
+					break;
+				case COMPARE:
+					generateOperand(writer, code[pc + 2], code[pc + 3]);
+					generateOperand(writer, code[pc + 4], code[pc + 5]);
+					
+					// As javac compiles them, so NaN compares false
+					int toFalse;
+					switch (code[pc + 1]) {
+					case EQ:
+						writer.op(BytecodeWriter.DCMPL);
+						toFalse = writer.jump(BytecodeWriter.IFNE);
+						break;
+					case LT:
+						writer.op(BytecodeWriter.DCMPG);
+						toFalse = writer.jump(BytecodeWriter.IFGE);
+						break;
+					case LTE:
+						writer.op(BytecodeWriter.DCMPG);
+						toFalse = writer.jump(BytecodeWriter.IFGT);
+						break;
+					case GT:
+						writer.op(BytecodeWriter.DCMPL);
+						toFalse = writer.jump(BytecodeWriter.IFLE);
+						break;
+					default:
+						writer.op(BytecodeWriter.DCMPL);
+						toFalse = writer.jump(BytecodeWriter.IFLT);
+						break;
+					}
+					writer.op(BytecodeWriter.ICONST_1);
+					int toEnd = writer.jump(BytecodeWriter.GOTO);
+					writer.patch(toFalse, writer.position());
+					writer.op(BytecodeWriter.ICONST_0);
+					writer.patch(toEnd, writer.position());
+					pc += 6;
+					break;
+				case SET_SPEED:
+					writer.op(BytecodeWriter.ALOAD_1);
+					writer.pushDouble(constants[code[pc + 1]]);
+					writer.pushDouble(constants[code[pc + 2]]);
+					writer.invokeInterface(agentClass, "setSpeed", "(DD)V", 5);
+					writer.op(BytecodeWriter.ICONST_1);
+					pc += 3;
+					break;
+				case IN_STATE:
+					writer.op(BytecodeWriter.ALOAD_1);
+					writer.getStatic(stateClass, states[code[pc + 1]].name(), "L" + stateClass + ";");
+					writer.invokeInterface(agentClass, "inState", "(L" + stateClass + ";)Z", 2);
+					pc += 2;
+					break;
+				case SET_STATE:
+					writer.op(BytecodeWriter.ALOAD_1);
+					writer.getStatic(stateClass, states[code[pc + 1]].name(), "L" + stateClass + ";");
+					writer.invokeInterface(agentClass, "setState", "(L" + stateClass + ";)V", 2);
+					writer.op(BytecodeWriter.ICONST_1);
+					pc += 2;
+					break;
+				case PICK_UP:
+					writer.op(BytecodeWriter.ALOAD_1);
+					writer.invokeInterface(agentClass, "pickUp", "()Z", 1);
+					pc++;
+					break;
+				case DROP:
+					writer.op(BytecodeWriter.ALOAD_1);
+					writer.invokeInterface(agentClass, "drop", "()Z", 1);
+					pc++;
+					break;
+				default:
+					generateFail(writer, messages.get(code[pc + 1]));
+					pc += 2;
+					break;
+				}
+			}
+			positions[code.length] = writer.position();
+			writer.op(BytecodeWriter.IRETURN);
+			for (int[] jump: jumps)
+				writer.patch(jump[0], positions[jump[1]]);
+			if (!writer.fits())
+				return null;
+			
+			// Room for the logical stack, plus a comparison's doubles and a failure being thrown
+			String name = Program.class.getName().replace('.', '/') + "$Step";
+			byte[] classFile = writer.toClassFile(name, Generated.class.getName().replace('.', '/'), "eval",
+												  "(L" + agentClass + ";)Z", deepest + 8, 3);
+			return (Generated) new Loader().define(name.replace('/', '.'), classFile).newInstance();
+		}
+		
+		/**
+		 * Generates code pushing a comparison operand, as operand() returns it.
+		 */
+		private void generateOperand(BytecodeWriter writer, int kind, int argument) {
+			switch (kind) {
+			case CONSTANT:
+				writer.pushDouble(constants[argument]);
+				break;
+			case SENSE:
+				writer.op(BytecodeWriter.ALOAD_2);
+				writer.pushInt(argument);
+				writer.op(BytecodeWriter.DALOAD);
+				break;
+			default:
+				generateFail(writer, "Logical expression used in value context");
+				break;
+			}
+		}
+		
+		/**
+		 * Generates code throwing an IllegalStateException, as interpret() does.
+		 */
+		private void generateFail(BytecodeWriter writer, String message) {
+			writer.newObject("java/lang/IllegalStateException");
+			writer.op(BytecodeWriter.DUP);
+			writer.pushString(message);
+			writer.invokeSpecial("java/lang/IllegalStateException", "<init>", "(Ljava/lang/String;)V");
+			writer.op(BytecodeWriter.ATHROW);
+		}
+		
+		private double operand(double[] senses, int kind, int argument) {
+			switch (kind) {
+			case CONSTANT:
+				return constants[argument];
+			case SENSE:
+				return senses[argument];
+			default:
+				throw new IllegalStateException("Logical expression used in value context");
+			}
+		}
+		
+		/**
+		 * Appends raw words to the instruction array.
+		 */
+		private void append(int word) {
+			if (length == code.length) {
+				int[] grown = new int[length*2];
+				System.arraycopy(code, 0, grown, 0, length);
+				code = grown;
+			}
+			code[length++] = word;
+		}
+		
+		/**
+		 * Tracks the logical stack depth as instructions are emitted.
+		 */
+		private void adjustDepth(int delta) {
+			depth += delta;
+			if (depth > deepest)
+				deepest = depth;
+		}
+		
+		/**
+		 * Emits an instruction that takes no arguments.
+		 */
+		void emit(int opcode) {
+			append(opcode);
+			if (opcode == NOT)
+				adjustDepth(0);
+			else if (opcode == AND)
+				adjustDepth(-1);
+			else
+				adjustDepth(1);
+		}
+		
+		/**
+		 * Emits an instruction that takes a single integer argument.
+		 */
+		void emit(int opcode, int argument) {
+			append(opcode);
+			append(argument);
+			adjustDepth(1);
+		}
+		
+		/**
+		 * Emits a jump with a target to be filled in by patch(). Conditional
+		 * jumps pop on fall-through; an unconditional jump instead drops the
+		 * value it skips over, since the jump target accounts for it.
+		 * 
+		 * @return The location of the target, for patch().
+		 */
+		int emitJump(int opcode) {
+			append(opcode);
+			append(-1);
+			adjustDepth(-1);
+			return length - 1;
+		}
+		
+		/**
+		 * Points a previously emitted jump at the next instruction.
+		 */
+		void patch(int target) {
+			code[target] = length;
+		}
+		
+		/**
+		 * Emits a comparison; must be followed by two operands.
+		 */
+		void emitCompare(int comparison) {
+			append(COMPARE);
+			append(comparison);
+			adjustDepth(1);
+		}
+		
+		/**
+		 * Emits a comparison operand.
+		 */
+		void emitOperand(int kind, int argument) {
+			append(kind);
+			append(argument);
+		}
+		
+		/**
+		 * Emits a comparison operand for a literal value.
+		 */
+		void emitConstant(double value) {
+			emitOperand(CONSTANT, constant(value));
+		}
+		
+		/**
+		 * Emits a speed change with literal motor values.
+		 */
+		void emitSetSpeed(double left, double right) {
+			append(SET_SPEED);
+			append(constant(left));
+			append(constant(right));
+			adjustDepth(1);
+		}
+		
+		/**
+		 * Emits an instruction that throws when reached, like the tree would.
+		 */
+		void emitFail(String message) {
+			append(FAIL);
+			append(messages.size());
+			messages.add(message);
+			adjustDepth(1);
+		}
+		
+		private int constant(double value) {
+			constantList.add(value);
+			return constantList.size() - 1;
+		}
+	}
+	
+	/**
+	 * Everything the grammar needs to know about a primitive, registered
+	 * under its name: how to build it, its type and how many arguments it
+	 * takes. Primitives a noop (or vnoop, for values) can grow into when
+	 * mutating are GrowablePrimitives.
+	 */
+	public static abstract class Primitive {
+		public final String name;
+		
+		/**
+		 * Whether it's real-valued (a comparison operand) rather than logical.
+		 */
+		public final boolean value;
+		
+		/**
+		 * How many arguments (atoms or child expressions) it takes.
+		 */
+		public final int minArguments, maxArguments;
+		
+		/**
+		 * @param maxArguments Integer.MAX_VALUE for lists of any length.
+		 */
+		public Primitive(String name, boolean value, int minArguments, int maxArguments) {
+			this.name = name;
+			this.value = value;
+			this.minArguments = minArguments;
+			this.maxArguments = maxArguments;
+		}
+		
+		/**
+		 * Builds an instance from an S-expression with an acceptable
+		 * number of arguments.
+		 */
+		protected abstract Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException;
+		
+		String describeArguments() {
+			if (minArguments == maxArguments)
+				return Integer.toString(minArguments);
+			else if (maxArguments == Integer.MAX_VALUE)
+				return String.format("at least %d", minArguments);
+			else
+				return String.format("%d to %d", minArguments, maxArguments);
+		}
+	}
+	
+	/**
+	 * A primitive that noops of its type can mutate into.
+	 */
+	public static abstract class GrowablePrimitive extends Primitive {
+		public GrowablePrimitive(String name, boolean value, int minArguments, int maxArguments) {
+			super(name, value, minArguments, maxArguments);
+		}
+		
+		/**
+		 * Builds a new instance with default or random arguments.
+		 */
+		protected abstract Expression grow(Grammar grammar, MersenneTwisterFast generator);
+	}
+	
+	/**
+	 * A comparison, which mutation can turn into any other comparison
+	 * with the same operands.
+	 */
+	public static abstract class BinaryPrimitive extends GrowablePrimitive {
+		public BinaryPrimitive(String name) {
+			super(name, false, 2, 2);
+		}
+		
+		/**
+		 * Builds an instance with the given operands.
+		 */
+		protected abstract BinaryOperator build(Grammar grammar, Expression left, Expression right);
+		
+		protected Expression grow(Grammar grammar, MersenneTwisterFast generator) {
+			return build(grammar, grammar.new ValueNoOp(), grammar.new Literal(0.0));
+		}
+	}
+	
+	/**
+	 * Every primitive, by name, for building expressions in constant time.
+	 */
+	private static final Map<String, Primitive> primitives = new HashMap<String, Primitive>();
+	
+	/**
+	 * The logical and real-valued primitives noops can grow into, in the
+	 * order they were registered (which decides what a given random
+	 * number grows into, so don't reorder them).
+	 */
+	private static final List<GrowablePrimitive> logicalGrowth = new ArrayList<GrowablePrimitive>(), valueGrowth = new ArrayList<GrowablePrimitive>();
+	
+	/**
+	 * The comparisons one can mutate into, in the order they were
+	 * registered (again, don't reorder them).
+	 */
+	private static final List<BinaryPrimitive> comparisons = new ArrayList<BinaryPrimitive>();
+	
+	/**
+	 * Adds a primitive, e.g. a new sensor, to the grammar. Must happen
+	 * before any strategies are built or evolved.
+	 */
+	public static void register(Primitive primitive) {
+		if (primitives.containsKey(primitive.name))
+			throw new IllegalArgumentException(String.format("%s is already registered", primitive.name));
+		primitives.put(primitive.name, primitive);
+		if (primitive instanceof GrowablePrimitive)
+			(primitive.value ? valueGrowth : logicalGrowth).add((GrowablePrimitive)primitive);
+		if (primitive instanceof BinaryPrimitive)
+			comparisons.add((BinaryPrimitive)primitive);
 	}
 	
-	public static class ExpressionFactory {
-		public final static Grammar grammar = new Grammar();
-		
-		public static Expression build(Object input) throws InvalidSexpException {
-			Sexp sexp = null;
-			if (input.getClass() == String.class)
-				return grammar.new Literal((String)input);
-			else if (input instanceof Expression)
-				// Lazy man's copy by serializing to S-expression and reparsing
-				return build(((Expression) input).toSexp());
-			else if (input.getClass() == Sexp.class)
-				sexp = (Sexp)input;
-			else
-				throw new InvalidSexpException("This is not an S-expression or atom");
-			
-			String name = sexp.getFirstAtom();
-			if (name.equals(""))
-				throw new InvalidSexpException("Expression did not start with atom");
-			else if (name.equals(NoOp.name))
+	/**
+	 * @return The primitive registered under a name, or null.
+	 */
+	public static Primitive getPrimitive(String name) {
+		return primitives.get(name);
+	}
+	
+	/**
+	 * Grows a new primitive of the given type, as mutation does from noops.
+	 */
+	Expression grow(boolean value, MersenneTwisterFast generator) {
+		List<GrowablePrimitive> growth = value ? valueGrowth : logicalGrowth;
+		return growth.get(generator.nextInt(growth.size())).grow(this, generator);
+	}
+	
+	static {
+		register(new Primitive(NoOp.name, false, 0, 0) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
 				return grammar.new NoOp(sexp);
-			else if (name.equals(ValueNoOp.name))
+			}
+		});
+		register(new Primitive(ValueNoOp.name, true, 0, 0) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
 				return grammar.new ValueNoOp(sexp);
-			else if (name.equals(Step.name))
+			}
+		});
+		register(new Primitive(Step.name, false, 0, Integer.MAX_VALUE) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
 				return grammar.new Step(sexp);
-			else if (name.equals(If.name))
+			}
+		});
+		
+		// What noops grow into, in their original order
+		register(new GrowablePrimitive(If.name, false, 2, 3) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
 				return grammar.new If(sexp);
-			else if (name.equals(And.name))
+			}
+			
+			protected Expression grow(Grammar grammar, MersenneTwisterFast generator) {
+				return grammar.new If(grammar.new NoOp(), grammar.new NoOp(), null);
+			}
+		});
+		register(new GrowablePrimitive(And.name, false, 0, Integer.MAX_VALUE) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
 				return grammar.new And(sexp);
-			else if (name.equals(Or.name))
+			}
+			
+			protected Expression grow(Grammar grammar, MersenneTwisterFast generator) {
+				List<Expression> expressions = new ArrayList<Expression>(2);
+				expressions.add(grammar.new NoOp());
+				expressions.add(grammar.new NoOp());
+				return grammar.new And(expressions);
+			}
+		});
+		register(new GrowablePrimitive(Or.name, false, 0, Integer.MAX_VALUE) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
 				return grammar.new Or(sexp);
-			else if (name.equals(Not.name))
+			}
+			
+			protected Expression grow(Grammar grammar, MersenneTwisterFast generator) {
+				List<Expression> expressions = new ArrayList<Expression>(2);
+				expressions.add(grammar.new NoOp());
+				expressions.add(grammar.new NoOp());
+				return grammar.new Or(expressions);
+			}
+		});
+		register(new GrowablePrimitive(Not.name, false, 1, 1) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
 				return grammar.new Not(sexp);
-			else if (name.equals(Equals.name))
+			}
+			
+			protected Expression grow(Grammar grammar, MersenneTwisterFast generator) {
+				return grammar.new Not(grammar.new NoOp());
+			}
+		});
+		register(new BinaryPrimitive(Equals.name) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
 				return grammar.new Equals(sexp);
-			else if (name.equals(LessThan.name))
+			}
+			
+			protected BinaryOperator build(Grammar grammar, Expression left, Expression right) {
+				return grammar.new Equals(left, right);
+			}
+		});
+		register(new BinaryPrimitive(LessThan.name) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
 				return grammar.new LessThan(sexp);
-			else if (name.equals(LessThanOrEquals.name))
+			}
+			
+			protected BinaryOperator build(Grammar grammar, Expression left, Expression right) {
+				return grammar.new LessThan(left, right);
+			}
+		});
+		register(new BinaryPrimitive(LessThanOrEquals.name) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
 				return grammar.new LessThanOrEquals(sexp);
-			else if (name.equals(GreaterThan.name))
+			}
+			
+			protected BinaryOperator build(Grammar grammar, Expression left, Expression right) {
+				return grammar.new LessThanOrEquals(left, right);
+			}
+		});
+		register(new BinaryPrimitive(GreaterThan.name) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
 				return grammar.new GreaterThan(sexp);
-			else if (name.equals(GreaterThanOrEquals.name))
+			}
+			
+			protected BinaryOperator build(Grammar grammar, Expression left, Expression right) {
+				return grammar.new GreaterThan(left, right);
+			}
+		});
+		register(new BinaryPrimitive(GreaterThanOrEquals.name) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
 				return grammar.new GreaterThanOrEquals(sexp);
-			else if (name.equals(GetRange.name))
-				return grammar.new GetRange(sexp);
-			else if (name.equals(SetSpeed.name))
+			}
+			
+			protected BinaryOperator build(Grammar grammar, Expression left, Expression right) {
+				return grammar.new GreaterThanOrEquals(left, right);
+			}
+		});
+		register(new GrowablePrimitive(SetSpeed.name, false, 2, 2) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
 				return grammar.new SetSpeed(sexp);
-			else if (name.equals(InState.name))
+			}
+			
+			protected Expression grow(Grammar grammar, MersenneTwisterFast generator) {
+				return grammar.new SetSpeed(0.0, 0.0);
+			}
+		});
+		register(new GrowablePrimitive(Drop.name, false, 0, 0) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
+				return grammar.new Drop(sexp);
+			}
+			
+			protected Expression grow(Grammar grammar, MersenneTwisterFast generator) {
+				return grammar.new Drop();
+			}
+		});
+		register(new GrowablePrimitive(PickUp.name, false, 0, 0) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
+				return grammar.new PickUp(sexp);
+			}
+			
+			protected Expression grow(Grammar grammar, MersenneTwisterFast generator) {
+				return grammar.new PickUp();
+			}
+		});
+		register(new GrowablePrimitive(InState.name, false, 1, 1) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
 				return grammar.new InState(sexp);
-			else if (name.equals(IsCarrying.name)) {
-				System.err.printf("%s has been deprecated, use %s\n", IsCarrying.name, "inState");
-				return grammar.new IsCarrying(sexp);
-			} else if (name.equals(SetState.name))
+			}
+			
+			protected Expression grow(Grammar grammar, MersenneTwisterFast generator) {
+				Robot.State[] values = Robot.State.values();
+				return grammar.new InState(values[generator.nextInt(values.length)]);
+			}
+		});
+		register(new GrowablePrimitive(SetState.name, false, 1, 1) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
 				return grammar.new SetState(sexp);
-			else if (name.equals(GetMidpointInCamera.name))
+			}
+			
+			protected Expression grow(Grammar grammar, MersenneTwisterFast generator) {
+				Robot.State[] values = Robot.State.values();
+				return grammar.new SetState(values[generator.nextInt(values.length)]);
+			}
+		});
+		register(new Primitive(IsCarrying.name, false, 0, 0) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
+				System.err.printf("%s has been deprecated, use %s\n", IsCarrying.name, InState.name);
+				return grammar.new IsCarrying(sexp);
+			}
+		});
+		
+		// What vnoops grow into, in their original order
+		register(new GrowablePrimitive(GetRange.name, true, 1, 1) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
+				return grammar.new GetRange(sexp);
+			}
+			
+			protected Expression grow(Grammar grammar, MersenneTwisterFast generator) {
+				return grammar.new GetRange(0);
+			}
+		});
+		register(new GrowablePrimitive(GetMidpointInCamera.name, true, 0, 0) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
 				return grammar.new GetMidpointInCamera(sexp);
-			else if (name.equals(GetWidthInCamera.name))
+			}
+			
+			protected Expression grow(Grammar grammar, MersenneTwisterFast generator) {
+				return grammar.new GetMidpointInCamera();
+			}
+		});
+		register(new GrowablePrimitive(GetWidthInCamera.name, true, 0, 0) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
 				return grammar.new GetWidthInCamera(sexp);
-			else if (name.equals(GetDistanceTraveled.name))
+			}
+			
+			protected Expression grow(Grammar grammar, MersenneTwisterFast generator) {
+				return grammar.new GetWidthInCamera();
+			}
+		});
+		register(new GrowablePrimitive(GetDistanceTraveled.name, true, 0, 0) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
 				return grammar.new GetDistanceTraveled(sexp);
-			else if (name.equals(GetRotations.name))
+			}
+			
+			protected Expression grow(Grammar grammar, MersenneTwisterFast generator) {
+				return grammar.new GetDistanceTraveled();
+			}
+		});
+		register(new GrowablePrimitive(GetRotations.name, true, 0, 0) {
+			protected Expression build(Grammar grammar, Sexp sexp) throws InvalidSexpException {
 				return grammar.new GetRotations(sexp);
-			else if (name.equals(Drop.name))
-				return grammar.new Drop(sexp);
-			else if (name.equals(PickUp.name))
-				return grammar.new PickUp(sexp);
+			}
+			
+			protected Expression grow(Grammar grammar, MersenneTwisterFast generator) {
+				return grammar.new GetRotations();
+			}
+		});
+	}
+	
+	public static class ExpressionFactory {
+		/**
+		 * Outer instance for building the inner expression classes. Grammar
+		 * has no fields, so this is safe to share between simulation threads.
+		 */
+		public final static Grammar grammar = new Grammar();
+		
+		public static Expression build(Object input) throws InvalidSexpException {
+			Sexp sexp = null;
+			if (input.getClass() == String.class)
+				return grammar.new Literal((String)input);
+			else if (input instanceof Expression)
+				return ((Expression) input).copy();
+			else if (input.getClass() == Sexp.class)
+				sexp = (Sexp)input;
 			else
+				throw new InvalidSexpException("This is not an S-expression or atom");
+			
+			String name = sexp.getFirstAtom();
+			if (name.equals(""))
+				throw new InvalidSexpException("Expression did not start with atom");
+			Primitive primitive = primitives.get(name);
+			if (primitive == null)
 				throw new InvalidSexpException(String.format("Unexpected expression name '%s'", name));
+			int arguments = sexp.getChildrenAfterFirst().size();
+			if (arguments < primitive.minArguments || arguments > primitive.maxArguments)
+				throw new InvalidSexpException(String.format("%s takes %s arguments, got %d", name, primitive.describeArguments(), arguments));
+			return primitive.build(grammar, sexp);
+		}
+		
+		/**
+		 * Builds a whole strategy and type-checks it, once, so that it can
+		 * be evaluated from then on without any checks. The genetic
+		 * operators only swap like for like, so offspring stay well-typed.
+		 * 
+		 * @throws InvalidSexpException If it isn't a well-typed step.
+		 */
+		public static Step buildStep(Object input) throws InvalidSexpException {
+			Expression expression = build(input);
+			if (!(expression instanceof Step))
+				throw new InvalidSexpException(String.format("Expected '%s', found '%s'", Step.name, expression.name));
+			expression.typecheck();
+			return (Step) expression;
 		}
 	}
 	
@@ -134,13 +1194,25 @@ public class Grammar {
 			this.value = Double.parseDouble(value);
 		}
 		
-		public double getValue(Robot robot) {
+		public Literal(double value) {
+			this.value = value;
+		}
+		
+		public double getValue(Agent robot) {
+			return value;
+		}
+		
+		protected Double getConstantValue() {
 			return value;
 		}
 		
 		public String toString() {
 			return Double.toString(value);
 		}
+		
+		protected void compileValue(Program program) {
+			program.emitConstant(value);
+		}
 
 		@Override
 		public Object toSexp() {
@@ -148,14 +1220,29 @@ public class Grammar {
 		}
 
 		@Override
-		public Object mutate(double rate, MersenneTwisterFast generator) {
-			if (generator.nextDouble() < rate)
+		public Expression mutate(double rate, MersenneTwisterFast generator) {
+			if (generator.nextDouble() < rate) {
+				double mutantValue;
 				if (value == 0.0)
-					return Double.toString(generator.nextDouble()*0.2 - 0.1);
+					mutantValue = generator.nextDouble()*0.2 - 0.1;
 				else
-					return Double.toString(value*(generator.nextDouble() + 0.5));
-			else
-				return toSexp();
+					mutantValue = value*(generator.nextDouble() + 0.5);
+				return new Literal(mutantValue).setMutated(mutantValue != value);
+			} else
+				return copy();
+		}
+		
+		@Override
+		public Expression copy() {
+			return new Literal(value);
+		}
+		
+		protected void collect(Expression parent, List<Expression> nodes, List<Expression> parents) {
+			// Literals are arguments, not crossover points
+		}
+		
+		protected boolean isValue() {
+			return true;
 		}
 	}
 	
@@ -167,6 +1254,10 @@ public class Grammar {
 				throw new InvalidSexpException(String.format("%s takes no arguments", name));
 			}
 		}
+		
+		protected LeafExpression(String name) {
+			super(name);
+		}
 
 		@Override
 		public Object toSexp() {
@@ -174,9 +1265,9 @@ public class Grammar {
 		}
 
 		@Override
-		public Object mutate(double rate, MersenneTwisterFast generator) {
+		public Expression mutate(double rate, MersenneTwisterFast generator) {
 			// By default don't mutate leaves
-			return toSexp();
+			return copy();
 		}
 	}
 	
@@ -187,46 +1278,38 @@ public class Grammar {
 			super(sexp, name);
 		}
 		
-		public Boolean eval(Robot robot) {
+		public NoOp() {
+			super(name);
+		}
+		
+		public boolean eval(Agent robot) {
+			return true;
+		}
+		
+		protected void compile(Program program) {
+			program.emit(Program.TRUE);
+		}
+		
+		protected Boolean getConstantResult() {
+			return true;
+		}
+		
+		protected boolean isPure() {
 			return true;
 		}
 
 		@Override
-		public Object mutate(double rate, MersenneTwisterFast generator) {
+		public Expression mutate(double rate, MersenneTwisterFast generator) {
 			// Much higher mutation rate, so we "grow" from no-ops
-			if (generator.nextDouble() < 0.5) {
-				final String[] names = {If.name, And.name, Or.name, Not.name,
-										Equals.name, LessThan.name, LessThanOrEquals.name,
-										GreaterThan.name, GreaterThanOrEquals.name,
-										SetSpeed.name, Drop.name, PickUp.name,
-										InState.name, SetState.name};
-				String mutantName = names[generator.nextInt(names.length)];
-				List<Object> children = new ArrayList<Object>();
-				if (mutantName.equals(If.name) ||
-					mutantName.equals(And.name) ||
-					mutantName.equals(Or.name)) {
-					children.add(new Sexp(NoOp.name, new ArrayList<Object>()));
-					children.add(new Sexp(NoOp.name, new ArrayList<Object>()));
-				} else if (mutantName.equals(Not.name))
-					children.add(new Sexp(NoOp.name, new ArrayList<Object>()));
-				else if (mutantName.equals(Equals.name) ||
-						 mutantName.equals(LessThan.name) ||
-						 mutantName.equals(LessThanOrEquals.name) ||
-						 mutantName.equals(GreaterThan.name) ||
-						 mutantName.equals(GreaterThanOrEquals.name)) {
-					children.add(new Sexp(ValueNoOp.name, new ArrayList<Object>()));
-					children.add("0.0");
-				} else if (mutantName.equals(SetSpeed.name)) {
-					children.add("0.0");
-					children.add("0.0");
-				} else if (mutantName.equals(InState.name) ||
-						   mutantName.equals(SetState.name)) {
-					Robot.State[] values = Robot.State.values();
-					children.add(values[generator.nextInt(values.length)].toString().toLowerCase());
-				}
-				return new Sexp(mutantName, children);
-			} else
-				return toSexp();
+			if (generator.nextDouble() < 0.5)
+				return grow(false, generator).setMutated(true);
+			else
+				return copy();
+		}
+		
+		@Override
+		public Expression copy() {
+			return new NoOp();
 		}
 	}
 	
@@ -237,23 +1320,34 @@ public class Grammar {
 			super(sexp, name);
 		}
 		
-		public double getValue(Robot robot) {
+		public ValueNoOp() {
+			super(name);
+		}
+		
+		public double getValue(Agent robot) {
+			return 0.0;
+		}
+		
+		protected void compileValue(Program program) {
+			program.emitConstant(0.0);
+		}
+		
+		protected Double getConstantValue() {
 			return 0.0;
 		}
 
 		@Override
-		public Object mutate(double rate, MersenneTwisterFast generator) {
+		public Expression mutate(double rate, MersenneTwisterFast generator) {
 			// Much higher mutation rate, so we "grow" from no-ops
-			if (generator.nextDouble() < 0.5) {
-				final String[] names = {GetRange.name, GetMidpointInCamera.name, GetWidthInCamera.name,
-										GetDistanceTraveled.name, GetRotations.name};
-				String mutantName = names[generator.nextInt(names.length)];
-				List<Object> children = new ArrayList<Object>();
-				if (mutantName.equals(GetRange.name))
-					children.add("0");
-				return new Sexp(mutantName, children);
-			} else
-				return toSexp();
+			if (generator.nextDouble() < 0.5)
+				return grow(true, generator).setMutated(true);
+			else
+				return copy();
+		}
+		
+		@Override
+		public Expression copy() {
+			return new ValueNoOp();
 		}
 	}
 	
@@ -271,6 +1365,17 @@ public class Grammar {
 				}
 			}
 		}
+		
+		protected ListExpression(String name, List<Expression> expressions) {
+			super(name);
+			this.expressions = expressions;
+		}
+		
+		/**
+		 * Expected to be overridden by subclasses to build another instance
+		 * of themselves around the given expressions.
+		 */
+		protected abstract ListExpression create(List<Expression> expressions);
 
 		@Override
 		public Object toSexp() {
@@ -281,17 +1386,91 @@ public class Grammar {
 			return new Sexp(this.name, children);
 		}
 		
+		protected void write(Sexp.Printer printer) throws IOException {
+			printer.open();
+			printer.atom(name);
+			for (int e = 0; e < expressions.size(); e++)
+				expressions.get(e).write(printer);
+			printer.close();
+		}
+		
 		@Override
-		public Object mutate(double rate, MersenneTwisterFast generator) {
-			List<Object> children = new ArrayList<Object>();
+		public Expression mutate(double rate, MersenneTwisterFast generator) {
+			List<Expression> children = new ArrayList<Expression>(expressions.size());
 			int deleteIndex = -1;
 			if (generator.nextDouble() < rate && expressions.size() > 0)
 				// Delete one child
 				deleteIndex = generator.nextInt(expressions.size());
-			for (Expression expression: expressions)
-				if (deleteIndex == -1 || expressions.indexOf(expression) != deleteIndex)
-					children.add(expression.mutate(rate, generator));
-			return new Sexp(this.name, children);
+			boolean mutated = deleteIndex >= 0;
+			for (int e = 0; e < expressions.size(); e++)
+				if (e != deleteIndex) {
+					Expression child = expressions.get(e).mutate(rate, generator);
+					mutated |= child.isMutated();
+					children.add(child);
+				}
+			return create(children).setMutated(mutated);
+		}
+		
+		@Override
+		public Expression copy() {
+			List<Expression> children = new ArrayList<Expression>(expressions.size());
+			for (int e = 0; e < expressions.size(); e++)
+				children.add(expressions.get(e).copy());
+			return create(children);
+		}
+		
+		protected void collect(Expression parent, List<Expression> nodes, List<Expression> parents) {
+			super.collect(parent, nodes, parents);
+			for (int e = 0; e < expressions.size(); e++)
+				expressions.get(e).collect(this, nodes, parents);
+		}
+		
+		protected void replace(Expression child, Expression replacement) {
+			for (int e = 0; e < expressions.size(); e++)
+				if (expressions.get(e) == child)
+					expressions.set(e, replacement);
+		}
+		
+		protected boolean isPure() {
+			for (int e = 0; e < expressions.size(); e++)
+				if (!expressions.get(e).isPure())
+					return false;
+			return true;
+		}
+		
+		protected void typecheck() throws InvalidSexpException {
+			for (int e = 0; e < expressions.size(); e++)
+				checkLogical(expressions.get(e));
+		}
+		
+		public int countNodes() {
+			int count = 1;
+			for (int e = 0; e < expressions.size(); e++)
+				count += expressions.get(e).countNodes();
+			return count;
+		}
+		
+		public int getDepth() {
+			int deepest = 0;
+			for (int e = 0; e < expressions.size(); e++)
+				deepest = Math.max(deepest, expressions.get(e).getDepth());
+			return 1 + deepest;
+		}
+		
+		/**
+		 * Optimizes each expression, inlining any that are of the same
+		 * kind as this one, e.g. (and a (and b c)) becomes (and a b c).
+		 */
+		protected List<Expression> optimizeAndInline() {
+			List<Expression> optimized = new ArrayList<Expression>(expressions.size());
+			for (int e = 0; e < expressions.size(); e++) {
+				Expression expression = expressions.get(e).optimize();
+				if (expression.getClass() == getClass())
+					optimized.addAll(((ListExpression) expression).expressions);
+				else
+					optimized.add(expression);
+			}
+			return optimized;
 		}
 	}
 	
@@ -302,46 +1481,165 @@ public class Grammar {
 			super(sexp, name);
 		}
 		
-		public Boolean eval(Robot robot) throws InvalidSexpException {
-			// Evaluate each expression in turn
-			Boolean success = true;
+		public Step(List<Expression> expressions) {
+			super(name, expressions);
+		}
+		
+		protected ListExpression create(List<Expression> expressions) {
+			return new Step(expressions);
+		}
+		
+		@Override
+		public Step mutate(double rate, MersenneTwisterFast generator) {
+			return (Step) super.mutate(rate, generator);
+		}
+		
+		@Override
+		public Step copy() {
+			return (Step) super.copy();
+		}
+		
+		protected void collect(Expression parent, List<Expression> nodes, List<Expression> parents) {
+			// Only the contents of a step are crossover points
+			for (int e = 0; e < expressions.size(); e++)
+				expressions.get(e).collect(this, nodes, parents);
+		}
+		
+		public boolean eval(Agent robot) {
+			// Evaluate each expression in turn
+			boolean success = true;
+			for (int e = 0; e < expressions.size(); e++) {
+				success = expressions.get(e).eval(robot) && success;
+			}
+			return success;
+		}
+		
+		protected Boolean getConstantResult() {
+			// Every expression is evaluated, so any false one decides it
+			Boolean result = true;
+			for (int e = 0; e < expressions.size(); e++) {
+				Boolean expressionResult = expressions.get(e).getConstantResult();
+				if (expressionResult == null)
+					result = null;
+				else if (!expressionResult)
+					return false;
+			}
+			return result;
+		}
+		
+		protected Expression optimize() {
+			Step optimized = optimize(true);
+			if (optimized.expressions.size() == 1)
+				return optimized.expressions.get(0);
+			return optimized;
+		}
+		
+		/**
+		 * @param resultUsed False for a whole strategy, whose result is
+		 * ignored, so anything pure can go.
+		 */
+		private Step optimize(boolean resultUsed) {
+			List<Expression> kept = new ArrayList<Expression>();
+			for (Expression expression: optimizeAndInline())
+				if (!expression.isPure() || (resultUsed && !Boolean.TRUE.equals(expression.getConstantResult())))
+					kept.add(expression);
+			return new Step(kept);
+		}
+		
+		/**
+		 * The optimized form of this strategy, once it's been asked for.
+		 */
+		private Step optimized = null;
+		
+		/**
+		 * Optimizes this strategy once and caches the result: constant
+		 * comparisons and branches are folded, nested ands, ors, steps and
+		 * nots are flattened, and code that can't run or has no effect is
+		 * removed. Robots behave exactly as they would running this strategy.
+		 * 
+		 * @return A separate tree, so this one can go on evolving.
+		 */
+		public synchronized Step getOptimized() {
+			if (optimized == null)
+				optimized = optimize(false);
+			return optimized;
+		}
+		
+		/**
+		 * Whether compilation has been attempted, and its result (if any).
+		 */
+		private boolean compiled = false;
+		
+		private Program program = null;
+		
+		/**
+		 * Compiles this strategy once and caches the result.
+		 * 
+		 * @return The compiled program, or null if this step can't be
+		 * compiled and must be interpreted.
+		 */
+		public synchronized Program getProgram() {
+			if (!compiled) {
+				compiled = true;
+				try {
+					program = new Program(this);
+				} catch (InvalidSexpException e) {
+					System.err.println(e.getMessage());
+				}
+			}
+			return program;
+		}
+		
+		protected void compile(Program program) {
+			// Every expression is evaluated, so there are no jumps
+			program.emit(Program.TRUE);
 			for (Expression step: expressions) {
-				success = step.eval(robot) && success;
+				step.compile(program);
+				program.emit(Program.AND);
 			}
-			return success;
 		}
 		
+		/**
+		 * Swaps a random subtree of this step with one of the same kind
+		 * (logical or value) from the mate. The parents are left unchanged.
+		 * 
+		 * @return The two offspring.
+		 */
 		public List<Step> crossover(Step mate, MersenneTwisterFast generator) {
-			// Crossover at the S-expression level (easier)
-			Sexp sexp = (Sexp) toSexp();
-			Sexp mateSexp = (Sexp) mate.toSexp();
+			Step child = copy();
+			Step mateChild = mate.copy();
 			
 			// Find crossover points
-			Sexp crossover = sexp.selectRandomNode(generator, false, false);
-			Sexp mateCrossover = null;
-			String crossoverName = crossover.getFirstAtom();
-			if (crossoverName.equals(ValueNoOp.name) ||
-				crossoverName.equals(GetRange.name) ||
-				crossoverName.equals(GetMidpointInCamera.name) ||
-				crossoverName.equals(GetWidthInCamera.name) ||
-				crossoverName.equals(GetDistanceTraveled.name) ||
-				crossoverName.equals(GetRotations.name))
-				mateCrossover = mateSexp.selectRandomNode(generator, false, true);
-			else
-				mateCrossover = mateSexp.selectRandomNode(generator, true, false);
-			
-			// Perform the crossover
-			Sexp.swap(crossover, mateCrossover);
+			List<Expression> nodes = new ArrayList<Expression>();
+			List<Expression> parents = new ArrayList<Expression>();
+			child.collect(null, nodes, parents);
+			if (nodes.size() > 0) {
+				int index = generator.nextInt(nodes.size());
+				Expression crossover = nodes.get(index);
+				
+				List<Expression> mateNodes = new ArrayList<Expression>();
+				List<Expression> mateParents = new ArrayList<Expression>();
+				mateChild.collect(null, mateNodes, mateParents);
+				List<Expression> candidates = new ArrayList<Expression>(mateNodes.size());
+				List<Expression> candidateParents = new ArrayList<Expression>(mateNodes.size());
+				for (int n = 0; n < mateNodes.size(); n++)
+					if (mateNodes.get(n).isValue() == crossover.isValue()) {
+						candidates.add(mateNodes.get(n));
+						candidateParents.add(mateParents.get(n));
+					}
+				
+				// Perform the crossover
+				if (candidates.size() > 0) {
+					int mateIndex = generator.nextInt(candidates.size());
+					Expression mateCrossover = candidates.get(mateIndex);
+					parents.get(index).replace(crossover, mateCrossover);
+					candidateParents.get(mateIndex).replace(mateCrossover, crossover);
+				}
+			}
 			
-			// Convert the offspring back to Steps
 			List<Step> children = new ArrayList<Step>(2);
-			try {
-				children.add(new Step(sexp));
-				children.add(new Step(mateSexp));
-			} catch (InvalidSexpException e) {
-				// This shouldn't happen
-				System.err.println(e.getMessage());
-			}
+			children.add(child);
+			children.add(mateChild);
 			return children;
 		}
 	}
@@ -375,7 +1673,17 @@ public class Grammar {
 			}
 		}
 		
-		public Boolean eval(Robot robot) throws InvalidSexpException {
+		/**
+		 * @param alternative Can be null.
+		 */
+		public If(Expression predicate, Expression consequent, Expression alternative) {
+			super(name);
+			this.predicate = predicate;
+			this.consequent = consequent;
+			this.alternative = alternative;
+		}
+		
+		public boolean eval(Agent robot) {
 			if (predicate.eval(robot)) {
 				return consequent.eval(robot);
 			} else if (alternative != null) {
@@ -384,6 +1692,84 @@ public class Grammar {
 				return false;
 			}
 		}
+		
+		protected Boolean getConstantResult() {
+			Boolean condition = predicate.getConstantResult();
+			Boolean consequentResult = consequent.getConstantResult();
+			Boolean alternativeResult = alternative != null ? alternative.getConstantResult() : Boolean.FALSE;
+			if (condition != null)
+				return condition ? consequentResult : alternativeResult;
+			else if (consequentResult != null && consequentResult.equals(alternativeResult))
+				return consequentResult;
+			return null;
+		}
+		
+		protected boolean isPure() {
+			return predicate.isPure() && consequent.isPure() && (alternative == null || alternative.isPure());
+		}
+		
+		protected void typecheck() throws InvalidSexpException {
+			checkLogical(predicate);
+			checkLogical(consequent);
+			if (alternative != null)
+				checkLogical(alternative);
+		}
+		
+		public int countNodes() {
+			return 1 + predicate.countNodes() + consequent.countNodes() + (alternative != null ? alternative.countNodes() : 0);
+		}
+		
+		public int getDepth() {
+			int deepest = Math.max(predicate.getDepth(), consequent.getDepth());
+			if (alternative != null)
+				deepest = Math.max(deepest, alternative.getDepth());
+			return 1 + deepest;
+		}
+		
+		protected Expression optimize() {
+			Expression optimizedPredicate = predicate.optimize();
+			Expression optimizedConsequent = consequent.optimize();
+			Expression optimizedAlternative = alternative != null ? alternative.optimize() : null;
+			Boolean condition = optimizedPredicate.getConstantResult();
+			if (condition == null)
+				return new If(optimizedPredicate, optimizedConsequent, optimizedAlternative);
+			
+			// Only one branch can ever run
+			Expression taken;
+			if (condition)
+				taken = optimizedConsequent;
+			else if (optimizedAlternative != null)
+				taken = optimizedAlternative;
+			else
+				taken = newConstant(false);
+			if (optimizedPredicate.isPure())
+				return taken;
+			
+			// The predicate still has to run first, for its side effects
+			List<Expression> expressions = new ArrayList<Expression>(2);
+			expressions.add(optimizedPredicate);
+			if (condition) {
+				expressions.add(taken);
+				return new And(expressions).optimize();
+			} else if (optimizedAlternative != null) {
+				expressions.add(taken);
+				return new Or(expressions).optimize();
+			} else
+				return optimizedPredicate;
+		}
+		
+		protected void compile(Program program) {
+			predicate.compile(program);
+			int toAlternative = program.emitJump(Program.JUMP_IF_FALSE);
+			consequent.compile(program);
+			int toEnd = program.emitJump(Program.JUMP);
+			program.patch(toAlternative);
+			if (alternative != null)
+				alternative.compile(program);
+			else
+				program.emit(Program.FALSE);
+			program.patch(toEnd);
+		}
 
 		@Override
 		public Object toSexp() {
@@ -395,36 +1781,67 @@ public class Grammar {
 				children.add(alternative.toSexp());
 			return new Sexp(name, children);
 		}
+		
+		protected void write(Sexp.Printer printer) throws IOException {
+			printer.open();
+			printer.atom(name);
+			predicate.write(printer);
+			consequent.write(printer);
+			if (alternative != null)
+				alternative.write(printer);
+			printer.close();
+		}
 
 		@Override
-		public Object mutate(double rate, MersenneTwisterFast generator) {
-			List<Object> children = new ArrayList<Object>();
-			children.add(predicate.mutate(rate, generator));
+		public Expression mutate(double rate, MersenneTwisterFast generator) {
+			// Mutate in the same order as the arguments appear
+			Expression mutantPredicate = predicate.mutate(rate, generator);
 			if (generator.nextDouble() < rate) {
 				if (generator.nextDouble() < 0.5) {
 					// Reverse condition
 					if (alternative != null) {
-						children.add(alternative.mutate(rate, generator));
-						children.add(consequent.mutate(rate, generator));
-					} else {
-						children.add(new Sexp(NoOp.name, new ArrayList<Object>()));
-						children.add(consequent.mutate(rate, generator));
-					}
+						Expression mutantAlternative = alternative.mutate(rate, generator);
+						return new If(mutantPredicate, mutantAlternative, consequent.mutate(rate, generator)).setMutated(true);
+					} else
+						return new If(mutantPredicate, new NoOp(), consequent.mutate(rate, generator)).setMutated(true);
 				} else {
 					// Add/delete alternative
 					if (alternative != null)
-						children.add(consequent.mutate(rate, generator));
-					else {
-						children.add(consequent.mutate(rate, generator));
-						children.add(new Sexp(NoOp.name, new ArrayList<Object>()));
-					}
+						return new If(mutantPredicate, consequent.mutate(rate, generator), null).setMutated(true);
+					else
+						return new If(mutantPredicate, consequent.mutate(rate, generator), new NoOp()).setMutated(true);
 				}
 			} else {
-				children.add(consequent.mutate(rate, generator));
-				if (alternative != null)
-					children.add(alternative.mutate(rate, generator));
+				Expression mutantConsequent = consequent.mutate(rate, generator);
+				boolean mutated = mutantPredicate.isMutated() || mutantConsequent.isMutated();
+				if (alternative != null) {
+					Expression mutantAlternative = alternative.mutate(rate, generator);
+					return new If(mutantPredicate, mutantConsequent, mutantAlternative).setMutated(mutated || mutantAlternative.isMutated());
+				} else
+					return new If(mutantPredicate, mutantConsequent, null).setMutated(mutated);
 			}
-			return new Sexp(name, children);
+		}
+		
+		@Override
+		public Expression copy() {
+			return new If(predicate.copy(), consequent.copy(), alternative != null ? alternative.copy() : null);
+		}
+		
+		protected void collect(Expression parent, List<Expression> nodes, List<Expression> parents) {
+			super.collect(parent, nodes, parents);
+			predicate.collect(this, nodes, parents);
+			consequent.collect(this, nodes, parents);
+			if (alternative != null)
+				alternative.collect(this, nodes, parents);
+		}
+		
+		protected void replace(Expression child, Expression replacement) {
+			if (predicate == child)
+				predicate = replacement;
+			else if (consequent == child)
+				consequent = replacement;
+			else if (alternative == child)
+				alternative = replacement;
 		}
 	}
 	
@@ -435,15 +1852,65 @@ public class Grammar {
 			super(sexp, name);
 		}
 		
-		public Boolean eval(Robot robot) throws InvalidSexpException {
+		public And(List<Expression> expressions) {
+			super(name, expressions);
+		}
+		
+		protected ListExpression create(List<Expression> expressions) {
+			return new And(expressions);
+		}
+		
+		public boolean eval(Agent robot) {
 			// Evaluate each expression in turn, but short-circuit if one is false
-			for (Expression expression: expressions) {
-				if (!expression.eval(robot)) {
+			for (int e = 0; e < expressions.size(); e++) {
+				if (!expressions.get(e).eval(robot)) {
 					return false;
 				}
 			}
 			return true;
 		}
+		
+		protected Boolean getConstantResult() {
+			for (int e = 0; e < expressions.size(); e++) {
+				Boolean result = expressions.get(e).getConstantResult();
+				if (result == null || !result)
+					return result;
+			}
+			return true;
+		}
+		
+		protected Expression optimize() {
+			// Drop anything true and pure, and everything after anything false
+			List<Expression> kept = new ArrayList<Expression>();
+			for (Expression expression: optimizeAndInline()) {
+				Boolean result = expression.getConstantResult();
+				if (Boolean.TRUE.equals(result) && expression.isPure())
+					continue;
+				kept.add(expression);
+				if (Boolean.FALSE.equals(result))
+					break;
+			}
+			if (kept.size() == 1)
+				return kept.get(0);
+			return new And(kept);
+		}
+		
+		protected void compile(Program program) {
+			if (expressions.size() == 0) {
+				program.emit(Program.TRUE);
+				return;
+			}
+			
+			// Short-circuit to the end, leaving the false result on the stack
+			List<Integer> toEnd = new ArrayList<Integer>();
+			for (int e = 0; e < expressions.size(); e++) {
+				expressions.get(e).compile(program);
+				if (e < expressions.size() - 1)
+					toEnd.add(program.emitJump(Program.JUMP_IF_FALSE_ELSE_POP));
+			}
+			for (int target: toEnd)
+				program.patch(target);
+		}
 	}
 	
 	public class Or extends ListExpression {
@@ -454,15 +1921,65 @@ public class Grammar {
 
 		}
 		
-		public Boolean eval(Robot robot) throws InvalidSexpException {
+		public Or(List<Expression> expressions) {
+			super(name, expressions);
+		}
+		
+		protected ListExpression create(List<Expression> expressions) {
+			return new Or(expressions);
+		}
+		
+		public boolean eval(Agent robot) {
 			// Evaluate each expression in turn, but short-circuit once one is true
-			for (Expression expression: expressions) {
-				if (expression.eval(robot)) {
+			for (int e = 0; e < expressions.size(); e++) {
+				if (expressions.get(e).eval(robot)) {
 					return true;
 				}
 			}
 			return false;
 		}
+		
+		protected Boolean getConstantResult() {
+			for (int e = 0; e < expressions.size(); e++) {
+				Boolean result = expressions.get(e).getConstantResult();
+				if (result == null || result)
+					return result;
+			}
+			return false;
+		}
+		
+		protected Expression optimize() {
+			// Drop anything false and pure, and everything after anything true
+			List<Expression> kept = new ArrayList<Expression>();
+			for (Expression expression: optimizeAndInline()) {
+				Boolean result = expression.getConstantResult();
+				if (Boolean.FALSE.equals(result) && expression.isPure())
+					continue;
+				kept.add(expression);
+				if (Boolean.TRUE.equals(result))
+					break;
+			}
+			if (kept.size() == 1)
+				return kept.get(0);
+			return new Or(kept);
+		}
+		
+		protected void compile(Program program) {
+			if (expressions.size() == 0) {
+				program.emit(Program.FALSE);
+				return;
+			}
+			
+			// Short-circuit to the end, leaving the true result on the stack
+			List<Integer> toEnd = new ArrayList<Integer>();
+			for (int e = 0; e < expressions.size(); e++) {
+				expressions.get(e).compile(program);
+				if (e < expressions.size() - 1)
+					toEnd.add(program.emitJump(Program.JUMP_IF_TRUE_ELSE_POP));
+			}
+			for (int target: toEnd)
+				program.patch(target);
+		}
 	}
 	
 	public class Not extends Expression {
@@ -482,9 +1999,50 @@ public class Grammar {
 			expression = ExpressionFactory.build((Sexp)contents.get(0));
 		}
 		
-		public Boolean eval(Robot robot) throws InvalidSexpException {
+		public Not(Expression expression) {
+			super(name);
+			this.expression = expression;
+		}
+		
+		public boolean eval(Agent robot) {
 			return !expression.eval(robot);
 		}
+		
+		protected Boolean getConstantResult() {
+			Boolean result = expression.getConstantResult();
+			return result != null ? !result : null;
+		}
+		
+		protected boolean isPure() {
+			return expression.isPure();
+		}
+		
+		protected void typecheck() throws InvalidSexpException {
+			checkLogical(expression);
+		}
+		
+		public int countNodes() {
+			return 1 + expression.countNodes();
+		}
+		
+		public int getDepth() {
+			return 1 + expression.getDepth();
+		}
+		
+		protected Expression optimize() {
+			Expression optimized = expression.optimize();
+			if (optimized instanceof Not)
+				// Double negation
+				return ((Not) optimized).expression;
+			if (optimized.getConstantResult() != null && optimized.isPure())
+				return newConstant(!optimized.getConstantResult());
+			return new Not(optimized);
+		}
+		
+		protected void compile(Program program) {
+			expression.compile(program);
+			program.emit(Program.NOT);
+		}
 
 		@Override
 		public Object toSexp() {
@@ -492,18 +2050,47 @@ public class Grammar {
 			children.add(expression.toSexp());
 			return new Sexp(name, children);
 		}
+		
+		protected void write(Sexp.Printer printer) throws IOException {
+			printer.open();
+			printer.atom(name);
+			expression.write(printer);
+			printer.close();
+		}
 
 		@Override
-		public Object mutate(double rate, MersenneTwisterFast generator) {
+		public Expression mutate(double rate, MersenneTwisterFast generator) {
 			// Possibly negate
 			if (generator.nextDouble() < rate)
-				return expression.mutate(rate, generator);
+				return expression.mutate(rate, generator).setMutated(true);
 			else {
-				List<Object> children = new ArrayList<Object>();
-				children.add(expression.mutate(rate, generator));
-				return new Sexp(name, children);
+				Expression mutantExpression = expression.mutate(rate, generator);
+				return new Not(mutantExpression).setMutated(mutantExpression.isMutated());
 			}
 		}
+		
+		@Override
+		public Expression copy() {
+			return new Not(expression.copy());
+		}
+		
+		protected void collect(Expression parent, List<Expression> nodes, List<Expression> parents) {
+			super.collect(parent, nodes, parents);
+			expression.collect(this, nodes, parents);
+		}
+		
+		protected void replace(Expression child, Expression replacement) {
+			if (expression == child)
+				expression = replacement;
+		}
+	}
+	
+	/**
+	 * Builds the comparison with the given name, e.g. when mutating
+	 * one comparison into another.
+	 */
+	BinaryOperator newBinaryOperator(String name, Expression left, Expression right) {
+		return ((BinaryPrimitive)primitives.get(name)).build(this, left, right);
 	}
 	
 	public abstract class BinaryOperator extends Expression {
@@ -524,6 +2111,12 @@ public class Grammar {
 
 			this.right = ExpressionFactory.build(contents.get(1));
 		}
+		
+		protected BinaryOperator(String name, Expression left, Expression right) {
+			super(name);
+			this.left = left;
+			this.right = right;
+		}
 
 		@Override
 		public Object toSexp() {
@@ -533,20 +2126,79 @@ public class Grammar {
 			children.add(right.toSexp());
 			return new Sexp(this.name, children);
 		}
+		
+		protected void write(Sexp.Printer printer) throws IOException {
+			printer.open();
+			printer.atom(name);
+			left.write(printer);
+			right.write(printer);
+			printer.close();
+		}
 
 		@Override
-		public Object mutate(double rate, MersenneTwisterFast generator) {
+		public Expression mutate(double rate, MersenneTwisterFast generator) {
 			// Possibly become a different binop
-			String mutantName = this.name;
-			if (generator.nextDouble() < rate) {
-				final String[] names = {Equals.name, LessThan.name, LessThanOrEquals.name,
-										GreaterThan.name, GreaterThanOrEquals.name};
-				mutantName = names[generator.nextInt(names.length)];
-			}
-			List<Object> children = new ArrayList<Object>();
-			children.add(left.mutate(rate, generator));
-			children.add(right.mutate(rate, generator));
-			return new Sexp(mutantName, children);
+			BinaryPrimitive mutant = (BinaryPrimitive)primitives.get(this.name);
+			if (generator.nextDouble() < rate)
+				mutant = comparisons.get(generator.nextInt(comparisons.size()));
+			Expression mutantLeft = left.mutate(rate, generator), mutantRight = right.mutate(rate, generator);
+			boolean mutated = !mutant.name.equals(this.name) || mutantLeft.isMutated() || mutantRight.isMutated();
+			return mutant.build(Grammar.this, mutantLeft, mutantRight).setMutated(mutated);
+		}
+		
+		@Override
+		public Expression copy() {
+			return newBinaryOperator(this.name, left.copy(), right.copy());
+		}
+		
+		protected void collect(Expression parent, List<Expression> nodes, List<Expression> parents) {
+			super.collect(parent, nodes, parents);
+			left.collect(this, nodes, parents);
+			right.collect(this, nodes, parents);
+		}
+		
+		protected void replace(Expression child, Expression replacement) {
+			if (left == child)
+				left = replacement;
+			else if (right == child)
+				right = replacement;
+		}
+		
+		protected Boolean getConstantResult() {
+			if (left.getConstantValue() == null || right.getConstantValue() == null)
+				return null;
+			// Constant operands don't look at the robot
+			return eval(null);
+		}
+		
+		protected boolean isPure() {
+			return isOperand(left) && isOperand(right);
+		}
+		
+		protected void typecheck() throws InvalidSexpException {
+			checkValue(left);
+			checkValue(right);
+		}
+		
+		/**
+		 * @return Whether getValue() won't throw.
+		 */
+		private boolean isOperand(Expression operand) {
+			return operand.isValue() || operand.getConstantValue() != null;
+		}
+		
+		public int countNodes() {
+			return 1 + left.countNodes() + right.countNodes();
+		}
+		
+		public int getDepth() {
+			return 1 + Math.max(left.getDepth(), right.getDepth());
+		}
+		
+		protected Expression optimize() {
+			if (getConstantResult() != null && isPure())
+				return newConstant(getConstantResult());
+			return this;
 		}
 	}
 	
@@ -557,9 +2209,19 @@ public class Grammar {
 			super(sexp, name);
 		}
 		
-		public Boolean eval(Robot robot) throws InvalidSexpException {
+		public Equals(Expression left, Expression right) {
+			super(name, left, right);
+		}
+		
+		public boolean eval(Agent robot) {
 			return left.getValue(robot) == right.getValue(robot);
 		}
+		
+		protected void compile(Program program) {
+			program.emitCompare(Program.EQ);
+			left.compileValue(program);
+			right.compileValue(program);
+		}
 	}
 	
 	public class LessThan extends BinaryOperator {
@@ -569,9 +2231,19 @@ public class Grammar {
 			super(sexp, name);
 		}
 		
-		public Boolean eval(Robot robot) throws InvalidSexpException {
+		public LessThan(Expression left, Expression right) {
+			super(name, left, right);
+		}
+		
+		public boolean eval(Agent robot) {
 			return left.getValue(robot) < right.getValue(robot);
 		}
+		
+		protected void compile(Program program) {
+			program.emitCompare(Program.LT);
+			left.compileValue(program);
+			right.compileValue(program);
+		}
 	}
 
 	public class LessThanOrEquals extends BinaryOperator {
@@ -581,9 +2253,19 @@ public class Grammar {
 			super(sexp, name);
 		}
 		
-		public Boolean eval(Robot robot) throws InvalidSexpException {
+		public LessThanOrEquals(Expression left, Expression right) {
+			super(name, left, right);
+		}
+		
+		public boolean eval(Agent robot) {
 			return left.getValue(robot) <= right.getValue(robot);
 		}
+		
+		protected void compile(Program program) {
+			program.emitCompare(Program.LTE);
+			left.compileValue(program);
+			right.compileValue(program);
+		}
 	}
 
 	public class GreaterThan extends BinaryOperator {
@@ -593,9 +2275,19 @@ public class Grammar {
 			super(sexp, name);
 		}
 		
-		public Boolean eval(Robot robot) throws InvalidSexpException {
+		public GreaterThan(Expression left, Expression right) {
+			super(name, left, right);
+		}
+		
+		public boolean eval(Agent robot) {
 			return left.getValue(robot) > right.getValue(robot);
 		}
+		
+		protected void compile(Program program) {
+			program.emitCompare(Program.GT);
+			left.compileValue(program);
+			right.compileValue(program);
+		}
 	}
 
 	public class GreaterThanOrEquals extends BinaryOperator {
@@ -605,9 +2297,19 @@ public class Grammar {
 			super(sexp, name);
 		}
 		
-		public Boolean eval(Robot robot) throws InvalidSexpException {
+		public GreaterThanOrEquals(Expression left, Expression right) {
+			super(name, left, right);
+		}
+		
+		public boolean eval(Agent robot) {
 			return left.getValue(robot) >= right.getValue(robot);
 		}
+		
+		protected void compile(Program program) {
+			program.emitCompare(Program.GTE);
+			left.compileValue(program);
+			right.compileValue(program);
+		}
 	}
 	
 	public class GetRange extends Expression {
@@ -625,10 +2327,21 @@ public class Grammar {
 			}
 			
 			sensor = Integer.parseInt((String)contents.get(0));
+			if (sensor < 0 || sensor >= RangeModel.sensors)
+				throw new InvalidSexpException(String.format("getRange sensor must be 0 to %d, got %d", RangeModel.sensors - 1, sensor));
+		}
+		
+		public GetRange(int sensor) {
+			super(name);
+			this.sensor = sensor;
+		}
+		
+		public double getValue(Agent robot) {
+			return robot.getSenses()[Agent.RANGES + sensor];
 		}
 		
-		public double getValue(Robot robot) {
-			return robot.getRange(sensor);
+		protected void compileValue(Program program) {
+			program.emitOperand(Program.SENSE, Agent.RANGES + sensor);
 		}
 
 		@Override
@@ -639,13 +2352,17 @@ public class Grammar {
 		}
 
 		@Override
-		public Object mutate(double rate, MersenneTwisterFast generator) {
+		public Expression mutate(double rate, MersenneTwisterFast generator) {
 			if (generator.nextDouble() < rate) {
-				List<Object> children = new ArrayList<Object>();
-				children.add(Integer.toString(generator.nextInt(16)));
-				return new Sexp(name, children);
+				int mutantSensor = generator.nextInt(RangeModel.sensors);
+				return new GetRange(mutantSensor).setMutated(mutantSensor != sensor);
 			} else
-				return toSexp();
+				return copy();
+		}
+		
+		@Override
+		public Expression copy() {
+			return new GetRange(sensor);
 		}
 	}
 	
@@ -669,11 +2386,25 @@ public class Grammar {
 
 			this.right = Double.parseDouble((String)contents.get(1));
 		}
+		
+		public SetSpeed(double left, double right) {
+			super(name);
+			this.left = left;
+			this.right = right;
+		}
 
-		public Boolean eval(Robot robot) {
+		public boolean eval(Agent robot) {
 			robot.setSpeed(left, right);
 			return true;
 		}
+		
+		protected Boolean getConstantResult() {
+			return true;
+		}
+		
+		protected void compile(Program program) {
+			program.emitSetSpeed(left, right);
+		}
 
 		@Override
 		public Object toSexp() {
@@ -684,20 +2415,25 @@ public class Grammar {
 		}
 
 		@Override
-		public Object mutate(double rate, MersenneTwisterFast generator) {
+		public Expression mutate(double rate, MersenneTwisterFast generator) {
 			if (generator.nextDouble() < rate) {
-				List<Object> children = new ArrayList<Object>();
+				double mutantLeft, mutantRight;
 				if (left == 0.0)
-					children.add(Double.toString(generator.nextDouble()*0.2 - 0.1));
+					mutantLeft = generator.nextDouble()*0.2 - 0.1;
 				else
-					children.add(Double.toString(left*(generator.nextDouble() + 0.5)));
+					mutantLeft = left*(generator.nextDouble() + 0.5);
 				if (right == 0.0)
-					children.add(Double.toString(generator.nextDouble()*0.2 - 0.1));
+					mutantRight = generator.nextDouble()*0.2 - 0.1;
 				else
-					children.add(Double.toString(right*(generator.nextDouble() + 0.5)));
-				return new Sexp(name, children);
+					mutantRight = right*(generator.nextDouble() + 0.5);
+				return new SetSpeed(mutantLeft, mutantRight).setMutated(mutantLeft != left || mutantRight != right);
 			} else
-				return toSexp();
+				return copy();
+		}
+		
+		@Override
+		public Expression copy() {
+			return new SetSpeed(left, right);
 		}
 	}
 	
@@ -723,9 +2459,22 @@ public class Grammar {
 			}
 		}
 		
-		public Boolean eval(Robot robot) {
+		public InState(Robot.State state) {
+			super(name);
+			this.state = state;
+		}
+		
+		public boolean eval(Agent robot) {
 			return robot.inState(state);
 		}
+		
+		protected boolean isPure() {
+			return true;
+		}
+		
+		protected void compile(Program program) {
+			program.emit(Program.IN_STATE, state.ordinal());
+		}
 
 		@Override
 		public Object toSexp() {
@@ -735,14 +2484,18 @@ public class Grammar {
 		}
 
 		@Override
-		public Object mutate(double rate, MersenneTwisterFast generator) {
+		public Expression mutate(double rate, MersenneTwisterFast generator) {
 			if (generator.nextDouble() < rate) {
-				List<Object> children = new ArrayList<Object>();
 				Robot.State[] states = Robot.State.values();
-				children.add(states[generator.nextInt(states.length)].toString().toLowerCase());
-				return new Sexp(name, children);
+				Robot.State mutantState = states[generator.nextInt(states.length)];
+				return new InState(mutantState).setMutated(mutantState != state);
 			} else
-				return toSexp();
+				return copy();
+		}
+		
+		@Override
+		public Expression copy() {
+			return new InState(state);
 		}
 	}
 	
@@ -758,9 +2511,26 @@ public class Grammar {
 			super(sexp, name);
 		}
 		
-		public Boolean eval(Robot robot) {
+		public IsCarrying() {
+			super(name);
+		}
+		
+		@Override
+		public Expression copy() {
+			return new IsCarrying();
+		}
+		
+		public boolean eval(Agent robot) {
 			return robot.inState(Robot.State.CARRY);
 		}
+		
+		protected boolean isPure() {
+			return true;
+		}
+		
+		protected void compile(Program program) {
+			program.emit(Program.IN_STATE, Robot.State.CARRY.ordinal());
+		}
 	}
 	
 	public class SetState extends Expression {
@@ -785,10 +2555,23 @@ public class Grammar {
 			}
 		}
 		
-		public Boolean eval(Robot robot) {
+		public SetState(Robot.State state) {
+			super(name);
+			this.state = state;
+		}
+		
+		public boolean eval(Agent robot) {
 			robot.setState(state);
 			return true;
 		}
+		
+		protected Boolean getConstantResult() {
+			return true;
+		}
+		
+		protected void compile(Program program) {
+			program.emit(Program.SET_STATE, state.ordinal());
+		}
 
 		@Override
 		public Object toSexp() {
@@ -798,14 +2581,18 @@ public class Grammar {
 		}
 
 		@Override
-		public Object mutate(double rate, MersenneTwisterFast generator) {
+		public Expression mutate(double rate, MersenneTwisterFast generator) {
 			if (generator.nextDouble() < rate) {
-				List<Object> children = new ArrayList<Object>();
 				Robot.State[] states = Robot.State.values();
-				children.add(states[generator.nextInt(states.length)].toString().toLowerCase());
-				return new Sexp(name, children);
+				Robot.State mutantState = states[generator.nextInt(states.length)];
+				return new SetState(mutantState).setMutated(mutantState != state);
 			} else
-				return toSexp();
+				return copy();
+		}
+		
+		@Override
+		public Expression copy() {
+			return new SetState(state);
 		}
 	}
 	
@@ -816,8 +2603,21 @@ public class Grammar {
 			super(sexp, name);
 		}
 		
-		public double getValue(Robot robot) {
-			return robot.findMidpointOfObjectiveInView();
+		public GetMidpointInCamera() {
+			super(name);
+		}
+		
+		@Override
+		public Expression copy() {
+			return new GetMidpointInCamera();
+		}
+		
+		public double getValue(Agent robot) {
+			return robot.getSenses()[Agent.MIDPOINT];
+		}
+		
+		protected void compileValue(Program program) {
+			program.emitOperand(Program.SENSE, Agent.MIDPOINT);
 		}
 	}
 	
@@ -828,8 +2628,21 @@ public class Grammar {
 			super(sexp, name);
 		}
 		
-		public double getValue(Robot robot) {
-			return robot.findWidthOfObjectiveInView();
+		public GetWidthInCamera() {
+			super(name);
+		}
+		
+		@Override
+		public Expression copy() {
+			return new GetWidthInCamera();
+		}
+		
+		public double getValue(Agent robot) {
+			return robot.getSenses()[Agent.WIDTH];
+		}
+		
+		protected void compileValue(Program program) {
+			program.emitOperand(Program.SENSE, Agent.WIDTH);
 		}
 	}
 	
@@ -840,8 +2653,21 @@ public class Grammar {
 			super(sexp, name);
 		}
 		
-		public double getValue(Robot robot) {
-			return robot.getDistanceTraveled();
+		public GetDistanceTraveled() {
+			super(name);
+		}
+		
+		@Override
+		public Expression copy() {
+			return new GetDistanceTraveled();
+		}
+		
+		public double getValue(Agent robot) {
+			return robot.getSenses()[Agent.TRAVEL];
+		}
+		
+		protected void compileValue(Program program) {
+			program.emitOperand(Program.SENSE, Agent.TRAVEL);
 		}
 	}
 
@@ -852,8 +2678,21 @@ public class Grammar {
 			super(sexp, name);
 		}
 		
-		public double getValue(Robot robot) {
-			return robot.getRotations();
+		public GetRotations() {
+			super(name);
+		}
+		
+		@Override
+		public Expression copy() {
+			return new GetRotations();
+		}
+		
+		public double getValue(Agent robot) {
+			return robot.getSenses()[Agent.ROTATIONS];
+		}
+		
+		protected void compileValue(Program program) {
+			program.emitOperand(Program.SENSE, Agent.ROTATIONS);
 		}
 	}
 
@@ -864,9 +2703,22 @@ public class Grammar {
 			super(sexp, name);
 		}
 		
-		public Boolean eval(Robot robot) {
+		public Drop() {
+			super(name);
+		}
+		
+		@Override
+		public Expression copy() {
+			return new Drop();
+		}
+		
+		public boolean eval(Agent robot) {
 			return robot.drop();
 		}
+		
+		protected void compile(Program program) {
+			program.emit(Program.DROP);
+		}
 	}
 	
 	public class PickUp extends LeafExpression {
@@ -876,8 +2728,21 @@ public class Grammar {
 			super(sexp, name);
 		}
 		
-		public Boolean eval(Robot robot) {
+		public PickUp() {
+			super(name);
+		}
+		
+		@Override
+		public Expression copy() {
+			return new PickUp();
+		}
+		
+		public boolean eval(Agent robot) {
 			return robot.pickUp();
 		}
+		
+		protected void compile(Program program) {
+			program.emit(Program.PICK_UP);
+		}
 	}
 }
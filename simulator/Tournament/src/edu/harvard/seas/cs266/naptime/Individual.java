@@ -6,11 +6,15 @@
 
 package edu.harvard.seas.cs266.naptime;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import ec.util.MersenneTwisterFast;
 
@@ -31,14 +35,49 @@ public class Individual {
 	 * The fitness of this individual as of its last run.
 	 */
 	private double fitness = 0.0;
+	
+	/**
+	 * Whether any simulation in the last run was stopped for being unable
+	 * to reach the generation's cutoff, making fitness only an estimate.
+	 */
+	private boolean hopeless = false;
+	
+	/**
+	 * Fitness samples from sample(), one per seed: how many, their sum,
+	 * and their sum of squares (for the confidence interval).
+	 */
+	private int samples = 0;
+	
+	private double sampleSum = 0.0, sampleSquares = 0.0;
+	
+	/**
+	 * The most steps a single simulation may run (the baseline can complete in ~6000).
+	 */
+	public static final int stepBudget = 20000;
+	
+	/**
+	 * Where every simulation is recorded, or null to not bother.
+	 */
+	static Telemetry telemetry = null;
+	
+	/**
+	 * The deepest and largest (in nodes) a strategy may grow through
+	 * mutation or crossover, or 0 for no limit. Set once before evolving.
+	 */
+	public static int maxDepth = 0, maxNodes = 0;
+	
+	/**
+	 * The total nodes in all strategies, once counted.
+	 */
+	private int nodes = -1;
 
 	public Individual(File strategyPath) throws FileNotFoundException, InvalidSexpException {
 		// Read the strategy file(s)
 		if (strategyPath.isFile())
-			strategies.add((Grammar.Step)Grammar.ExpressionFactory.build(new Sexp(strategyPath)));
+			strategies.add(Grammar.ExpressionFactory.buildStep(new Sexp(strategyPath)));
 		else
 			for (File strategyFile: strategyPath.listFiles())
-				strategies.add((Grammar.Step)Grammar.ExpressionFactory.build(new Sexp(strategyFile)));
+				strategies.add(Grammar.ExpressionFactory.buildStep(new Sexp(strategyFile)));
 	}
 	
 	public Individual(List<Grammar.Step> strategies) {
@@ -57,6 +96,17 @@ public class Individual {
 	 * @see MASON Manual pp. 83-84
 	 */
 	public void run(Individual baseline, int iterations) {
+		run(baseline, iterations, null);
+	}
+	
+	/**
+	 * Updates fitness like run(Individual, int), but may stop simulations
+	 * early. A stopped simulation scores as if it had used up the step
+	 * budget without anyone scoring again.
+	 * 
+	 * @param earlyExit When to stop, or null to always run to the end.
+	 */
+	public void run(Individual baseline, int iterations, EarlyExit earlyExit) {
 		// Set up the simulation with this strategy and give it a unique ID
 		Tournament tourney = new Tournament(Population.seed, strategies, baseline.strategies);
 		tourney.nameThread();
@@ -64,36 +114,161 @@ public class Individual {
 		
 		// Run the simulation multiple times to avoid initial conditions bias
 		double totalFitness = 0.0;
-		for (int i = 0; i < iterations; i++) {
-			// Run the simulation for some large number of steps (baseline can complete in ~6000)
-			tourney.start();
-			do
-				if (!tourney.schedule.step(tourney))
-					// Stop if the end condition has been reached
-					break;
-			while (tourney.schedule.getSteps() < 20000);
-			totalFitness += tourney.getFitness();
-			tourney.finish();
-		}
+		resetSamples();
+		for (int i = 0; i < iterations; i++)
+			totalFitness += simulate(tourney, earlyExit);
 		
 		// Measure average fitness
 		fitness = totalFitness/iterations;
 	}
 	
+	/**
+	 * Adds fitness samples by running one simulation per seed, continuing
+	 * from the last seed sampled; fitness becomes the mean of all samples.
+	 * Individuals sampled with the same seeds face the same treat layouts
+	 * (common random numbers), so their differences aren't down to luck.
+	 * 
+	 * @param seeds The seeds shared by the whole population.
+	 * @param target How many samples to have afterwards (at most seeds.length).
+	 * @param earlyExit When to stop, or null to always run to the end.
+	 */
+	public void sample(Individual baseline, long[] seeds, int target, EarlyExit earlyExit) {
+		if (samples >= Math.min(target, seeds.length))
+			return;
+		Tournament tourney = new Tournament(seeds[samples], strategies, baseline.strategies);
+		tourney.nameThread();
+		tourney.setJob(hashCode());
+		for (; samples < Math.min(target, seeds.length); samples++) {
+			tourney.reseed(seeds[samples]);
+			double sample = simulate(tourney, earlyExit);
+			sampleSum += sample;
+			sampleSquares += sample*sample;
+		}
+		fitness = sampleSum/samples;
+	}
+	
+	/**
+	 * Runs a single simulation to the end (or until it's stopped early).
+	 * 
+	 * @return Its fitness.
+	 */
+	private double simulate(Tournament tourney, EarlyExit earlyExit) {
+		// Run the simulation for some large number of steps
+		tourney.start();
+		EarlyExit.Reason reason = null;
+		while (reason == null) {
+			if (!tourney.schedule.step(tourney))
+				// Stop if the end condition has been reached
+				reason = EarlyExit.Reason.COMPLETED;
+			else if (tourney.schedule.getSteps() >= stepBudget)
+				reason = EarlyExit.Reason.BUDGET;
+			else if (earlyExit != null)
+				reason = earlyExit.check(tourney);
+		}
+		double result;
+		if (reason.isEarly())
+			result = tourney.getFitness(stepBudget);
+		else
+			result = tourney.getFitness();
+		if (earlyExit != null)
+			earlyExit.count(reason);
+		if (telemetry != null)
+			telemetry.recordSimulation(tourney.schedule.getSteps(), reason);
+		hopeless |= reason == EarlyExit.Reason.HOPELESS;
+		tourney.finish();
+		return result;
+	}
+	
+	/**
+	 * Records the outcome of simulations run elsewhere (e.g. by a
+	 * BatchEvaluator), as run() would.
+	 */
+	void setRunResult(double fitness, boolean hopeless) {
+		resetSamples();
+		this.fitness = fitness;
+		this.hopeless = hopeless;
+	}
+	
+	/**
+	 * Records a simulation on the next seed run elsewhere (e.g. by a
+	 * BatchEvaluator), as sample() would.
+	 */
+	void addSample(double sample, boolean hopeless) {
+		samples++;
+		sampleSum += sample;
+		sampleSquares += sample*sample;
+		fitness = sampleSum/samples;
+		this.hopeless |= hopeless;
+	}
+	
+	/**
+	 * Forgets all fitness samples, e.g. when the strategies change.
+	 */
+	private void resetSamples() {
+		samples = 0;
+		sampleSum = sampleSquares = 0.0;
+		hopeless = false;
+	}
+	
+	/**
+	 * @return How many seeds this individual has been sampled on.
+	 */
+	public int getSampleCount() {
+		return samples;
+	}
+	
+	/**
+	 * @param z The standard normal quantile for the desired confidence (e.g. 1.96 for 95%).
+	 * @return Half the width of the confidence interval around the mean
+	 * sampled fitness, or infinity with fewer than two samples.
+	 */
+	public double getConfidenceHalfWidth(double z) {
+		if (samples < 2)
+			return Double.POSITIVE_INFINITY;
+		double mean = sampleSum/samples;
+		double variance = Math.max(0.0, (sampleSquares - samples*mean*mean)/(samples - 1));
+		return z*Math.sqrt(variance/samples);
+	}
+	
 	public void mutate(double mutationRate, MersenneTwisterFast generator) {
 		// Mutate all constituent strategies
 		List<Grammar.Step> mutantStrategies = new ArrayList<Grammar.Step>(strategies.size());
-		for (Grammar.Step strategy: strategies) {
-			try {
-				mutantStrategies.add((Grammar.Step)Grammar.ExpressionFactory.build(strategy.mutate(mutationRate, generator)));
-			} catch (InvalidSexpException e) {
-				// This shouldn't happen
-				System.err.println(e.getMessage());
-			}
-		}
+		for (Grammar.Step strategy: strategies)
+			mutantStrategies.add(mutate(strategy, strategy, mutationRate, generator));
 		
 		// Replace
 		strategies = mutantStrategies;
+		nodes = -1;
+		resetSamples();
+	}
+	
+	/**
+	 * Enforces maxDepth and maxNodes on offspring.
+	 * 
+	 * @param offspring A strategy produced by mutation or crossover.
+	 * @param parent What to keep instead if the offspring is too big.
+	 * @return The offspring if it's within the limits, otherwise the parent.
+	 */
+	private static Grammar.Step limit(Grammar.Step offspring, Grammar.Step parent) {
+		if (maxDepth > 0 && offspring.getDepth() > maxDepth)
+			return parent;
+		if (maxNodes > 0 && offspring.countNodes() > maxNodes)
+			return parent;
+		return offspring;
+	}
+	
+	/**
+	 * Mutates a strategy and enforces the limits, counting a mutation for
+	 * telemetry only if the strategy kept actually changed.
+	 * 
+	 * @param strategy What to mutate, e.g. the offspring of crossover.
+	 * @param parent What to keep instead if the mutant is too big.
+	 */
+	private static Grammar.Step mutate(Grammar.Step strategy, Grammar.Step parent, double mutationRate, MersenneTwisterFast generator) {
+		Grammar.Step mutant = limit(strategy.mutate(mutationRate, generator), parent);
+		if (telemetry != null && mutant != parent && mutant.isMutated())
+			telemetry.countMutation();
+		return mutant;
 	}
 
 	public List<Individual> crossoverAndMutate(Individual mate, double mutationRate, MersenneTwisterFast generator) {
@@ -103,18 +278,19 @@ public class Individual {
 		List<Grammar.Step> rightStrategies = new ArrayList<Grammar.Step>(strategies.size());
 		int crossoverIndex = generator.nextInt(strategies.size());
 		for (int i = 0; i < strategies.size(); i++) {
-			try {
-				if (i == crossoverIndex) {
-					List<Grammar.Step> crossedStrategies = strategies.get(i).crossover(mate.strategies.get(i), generator);
-					leftStrategies.add((Grammar.Step)Grammar.ExpressionFactory.build(crossedStrategies.get(0).mutate(mutationRate, generator)));
-					rightStrategies.add((Grammar.Step)Grammar.ExpressionFactory.build(crossedStrategies.get(1).mutate(mutationRate, generator)));				
-				} else {
-					leftStrategies.add((Grammar.Step)Grammar.ExpressionFactory.build(strategies.get(i).mutate(mutationRate, generator)));
-					rightStrategies.add((Grammar.Step)Grammar.ExpressionFactory.build(mate.strategies.get(i).mutate(mutationRate, generator)));
-				}
-			} catch (InvalidSexpException e) {
-				// This shouldn't happen
-				System.err.println(e.getMessage());
+			if (i == crossoverIndex) {
+				List<Grammar.Step> crossedStrategies = strategies.get(i).crossover(mate.strategies.get(i), generator);
+				Grammar.Step left = mutate(crossedStrategies.get(0), strategies.get(i), mutationRate, generator);
+				Grammar.Step right = mutate(crossedStrategies.get(1), mate.strategies.get(i), mutationRate, generator);
+				
+				// Unless the limits threw both offspring out
+				if (telemetry != null && (left != strategies.get(i) || right != mate.strategies.get(i)))
+					telemetry.countCrossover();
+				leftStrategies.add(left);
+				rightStrategies.add(right);
+			} else {
+				leftStrategies.add(mutate(strategies.get(i), strategies.get(i), mutationRate, generator));
+				rightStrategies.add(mutate(mate.strategies.get(i), mate.strategies.get(i), mutationRate, generator));
 			}
 		}
 		children.add(new Individual(leftStrategies));
@@ -128,17 +304,130 @@ public class Individual {
 		for (Grammar.Step strategy: strategies) {
 			File outputFile = new File(outputDir, String.format("%d.sexp", index));
 			PrintWriter writer = new PrintWriter(outputFile.getPath());
-			writer.print(strategy.toString());
+			try {
+				strategy.write(writer, true);
+			} catch (IOException e) {
+				// PrintWriters don't throw, they set an error flag
+			}
 			writer.flush();
 			writer.close();
 			index++;
 		}
 	}
 	
+	/**
+	 * @return The strategies, which must not be modified.
+	 */
+	List<Grammar.Step> getStrategies() {
+		return strategies;
+	}
+	
+	/**
+	 * @return The total number of nodes in all strategies.
+	 */
+	public int countNodes() {
+		if (nodes < 0) {
+			int count = 0;
+			for (Grammar.Step strategy: strategies)
+				count += strategy.countNodes();
+			nodes = count;
+		}
+		return nodes;
+	}
+	
+	/**
+	 * @return The depth of the deepest strategy.
+	 */
+	public int getDepth() {
+		int deepest = 0;
+		for (Grammar.Step strategy: strategies)
+			deepest = Math.max(deepest, strategy.getDepth());
+		return deepest;
+	}
+	
 	/**
 	 * Accessor for the current fitness of this individual.
 	 */
 	public double getFitness() {
 		return fitness;
 	}
+	
+	/**
+	 * Mutator for fitness known without running, e.g. from a FitnessCache.
+	 */
+	void setFitness(double fitness) {
+		this.fitness = fitness;
+	}
+	
+	/**
+	 * @return Whether the last run was cut short by the generation's
+	 * cutoff, so its fitness shouldn't be reused in later generations.
+	 */
+	public boolean wasHopeless() {
+		return hopeless;
+	}
+	
+	/**
+	 * @return A copy with the fitness and samples as they are now, sharing
+	 * the strategies (which are never modified, only replaced).
+	 */
+	Individual snapshot() {
+		Individual copy = new Individual(strategies);
+		copy.fitness = fitness;
+		copy.hopeless = hopeless;
+		copy.samples = samples;
+		copy.sampleSum = sampleSum;
+		copy.sampleSquares = sampleSquares;
+		return copy;
+	}
+	
+	/**
+	 * Writes this individual's strategies and fitness in Checkpoint's format.
+	 * 
+	 * @param atoms The atoms written so far in this checkpoint.
+	 */
+	void writeTo(DataOutputStream out, Map<String, Integer> atoms) throws IOException {
+		out.writeDouble(fitness);
+		out.writeBoolean(hopeless);
+		out.writeInt(samples);
+		out.writeDouble(sampleSum);
+		out.writeDouble(sampleSquares);
+		Checkpoint.writeCount(out, strategies.size());
+		for (Grammar.Step strategy: strategies)
+			Checkpoint.writeSexp(out, strategy.toSexp(), atoms);
+	}
+	
+	/**
+	 * Reads an individual written by writeTo().
+	 * 
+	 * @param atoms The atoms read so far in this checkpoint.
+	 */
+	static Individual readFrom(DataInputStream in, List<String> atoms) throws IOException, InvalidSexpException {
+		double fitness = in.readDouble();
+		boolean hopeless = in.readBoolean();
+		int samples = in.readInt();
+		double sampleSum = in.readDouble(), sampleSquares = in.readDouble();
+		int count = Checkpoint.readCount(in);
+		List<Grammar.Step> strategies = new ArrayList<Grammar.Step>(count);
+		for (int s = 0; s < count; s++)
+			strategies.add(Grammar.ExpressionFactory.buildStep(Checkpoint.readSexp(in, atoms)));
+		Individual individual = new Individual(strategies);
+		individual.fitness = fitness;
+		individual.hopeless = hopeless;
+		individual.samples = samples;
+		individual.sampleSum = sampleSum;
+		individual.sampleSquares = sampleSquares;
+		return individual;
+	}
+	
+	/**
+	 * @return The compact S-expressions of all strategies, one per line.
+	 * Identical strategies always produce identical text.
+	 */
+	public String getCanonicalForm() {
+		StringBuilder canonical = new StringBuilder();
+		for (Grammar.Step strategy: strategies)
+			canonical.append(strategy.toCompactString()).append('\n');
+		return canonical.toString();
+	}
 }
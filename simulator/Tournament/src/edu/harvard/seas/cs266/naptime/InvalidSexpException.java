@@ -2,7 +2,26 @@ package edu.harvard.seas.cs266.naptime;
 
 @SuppressWarnings("serial")
 public class InvalidSexpException extends Exception {
+	/**
+	 * Where in the source text the problem was found, or 0 if unknown.
+	 */
+	private int line = 0, column = 0;
+	
 	public InvalidSexpException(String message) {
 		super(message);
 	}
+	
+	public InvalidSexpException(String message, int line, int column) {
+		super(String.format("%s at line %d, column %d", message, line, column));
+		this.line = line;
+		this.column = column;
+	}
+	
+	public int getLine() {
+		return line;
+	}
+	
+	public int getColumn() {
+		return column;
+	}
 }
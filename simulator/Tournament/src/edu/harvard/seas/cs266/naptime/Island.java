@@ -0,0 +1,164 @@
+/**
+ * @file Island.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.11
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One Population's connection to an IslandCoordinator, for island-model
+ * evolution across processes: every few generations the population's
+ * fittest individuals emigrate, and migrants from other islands replace
+ * some of its next generation. See IslandCoordinator for the protocol.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class Island {
+	/**
+	 * The connection to the coordinator.
+	 */
+	private Socket socket;
+	
+	private BufferedReader reader;
+	
+	private PrintWriter writer;
+	
+	/**
+	 * Which island we are, and how many there are in total.
+	 */
+	private int index, islands;
+	
+	/**
+	 * Migrate every this many generations.
+	 */
+	private int interval;
+	
+	/**
+	 * How many of our fittest individuals emigrate each time.
+	 */
+	private int migrants;
+	
+	/**
+	 * Connects to the coordinator and waits for it to assign this island
+	 * its place, which happens once every island has connected.
+	 * 
+	 * @param address The coordinator's "host:port".
+	 */
+	public Island(String address) throws IOException {
+		int colon = address.lastIndexOf(':');
+		if (colon < 0)
+			throw new IllegalArgumentException(String.format("Expected host:port, got %s", address));
+		socket = new Socket(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+		reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+		writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+		
+		// HELLO <index> <islands> <interval> <migrants>
+		String[] hello = expect(reader, "HELLO", 5);
+		index = Integer.parseInt(hello[1]);
+		islands = Integer.parseInt(hello[2]);
+		interval = Integer.parseInt(hello[3]);
+		migrants = Integer.parseInt(hello[4]);
+		if (interval < 1) {
+			socket.close();
+			throw new IOException(String.format("Expected a migration interval of at least 1, got %d", interval));
+		}
+	}
+	
+	/**
+	 * Exchanges migrants with the other islands if one is due after this
+	 * generation. Blocks until every island has reached the same point.
+	 * 
+	 * @param population Our population, which has just evolved.
+	 * @param generations How many generations it has evolved so far.
+	 */
+	public void migrate(Population population, int generations) throws IOException, InvalidSexpException {
+		if (generations % interval != 0)
+			return;
+		
+		// Send our fittest...
+		List<Individual> emigrants = population.getFittest(migrants);
+		writer.printf("EMIGRANTS %d\n", emigrants.size());
+		for (Individual emigrant: emigrants)
+			write(writer, emigrant);
+		writer.flush();
+		
+		// ...and take in whoever the coordinator sends us
+		int count = Integer.parseInt(expect(reader, "IMMIGRANTS", 2)[1]);
+		List<Individual> immigrants = new ArrayList<Individual>(count);
+		for (int i = 0; i < count; i++)
+			immigrants.add(read(reader));
+		population.immigrate(immigrants);
+	}
+	
+	/**
+	 * Tells the coordinator we're finished, and disconnects.
+	 */
+	public void close() throws IOException {
+		writer.print("DONE\n");
+		writer.flush();
+		socket.close();
+	}
+	
+	public int getIndex() {
+		return index;
+	}
+	
+	public int getIslands() {
+		return islands;
+	}
+	
+	/**
+	 * Sends an individual as "STRATEGIES <n>" followed by its n strategies,
+	 * one compact S-expression per line.
+	 */
+	static void write(PrintWriter writer, Individual individual) {
+		String strategies = individual.getCanonicalForm();
+		int count = 0;
+		for (int c = 0; c < strategies.length(); c++)
+			if (strategies.charAt(c) == '\n')
+				count++;
+		writer.printf("STRATEGIES %d\n", count);
+		writer.print(strategies);
+	}
+	
+	/**
+	 * Reads an individual sent by write().
+	 */
+	static Individual read(BufferedReader reader) throws IOException, InvalidSexpException {
+		int count = Integer.parseInt(expect(reader, "STRATEGIES", 2)[1]);
+		List<Grammar.Step> strategies = new ArrayList<Grammar.Step>(count);
+		for (int s = 0; s < count; s++) {
+			String line = reader.readLine();
+			if (line == null)
+				throw new IOException("Connection closed in the middle of an individual");
+			strategies.add(Grammar.ExpressionFactory.buildStep(new Sexp(line)));
+		}
+		return new Individual(strategies);
+	}
+	
+	/**
+	 * Reads a protocol line, making sure it's the expected message.
+	 * 
+	 * @param fields How many space-separated fields the message has.
+	 * @return The fields, starting with the message name.
+	 */
+	static String[] expect(BufferedReader reader, String message, int fields) throws IOException {
+		String line = reader.readLine();
+		if (line == null)
+			throw new IOException(String.format("Connection closed while waiting for %s", message));
+		String[] split = line.trim().split(" ");
+		if (!split[0].equals(message) || split.length != fields)
+			throw new IOException(String.format("Expected %s, got '%s'", message, line));
+		return split;
+	}
+}
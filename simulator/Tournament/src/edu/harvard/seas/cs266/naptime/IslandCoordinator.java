@@ -0,0 +1,221 @@
+/**
+ * @file IslandCoordinator.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.11
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Routes migrants between Populations evolving in separate processes
+ * (islands), each connected through an Island. The protocol is lines of
+ * UTF-8 text over TCP:
+ * 
+ *   coordinator to island: HELLO <index> <islands> <interval> <migrants>
+ *   island to coordinator: EMIGRANTS <n>, then n individuals
+ *   coordinator to island: IMMIGRANTS <n>, then n individuals
+ *   island to coordinator: DONE
+ * 
+ * where an individual is "STRATEGIES <n>" followed by n compact
+ * S-expressions, one per line. Migration happens in rounds: the
+ * coordinator waits for every island still running before routing
+ * anything, so a run is reproducible regardless of timing. An island can
+ * send DONE (or disconnect) in place of its emigrants in any round, and
+ * is left out of that round and every later one.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class IslandCoordinator {
+	/**
+	 * Where each island's emigrants go.
+	 */
+	public enum Topology {
+		/**
+		 * To the next island, wrapping around.
+		 */
+		RING,
+		
+		/**
+		 * To every other island.
+		 */
+		ALL
+	}
+	
+	/**
+	 * Connections to the islands, by index.
+	 */
+	private List<Socket> sockets = new ArrayList<Socket>();
+	
+	private List<BufferedReader> readers = new ArrayList<BufferedReader>();
+	
+	private List<PrintWriter> writers = new ArrayList<PrintWriter>();
+	
+	private Topology topology;
+	
+	/**
+	 * Waits for every island to connect, then tells each its place.
+	 * 
+	 * @param port The TCP port to listen on.
+	 * @param islands How many islands to wait for.
+	 * @param interval How many generations between migrations.
+	 * @param migrants How many individuals each island sends per migration.
+	 */
+	public IslandCoordinator(int port, int islands, int interval, int migrants, Topology topology) throws IOException {
+		this(new ServerSocket(port), islands, interval, migrants, topology);
+	}
+	
+	/**
+	 * Waits for every island to connect to an already listening socket,
+	 * e.g. one bound to any free port, then tells each its place.
+	 * 
+	 * @param server Closed once every island has connected.
+	 */
+	public IslandCoordinator(ServerSocket server, int islands, int interval, int migrants, Topology topology) throws IOException {
+		this.topology = topology;
+		try {
+			if (interval < 1)
+				throw new IllegalArgumentException(String.format("Migration interval must be at least 1, got %d", interval));
+			for (int i = 0; i < islands; i++) {
+				Socket socket = server.accept();
+				sockets.add(socket);
+				readers.add(new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8")));
+				writers.add(new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8")));
+				System.out.printf("Island %d connected from %s\n", i, socket.getRemoteSocketAddress());
+			}
+		} finally {
+			server.close();
+		}
+		for (int i = 0; i < islands; i++) {
+			writers.get(i).printf("HELLO %d %d %d %d\n", i, islands, interval, migrants);
+			writers.get(i).flush();
+		}
+	}
+	
+	/**
+	 * Runs migration rounds until every island is done.
+	 */
+	public void run() throws IOException, InvalidSexpException {
+		int islands = sockets.size();
+		boolean[] done = new boolean[islands];
+		int remaining = islands;
+		for (int round = 1; remaining > 0; round++) {
+			// Collect emigrants from every island still running
+			List<List<Individual>> emigrants = new ArrayList<List<Individual>>(islands);
+			for (int i = 0; i < islands; i++) {
+				List<Individual> sent = null;
+				if (!done[i]) {
+					sent = receive(i);
+					if (sent == null) {
+						done[i] = true;
+						remaining--;
+					}
+				}
+				emigrants.add(sent != null ? sent : new ArrayList<Individual>());
+			}
+			if (remaining == 0)
+				break;
+			
+			// Route them to the islands still running
+			List<List<Individual>> immigrants = new ArrayList<List<Individual>>(islands);
+			for (int i = 0; i < islands; i++)
+				immigrants.add(new ArrayList<Individual>());
+			for (int i = 0; i < islands; i++) {
+				if (done[i])
+					continue;
+				if (topology == Topology.RING) {
+					int next = (i + 1) % islands;
+					while (done[next])
+						next = (next + 1) % islands;
+					if (next != i)
+						immigrants.get(next).addAll(emigrants.get(i));
+				} else {
+					for (int j = 0; j < islands; j++)
+						if (j != i && !done[j])
+							immigrants.get(j).addAll(emigrants.get(i));
+				}
+			}
+			for (int i = 0; i < islands; i++) {
+				if (done[i])
+					continue;
+				PrintWriter writer = writers.get(i);
+				writer.printf("IMMIGRANTS %d\n", immigrants.get(i).size());
+				for (Individual immigrant: immigrants.get(i))
+					Island.write(writer, immigrant);
+				writer.flush();
+			}
+			System.out.printf("Migration %d: %d islands\n", round, remaining);
+		}
+	}
+	
+	/**
+	 * Reads an island's next message, which should be its emigrants for
+	 * this round unless it's finished.
+	 * 
+	 * @return The emigrants, or null if the island sent DONE or hung up,
+	 * in which case it's disconnected.
+	 */
+	private List<Individual> receive(int i) throws IOException, InvalidSexpException {
+		String line;
+		try {
+			line = readers.get(i).readLine();
+		} catch (IOException e) {
+			// Reset rather than closed, e.g. killed
+			line = null;
+		}
+		if (line != null && !line.trim().equals("DONE")) {
+			String[] fields = line.trim().split(" ");
+			if (!fields[0].equals("EMIGRANTS") || fields.length != 2)
+				throw new IOException(String.format("Expected EMIGRANTS or DONE from island %d, got '%s'", i, line));
+			int count = Integer.parseInt(fields[1]);
+			List<Individual> sent = new ArrayList<Individual>(count);
+			try {
+				for (int e = 0; e < count; e++)
+					sent.add(Island.read(readers.get(i)));
+				return sent;
+			} catch (IOException e) {
+				// Gone partway through, e.g. killed; carry on without it
+				System.out.printf("Island %d lost: %s\n", i, e.getMessage());
+			}
+		}
+		sockets.get(i).close();
+		System.out.printf("Island %d done\n", i);
+		return null;
+	}
+	
+	/**
+	 * Coordinates an island-model run. Start this first, then one
+	 * Population per island with "-island <host>:<port>".
+	 * 
+	 * @param args The port to listen on, the number of islands, the number
+	 * of generations between migrations, the number of migrants each
+	 * island sends, and optionally the topology ("ring", the default, or "all").
+	 */
+	public static void main(String[] args) {
+		// Check command-line parameters
+		if (args.length < 4 || args.length > 5) {
+			System.out.println("Usage: islandcoordinator <port> <islands> <migration interval> <migrants> [ring|all]");
+			System.exit(0);
+		}
+		
+		try {
+			Topology topology = args.length > 4 ? Topology.valueOf(args[4].toUpperCase()) : Topology.RING;
+			IslandCoordinator coordinator = new IslandCoordinator(Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+																  Integer.parseInt(args[2]), Integer.parseInt(args[3]), topology);
+			coordinator.run();
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * @file IslandLauncher.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.16
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs a whole island-model run on this machine: starts an
+ * IslandCoordinator on a free port, then one Population per island in its
+ * own JVM (with the same classpath) connected to it, echoing each
+ * island's output prefixed with its index. Each island writes its own
+ * fittest individual, checkpoint, telemetry and cache file, named with its
+ * index added before any extension (e.g. run.csv becomes run-2.csv).
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class IslandLauncher {
+	/**
+	 * Population options whose value is a file each island needs its own
+	 * copy of.
+	 */
+	private static final List<String> pathOptions = Arrays.asList("-cachefile", "-checkpoint", "-telemetry");
+	
+	/**
+	 * How long to wait for every island to connect, in milliseconds.
+	 */
+	private static final int connectTimeout = 60000;
+	
+	/**
+	 * Copies a process's output to ours, a line at a time.
+	 */
+	private static class Echo extends Thread {
+		private BufferedReader reader;
+		
+		private String prefix;
+		
+		public Echo(Process process, String prefix) {
+			reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			this.prefix = prefix;
+		}
+		
+		public void run() {
+			try {
+				String line;
+				while ((line = reader.readLine()) != null)
+					System.out.printf("%s%s\n", prefix, line);
+			} catch (IOException e) {
+				// The island is gone, so there's nothing more to echo
+			}
+		}
+	}
+	
+	/**
+	 * @return A path with an island's index added before any extension.
+	 */
+	static String perIsland(String path, int index) {
+		File file = new File(path);
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0)
+			name = String.format("%s-%d%s", name.substring(0, dot), index, name.substring(dot));
+		else
+			name = String.format("%s-%d", name, index);
+		return new File(file.getParentFile(), name).getPath();
+	}
+	
+	/**
+	 * @return The command line running one island's Population.
+	 */
+	static List<String> command(String[] populationArgs, int index, int port) {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(Population.class.getName());
+		for (int a = 0; a < populationArgs.length; a++) {
+			// The fittest individual is the last positional argument
+			if (a == 6 || (a > 6 && pathOptions.contains(populationArgs[a - 1])))
+				command.add(perIsland(populationArgs[a], index));
+			else
+				command.add(populationArgs[a]);
+		}
+		command.add("-island");
+		command.add(String.format("localhost:%d", port));
+		return command;
+	}
+	
+	/**
+	 * Launches the run and waits for it to finish.
+	 * 
+	 * @param args The number of islands, the number of generations between
+	 * migrations, the number of migrants each island sends and the
+	 * topology ("ring" or "all"), followed by the arguments to give every
+	 * Population (see Population.main(), without "-island").
+	 */
+	public static void main(String[] args) {
+		// Check command-line parameters
+		if (args.length < 11) {
+			System.out.println("Usage: islandlauncher <islands> <migration interval> <migrants> <ring|all> <population arguments...>");
+			System.exit(0);
+		}
+		
+		List<Process> processes = new ArrayList<Process>();
+		List<Echo> echoes = new ArrayList<Echo>();
+		int failed = 0;
+		try {
+			int islands = Integer.parseInt(args[0]);
+			int interval = Integer.parseInt(args[1]), migrants = Integer.parseInt(args[2]);
+			IslandCoordinator.Topology topology = IslandCoordinator.Topology.valueOf(args[3].toUpperCase());
+			String[] populationArgs = Arrays.copyOfRange(args, 4, args.length);
+			
+			// Listen before starting the islands, so none of them can miss the coordinator
+			ServerSocket server = new ServerSocket(0);
+			server.setSoTimeout(connectTimeout);
+			for (int i = 0; i < islands; i++) {
+				ProcessBuilder builder = new ProcessBuilder(command(populationArgs, i, server.getLocalPort()));
+				builder.redirectErrorStream(true);
+				Process process = builder.start();
+				processes.add(process);
+				Echo echo = new Echo(process, String.format("[island %d] ", i));
+				echo.start();
+				echoes.add(echo);
+			}
+			
+			// The coordinator numbers islands as they connect, not as they were started
+			IslandCoordinator coordinator = new IslandCoordinator(server, islands, interval, migrants, topology);
+			coordinator.run();
+			
+			// Wait for every island to write its results
+			for (int i = 0; i < processes.size(); i++) {
+				if (processes.get(i).waitFor() != 0)
+					failed++;
+				echoes.get(i).join();
+			}
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+			for (Process process: processes)
+				process.destroy();
+			System.exit(1);
+		}
+		System.exit(failed > 0 ? 1 : 0);
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * @file ParallelEvaluator.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.02
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs each individual's Tournament on its own thread from a fixed
+ * pool. Every Individual.run() builds a private Tournament seeded with
+ * Population.seed, so the resulting fitness doesn't depend on the order
+ * or thread in which individuals are run and matches SerialEvaluator.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class ParallelEvaluator implements Evaluator {
+	/**
+	 * The worker threads.
+	 */
+	private ExecutorService executor;
+	
+	/**
+	 * Creates a pool sized to the machine.
+	 */
+	public ParallelEvaluator() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Creates a pool with a specific number of worker threads.
+	 * 
+	 * @param threads The number of simultaneous simulations.
+	 */
+	public ParallelEvaluator(int threads) {
+		executor = Executors.newFixedThreadPool(threads);
+	}
+	
+	@Override
+	public void evaluate(List<Individual> individuals, final Individual baseline, final int simulations, final EarlyExit earlyExit) {
+		// Submit one simulation task per individual
+		List<Future<?>> results = new ArrayList<Future<?>>(individuals.size());
+		for (final Individual individual: individuals)
+			results.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					individual.run(baseline, simulations, earlyExit);
+				}
+			}));
+		waitFor(results);
+	}
+	
+	@Override
+	public void sample(List<Individual> individuals, final Individual baseline, final long[] seeds, final int target, final EarlyExit earlyExit) {
+		// Submit one task per individual, which runs all of its new seeds
+		List<Future<?>> results = new ArrayList<Future<?>>(individuals.size());
+		for (final Individual individual: individuals)
+			results.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					individual.sample(baseline, seeds, target, earlyExit);
+				}
+			}));
+		waitFor(results);
+	}
+	
+	/**
+	 * Waits for all of the submitted tasks to finish.
+	 */
+	private void waitFor(List<Future<?>> results) {
+		for (Future<?> result: results) {
+			try {
+				result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
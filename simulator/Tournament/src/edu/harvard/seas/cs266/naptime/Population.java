@@ -8,8 +8,13 @@ package edu.harvard.seas.cs266.naptime;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import ec.util.MersenneTwisterFast;
 
@@ -52,16 +57,86 @@ public class Population {
 	 */
 	private Individual progenitor;
 	
+	/**
+	 * Seeds the mutation and selection generators; only differs from
+	 * seed for islands other than the first.
+	 */
+	private long generatorSeed = seed;
+	
 	/**
 	 * The current set of individuals in this population.
 	 */
 	private List<Individual> individuals;
 	
+	/**
+	 * The individuals of the last generation evaluated, with their fitness.
+	 */
+	private List<Individual> evaluated = new ArrayList<Individual>();
+	
 	/**
 	 * The number of generations for which this population has evolved.
 	 */
 	private int generations = 0;
 	
+	/**
+	 * How fitness simulations are run each generation. Defaults to serial.
+	 */
+	private Evaluator evaluator = new SerialEvaluator();
+	
+	/**
+	 * How parents are chosen each generation. Defaults to roulette.
+	 */
+	private Selection selection = new RouletteSelection();
+	
+	/**
+	 * Fitness of strategies already simulated, or null to always simulate.
+	 */
+	private FitnessCache cache = null;
+	
+	/**
+	 * When to stop fitness simulations early, or null to always run them to the end.
+	 */
+	private EarlyExit earlyExit = null;
+	
+	/**
+	 * Saves the population every few generations, or null to never save it.
+	 */
+	private Checkpoint checkpoint = null;
+	
+	/**
+	 * Where each generation's metrics go, or null to not collect them.
+	 */
+	private Telemetry telemetry = null;
+	
+	/**
+	 * Whether the stats line ends with the mean and largest node counts.
+	 */
+	private boolean reportSizes = false;
+	
+	/**
+	 * Whether the stats line reports cache hits and misses, which it only
+	 * does if the cache was asked for, so the default line is unchanged.
+	 */
+	private boolean reportCache = false;
+	
+	/**
+	 * Seeds shared by every individual when sampling adaptively, or null
+	 * to run each individual a fixed number of times instead.
+	 */
+	private long[] seeds = null;
+	
+	/**
+	 * When sampling adaptively, how many seeds every individual gets, and
+	 * how many more are added each round to those that need them.
+	 */
+	private int seedBatch;
+	
+	/**
+	 * When sampling adaptively, the standard normal quantile of the
+	 * confidence intervals (e.g. 1.96 for 95%).
+	 */
+	private double confidence;
+	
 	/**
 	 * Initialize the population with a known working individual and
 	 * create a number of mutations for initial diversity.
@@ -89,6 +164,26 @@ public class Population {
 			individuals.add(individual);
 		}
 	}
+	
+	/**
+	 * Makes this population evolve differently from others started the same
+	 * way, by reseeding mutation and selection and regenerating the initial
+	 * mutations. Fitness simulations are unaffected, so fitness stays
+	 * comparable between populations. Must be called before evolve().
+	 * 
+	 * @param offset Added to the seed; 0 leaves the population as it is.
+	 */
+	public void diversify(long offset) {
+		if (offset == 0)
+			return;
+		generatorSeed = seed + offset;
+		MersenneTwisterFast generator = new MersenneTwisterFast(generatorSeed);
+		for (int i = 1; i < size; i++) {
+			Individual individual = new Individual(progenitor);
+			individual.mutate(mutationRate, generator);
+			individuals.set(i, individual);
+		}
+	}
 
 	/**
 	 * The main "tick" of the genetic programming algorithm. Determines the
@@ -99,45 +194,121 @@ public class Population {
 	 * the fittest from a previous generation.
 	 */
 	public Individual evolve() {
-		// Update fitness by running the individual against the baseline
-		for (Individual individual: individuals) {
-			// Run the simulation for this individual, comparing against the baseline
-			individual.run(baseline, simulations);
-			//System.out.printf("%d %x %f\n", generations, individual.hashCode(), individual.getFitness());
+		// Update fitness by running the individuals against the baseline
+		if (telemetry != null)
+			telemetry.startGeneration();
+		if (earlyExit != null)
+			earlyExit.resetStatistics();
+		int samples = 0;
+		if (seeds != null) {
+			// Sample everyone on the first batch of seeds
+			for (Individual individual: individuals)
+				samples -= individual.getSampleCount();
+			int target = seedBatch;
+			evaluator.sample(individuals, baseline, seeds, target, earlyExit);
+			
+			// Then add seeds only for those that might be on the other side of the
+			// selection threshold, where the expected number of offspring crosses one
+			while (target < seeds.length) {
+				target += seedBatch;
+				double threshold = selection.getThreshold(individuals);
+				List<Individual> uncertain = new ArrayList<Individual>();
+				for (Individual individual: individuals)
+					if (individual.getSampleCount() < target &&
+						Math.abs(individual.getFitness() - threshold) < individual.getConfidenceHalfWidth(confidence))
+						uncertain.add(individual);
+				if (uncertain.size() == 0)
+					break;
+				evaluator.sample(uncertain, baseline, seeds, target, earlyExit);
+			}
+			for (Individual individual: individuals)
+				samples += individual.getSampleCount();
+		} else if (cache == null)
+			evaluator.evaluate(individuals, baseline, simulations, earlyExit);
+		else {
+			// Only simulate strategies not seen before, and each only once
+			cache.resetStatistics();
+			Map<Long, Individual> originals = new HashMap<Long, Individual>();
+			List<Individual> unknown = new ArrayList<Individual>();
+			List<Individual> duplicates = new ArrayList<Individual>();
+			List<Long> duplicateKeys = new ArrayList<Long>();
+			for (Individual individual: individuals) {
+				long key = cache.key(individual);
+				if (originals.containsKey(key)) {
+					duplicates.add(individual);
+					duplicateKeys.add(key);
+					cache.countHit();
+					continue;
+				}
+				Double fitness = cache.get(key);
+				if (fitness != null)
+					individual.setFitness(fitness);
+				else {
+					originals.put(key, individual);
+					unknown.add(individual);
+				}
+			}
+			evaluator.evaluate(unknown, baseline, simulations, earlyExit);
+			for (Map.Entry<Long, Individual> original: originals.entrySet())
+				// Estimates depend on this generation's cutoff, so don't keep them
+				if (!original.getValue().wasHopeless())
+					cache.put(original.getKey(), original.getValue().getFitness());
+			for (int d = 0; d < duplicates.size(); d++)
+				duplicates.get(d).setFitness(originals.get(duplicateKeys.get(d)).getFitness());
+			cache.flush();
 		}
 		
-		// Select individuals for reproduction and find the fittest individual in this generation
-		MersenneTwisterFast generator = new MersenneTwisterFast(seed);
+		if (telemetry != null)
+			telemetry.endEvaluation(individuals.size());
+		
+		// Find the fittest individual in this generation
 		double totalFitness = 0.0, maxFitness = 0.0;
-		for (Individual individual: individuals)
-			totalFitness += individual.getFitness();
 		Individual fittest = null;
-		List<Individual> parents = new ArrayList<Individual>(size);
 		for (Individual individual: individuals) {
-			// Check if this individual is the fittest
+			totalFitness += individual.getFitness();
 			if (individual.getFitness() > maxFitness) {
 				maxFitness = individual.getFitness();
 				fittest = individual;
 			}
-			
-			// Randomly select an individual, weighted by fitness
-			double randomFitness = generator.nextDouble()*totalFitness;
-			double summedFitness = 0.0;
-			for (Individual parent: individuals) {
-				if (summedFitness <= randomFitness && randomFitness < summedFitness + parent.getFitness()) {
-					parents.add(parent);
-					break;
-				}
-				summedFitness += parent.getFitness();
-			}
 		}
 		
+		// Measure strategy size, to watch for bloat
+		double totalNodes = 0.0, totalDepth = 0.0;
+		int maxNodes = 0, maxDepth = 0;
+		for (Individual individual: individuals) {
+			int nodes = individual.countNodes(), depth = individual.getDepth();
+			totalNodes += nodes;
+			totalDepth += depth;
+			maxNodes = Math.max(maxNodes, nodes);
+			maxDepth = Math.max(maxDepth, depth);
+		}
+		if (telemetry != null)
+			telemetry.recordSizes(totalNodes/size, maxNodes, totalDepth/size, maxDepth);
+		
+		// Select individuals for reproduction
+		if (telemetry != null)
+			telemetry.startBreeding();
+		MersenneTwisterFast generator = new MersenneTwisterFast(generatorSeed);
+		List<Individual> parents = selection.select(individuals, individuals.size(), generator);
+		
 		// Dump some fitness stats for graphing
-		System.out.printf("%d\t%f\t%f\n", generations, totalFitness/size, maxFitness);
+		String stats = String.format("%d\t%f\t%f", generations, totalFitness/size, maxFitness);
+		if (seeds != null)
+			stats += String.format("\t%d", samples);
+		else if (cache != null && reportCache)
+			stats += String.format("\t%d\t%d", cache.getHits(), cache.getMisses());
+		if (earlyExit != null) {
+			stats += "\t" + earlyExit.getCounts();
+			earlyExit.updateCutoff(totalFitness/size);
+		}
+		if (reportSizes)
+			stats += String.format("\t%f\t%d", totalNodes/size, maxNodes);
+		System.out.printf("%s\n", stats);
 		
 		// Pairwise mate the parents, then mutate their offspring
 		//   Don't include all parents - keep fittest individual, and
 		//   a mutation of it.
+		evaluated = new ArrayList<Individual>(individuals);
 		individuals.clear();
 		individuals.add(fittest);
 		Individual fittestMutant = new Individual(fittest);
@@ -146,24 +317,230 @@ public class Population {
 		for (int i = 2; i < parents.size(); i += 2) {
 			individuals.addAll(parents.get(i).crossoverAndMutate(parents.get(i + 1), mutationRate, generator));
 		}
+		if (telemetry != null) {
+			telemetry.endBreeding();
+			telemetry.endGeneration(generations, totalFitness/size, maxFitness);
+		}
 		
 		// Tick
 		generations++;
+		if (checkpoint != null)
+			checkpoint.save(generations, generatorSeed, earlyExit != null ? earlyExit.getCutoff() : 0.0, individuals);
 		
 		// Return the current fittest individual
 		return fittest;
 	}
 	
+	/**
+	 * @param count How many individuals to return.
+	 * @return The fittest individuals of the last generation evaluated, fittest first.
+	 */
+	public List<Individual> getFittest(int count) {
+		List<Individual> sorted = new ArrayList<Individual>(evaluated);
+		Collections.sort(sorted, new Comparator<Individual>() {
+			public int compare(Individual left, Individual right) {
+				return Double.compare(right.getFitness(), left.getFitness());
+			}
+		});
+		return sorted.subList(0, Math.min(count, sorted.size()));
+	}
+	
+	/**
+	 * Replaces the last of the next generation's offspring with migrants
+	 * from other populations. The fittest individual and its mutant are
+	 * always kept.
+	 */
+	public void immigrate(List<Individual> immigrants) {
+		int replaced = Math.min(immigrants.size(), individuals.size() - 2);
+		for (int i = 0; i < replaced; i++)
+			individuals.set(individuals.size() - 1 - i, immigrants.get(i));
+	}
+	
+	/**
+	 * Replaces how fitness simulations are run, e.g. with a ParallelEvaluator.
+	 * 
+	 * @param evaluator The new evaluator; the old one is shut down.
+	 */
+	public void setEvaluator(Evaluator evaluator) {
+		if (evaluator instanceof BatchEvaluator && cache != null)
+			throw new IllegalStateException("Batch fitness can differ from serial, so it can't be cached");
+		this.evaluator.shutdown();
+		this.evaluator = evaluator;
+	}
+	
+	/**
+	 * Replaces how parents are chosen, e.g. with a TournamentSelection.
+	 */
+	public void setSelection(Selection selection) {
+		this.selection = selection;
+	}
+	
+	/**
+	 * Turns on caching of fitness for strategies already simulated. Not
+	 * with a BatchEvaluator, whose fitness can differ from serial.
+	 * 
+	 * @param capacity Maximum number of cached strategies.
+	 * @param path File to load previous results from and save new ones to, or null.
+	 */
+	public void setCache(int capacity, File path) throws IOException {
+		if (evaluator instanceof BatchEvaluator)
+			throw new IllegalStateException("Batch fitness can differ from serial, so it can't be cached");
+		if (cache != null)
+			cache.close();
+		cache = new FitnessCache(baseline, simulations, earlyExit, capacity);
+		if (path != null)
+			cache.persistTo(path);
+	}
+	
+	/**
+	 * Turns on stopping fitness simulations early. Must be called before
+	 * setCache(), since cached fitness depends on it.
+	 */
+	public void setEarlyExit(EarlyExit earlyExit) {
+		this.earlyExit = earlyExit;
+	}
+	
+	/**
+	 * Switches from running every individual a fixed number of times to
+	 * sampling adaptively: every individual is run on the same batch of
+	 * seeds (common random numbers), then individuals whose confidence
+	 * interval still straddles the selection threshold get further batches.
+	 * Fitness then varies with how many samples were taken, so the cache
+	 * isn't used.
+	 * 
+	 * @param batch How many seeds to add at a time (at least 2, for a confidence interval).
+	 * @param maximum The most seeds any individual is run on.
+	 * @param confidence The standard normal quantile of the confidence intervals.
+	 */
+	public void setSampling(int batch, int maximum, double confidence) {
+		if (batch < 2)
+			throw new IllegalArgumentException(String.format("Seed batches must be at least 2, got %d", batch));
+		this.seedBatch = batch;
+		this.confidence = confidence;
+		
+		// The first seed is the one fixed-count runs start from
+		seeds = new long[Math.max(batch, maximum)];
+		MersenneTwisterFast generator = new MersenneTwisterFast(seed);
+		seeds[0] = seed;
+		for (int s = 1; s < seeds.length; s++)
+			seeds[s] = generator.nextLong();
+	}
+	
+	/**
+	 * Turns on saving a Checkpoint every few generations.
+	 */
+	public void setCheckpoint(Checkpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+	
+	/**
+	 * Ends the stats line with the mean and largest node counts.
+	 */
+	public void reportSizes() {
+		reportSizes = true;
+	}
+	
+	/**
+	 * Adds the cache hits and misses to the stats line, if there's a cache.
+	 */
+	public void reportCache() {
+		reportCache = true;
+	}
+	
+	/**
+	 * Turns on collecting per-generation metrics, including from every
+	 * simulation.
+	 */
+	public void setTelemetry(Telemetry telemetry) {
+		this.telemetry = telemetry;
+		Individual.telemetry = telemetry;
+	}
+	
+	/**
+	 * Picks up where a checkpointed run left off, replacing the current
+	 * individuals. Must be called after setEarlyExit() and diversify().
+	 * 
+	 * @param path A checkpoint saved by a run with the same parameters.
+	 */
+	public void resume(File path) throws IOException, InvalidSexpException {
+		Checkpoint.State state = Checkpoint.load(path);
+		if (state.individuals.size() != individuals.size())
+			throw new IOException(String.format("%s has %d individuals, expected %d", path, state.individuals.size(), individuals.size()));
+		generations = state.generations;
+		generatorSeed = state.generatorSeed;
+		if (earlyExit != null)
+			earlyExit.setCutoff(state.cutoff);
+		individuals = state.individuals;
+	}
+	
+	/**
+	 * @return The number of generations this population has evolved.
+	 */
+	public int getGenerations() {
+		return generations;
+	}
+	
+	/**
+	 * Releases any threads held by the evaluator, closes the cache file,
+	 * and waits for the last checkpoint to be written.
+	 */
+	public void shutdown() {
+		evaluator.shutdown();
+		if (cache != null)
+			cache.close();
+		if (checkpoint != null)
+			checkpoint.close();
+		if (telemetry != null)
+			telemetry.close();
+	}
 
 	/**
 	 * Repeatedly runs simulation using genetic programming on robot strategies.
 	 * 
-	 * @param args Path to the baseline strategy S-expression file.
+	 * @param args Path to the baseline strategy S-expression file, etc.,
+	 * optionally followed by "-threads <n>" to run simulations in parallel
+	 * (0 means one thread per processor), "-batch" to run them all in
+	 * lockstep in a BatchSimulator instead (without the fitness cache,
+	 * since simultaneous collisions can resolve differently), "-compile"
+	 * to run compiled strategies instead of interpreting them, "-optimize"
+	 * to run optimized copies of the strategies (folding constants and
+	 * removing dead code; the genomes evolve unchanged), "-cache <n>" to change the
+	 * number of cached fitness results (default 100000, 0 to disable),
+	 * "-cachefile <path>" to keep cached results across runs (either adds
+	 * the cache hits and misses to the stats line), and
+	 * "-idle <steps>", "-stoplost" and "-cutoff <fraction>" to stop
+	 * simulations early when our team stops moving, can no longer catch
+	 * up, or can't reach that fraction of the last generation's mean fitness.
+	 * The stats line then ends with how many simulations ended for each
+	 * EarlyExit.Reason. "-seeds <n>" samples adaptively in batches of n
+	 * seeds (at least 2), up to "-maxseeds <n>" (default four batches) with
+	 * confidence intervals of "-confidence <z>" standard errors (default
+	 * 1.96), around the selection method's threshold; the stats line then
+	 * reports the simulations run instead of cache use, and it can't be
+	 * combined with "-cache" or "-cachefile".
+	 * "-island <host>:<port>" joins an island-model run through an
+	 * IslandCoordinator, exchanging fittest individuals with the other
+	 * populations as often as it says. "-selection <method>" chooses
+	 * parents by roulette (the default), tournament (of "-tournament <n>"
+	 * individuals, default 2), rank or sus (stochastic universal sampling).
+	 * "-checkpoint <path>" saves the population there every
+	 * "-checkpointevery <n>" generations (default 10), and "-resume" first
+	 * continues from that checkpoint if it exists; the number of
+	 * generations still counts from the start of the run. "-telemetry <path>"
+	 * appends each generation's throughput metrics to a file (CSV if it
+	 * ends in .csv, otherwise JSON lines), and "-jmx" publishes them as an
+	 * MBean. "-maxdepth <n>" and "-maxnodes <n>" keep the parent's strategy
+	 * in place of any offspring deeper or larger than that, and
+	 * "-parsimony <lexicographic|tarpeian>" favors smaller individuals
+	 * during selection, either on fitness ties (tournament selection only)
+	 * or by zeroing the fitness of a "-tarpeian <rate>" fraction (default
+	 * 0.3) of the larger than average ones. Any of these add the mean and
+	 * largest node counts to the stats line.
 	 */
 	public static void main(String[] args) {
 		// Check command-line parameters
-		if (args.length != 7) {
-			System.out.println("Usage: population <baseline strategy> <seed strategy> <population size> <mutation rate> <simulation iterations> <# generations> <fittest individual>");
+		if (args.length < 7) {
+			System.out.println("Usage: population <baseline strategy> <seed strategy> <population size> <mutation rate> <simulation iterations> <# generations> <fittest individual> [-threads <n>] [-batch] [-compile] [-optimize] [-cache <n>] [-cachefile <path>] [-idle <steps>] [-stoplost] [-cutoff <fraction>] [-seeds <n>] [-maxseeds <n>] [-confidence <z>] [-island <host>:<port>] [-selection <roulette|tournament|rank|sus>] [-tournament <n>] [-checkpoint <path>] [-checkpointevery <n>] [-resume] [-telemetry <path>] [-jmx] [-maxdepth <n>] [-maxnodes <n>] [-parsimony <lexicographic|tarpeian>] [-tarpeian <rate>]");
 			System.exit(0);
 		}
 		
@@ -171,16 +548,154 @@ public class Population {
 			// Set up population of individuals representing robot strategies
 			Population population = new Population(new File(args[0]), new File(args[1]), Integer.parseInt(args[2]), Double.parseDouble(args[3]), Integer.parseInt(args[4]));
 			
+			// Apply any options
+			int cacheCapacity = 100000;
+			File cachePath = null;
+			boolean cacheRequested = false, batch = false;
+			int idleSteps = 0;
+			boolean stopWhenLost = false;
+			double cutoffFraction = 0.0;
+			int seedBatch = 0, maxSeeds = 0;
+			double confidence = 1.96;
+			Island island = null;
+			String selection = "roulette";
+			int tournamentSize = 2;
+			File checkpointPath = null;
+			int checkpointInterval = 10;
+			boolean resume = false;
+			File telemetryPath = null;
+			boolean jmx = false;
+			String parsimony = null;
+			double tarpeianRate = 0.3;
+			for (int i = 7; i < args.length; i++) {
+				if (args[i].equals("-threads")) {
+					int threads = Integer.parseInt(args[++i]);
+					if (threads == 0)
+						population.setEvaluator(new ParallelEvaluator());
+					else if (threads > 1)
+						population.setEvaluator(new ParallelEvaluator(threads));
+					batch &= threads == 1;
+				} else if (args[i].equals("-batch")) {
+					population.setEvaluator(new BatchEvaluator());
+					batch = true;
+				} else if (args[i].equals("-compile"))
+					Tournament.compileStrategies = true;
+				else if (args[i].equals("-optimize"))
+					Tournament.optimizeStrategies = true;
+				else if (args[i].equals("-cache")) {
+					cacheCapacity = Integer.parseInt(args[++i]);
+					cacheRequested = true;
+				} else if (args[i].equals("-cachefile")) {
+					cachePath = new File(args[++i]);
+					cacheRequested = true;
+				}
+				else if (args[i].equals("-idle"))
+					idleSteps = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-stoplost"))
+					stopWhenLost = true;
+				else if (args[i].equals("-cutoff"))
+					cutoffFraction = Double.parseDouble(args[++i]);
+				else if (args[i].equals("-seeds"))
+					seedBatch = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-maxseeds"))
+					maxSeeds = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-confidence"))
+					confidence = Double.parseDouble(args[++i]);
+				else if (args[i].equals("-island")) {
+					island = new Island(args[++i]);
+					population.diversify(island.getIndex());
+				} else if (args[i].equals("-selection"))
+					selection = args[++i];
+				else if (args[i].equals("-tournament"))
+					tournamentSize = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-checkpoint"))
+					checkpointPath = new File(args[++i]);
+				else if (args[i].equals("-checkpointevery"))
+					checkpointInterval = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-resume"))
+					resume = true;
+				else if (args[i].equals("-telemetry"))
+					telemetryPath = new File(args[++i]);
+				else if (args[i].equals("-jmx"))
+					jmx = true;
+				else if (args[i].equals("-maxdepth"))
+					Individual.maxDepth = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-maxnodes"))
+					Individual.maxNodes = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-parsimony"))
+					parsimony = args[++i];
+				else if (args[i].equals("-tarpeian"))
+					tarpeianRate = Double.parseDouble(args[++i]);
+				else
+					throw new IllegalArgumentException(String.format("Unknown option %s", args[i]));
+			}
+			boolean lexicographic = false;
+			if (parsimony != null && parsimony.equals("lexicographic")) {
+				if (!selection.equals("tournament"))
+					throw new IllegalArgumentException("Lexicographic parsimony needs tournament selection");
+				lexicographic = true;
+			} else if (parsimony != null && !parsimony.equals("tarpeian"))
+				throw new IllegalArgumentException(String.format("Unknown parsimony method %s", parsimony));
+			Selection parentSelection = new RouletteSelection();
+			if (selection.equals("tournament"))
+				parentSelection = new TournamentSelection(tournamentSize, lexicographic);
+			else if (selection.equals("rank"))
+				parentSelection = new RankSelection();
+			else if (selection.equals("sus"))
+				parentSelection = new UniversalSelection();
+			else if (!selection.equals("roulette"))
+				throw new IllegalArgumentException(String.format("Unknown selection method %s", selection));
+			if (parsimony != null && parsimony.equals("tarpeian"))
+				parentSelection = new TarpeianSelection(parentSelection, tarpeianRate);
+			population.setSelection(parentSelection);
+			if (parsimony != null || Individual.maxDepth > 0 || Individual.maxNodes > 0)
+				population.reportSizes();
+			if (idleSteps > 0 || stopWhenLost || cutoffFraction > 0.0)
+				population.setEarlyExit(new EarlyExit(idleSteps, stopWhenLost, cutoffFraction));
+			if (seedBatch > 0 && cacheRequested)
+				throw new IllegalArgumentException("Adaptive sampling doesn't use the fitness cache, so -seeds can't be combined with -cache or -cachefile");
+			if (batch && cacheRequested)
+				throw new IllegalArgumentException("Batch fitness can differ from serial, so -batch can't be combined with -cache or -cachefile");
+			if (seedBatch > 0)
+				population.setSampling(seedBatch, maxSeeds > 0 ? maxSeeds : 4*seedBatch, confidence);
+			else if (cacheCapacity > 0 && !batch) {
+				population.setCache(cacheCapacity, cachePath);
+				if (cacheRequested)
+					population.reportCache();
+			}
+			
+			if (checkpointPath != null) {
+				if (resume && checkpointPath.isFile())
+					population.resume(checkpointPath);
+				population.setCheckpoint(new Checkpoint(checkpointPath, checkpointInterval));
+			}
+			
+			if (telemetryPath != null || jmx) {
+				Telemetry telemetry = new Telemetry();
+				if (telemetryPath != null)
+					telemetry.writeTo(telemetryPath);
+				if (jmx)
+					telemetry.registerMBean();
+				population.setTelemetry(telemetry);
+			}
+			
 			// Evolve several times for testing purposes
 			Individual fittest = null;
-			for (int i = 0; i < Integer.parseInt(args[5]); i++)
+			for (int i = population.getGenerations(); i < Integer.parseInt(args[5]); i++) {
 				fittest = population.evolve();
+				if (island != null)
+					island.migrate(population, i + 1);
+			}
+			if (island != null)
+				island.close();
 			
 			// Dump the best evolved step, so we can see what they learned
 			if (fittest != null)
 				fittest.write(new File(args[6]));
+			population.shutdown();
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
+			System.exit(1);
 		}
 		
 		// Done
@@ -0,0 +1,105 @@
+/**
+ * @file RangeModel.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.16
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+/**
+ * The geometry of the 16 range sensors, shared by Robot and BatchSimulator
+ * so the two stay in step. Obstacles are binned into sectors by comparing
+ * their offset against the sector boundaries, rather than with atan2().
+ * Which wall each sensor faces, and its angle off that wall, depend only
+ * on the robot's orientation, so they're worked out by aim() when that
+ * changes rather than on every step.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class RangeModel {
+	/**
+	 * The number of sensors, evenly spaced counterclockwise from the front.
+	 */
+	public static final int sensors = 16;
+	
+	/**
+	 * The walls a sensor can face: x = field width, y = field height,
+	 * x = 0 and y = 0.
+	 */
+	static final int RIGHT = 0, TOP = 1, LEFT = 2, BOTTOM = 3;
+	
+	/**
+	 * Tangents of the sector boundaries within the first octant.
+	 */
+	private static final double tan1 = Math.tan(Math.PI/16), tan3 = Math.tan(3*Math.PI/16);
+	
+	/**
+	 * Finds the sensor that sees an offset in the robot's frame, i.e. the
+	 * nearest multiple of pi/8 to its angle. Equivalent to
+	 * round(atan2(y, x)*8/pi) mod 16, except within rounding error of a
+	 * boundary between sectors.
+	 */
+	static int sector(double x, double y) {
+		// Fold into the first quadrant, then find the sector within it by octant
+		double ax = Math.abs(x), ay = Math.abs(y);
+		int k;
+		if (ay <= ax)
+			k = ay < tan1*ax ? 0 : (ay < tan3*ax ? 1 : 2);
+		else
+			k = ax <= tan1*ay ? 4 : (ax <= tan3*ay ? 3 : 2);
+		
+		// Unfold into the actual quadrant
+		if (y >= 0)
+			return x >= 0 ? k : 8 - k;
+		else
+			return x >= 0 ? (16 - k) & 15 : 8 + k;
+	}
+	
+	/**
+	 * Works out which wall each sensor faces at an orientation, and the
+	 * cosine of its angle off that wall's normal.
+	 * 
+	 * @param walls Filled in from base with RIGHT, TOP, LEFT or BOTTOM.
+	 * @param cosines Filled in from base.
+	 */
+	static void aim(double orientation, int[] walls, double[] cosines, int base) {
+		for (int r = 0; r < sensors; r++) {
+			double sensorAngle = (orientation + r*Math.PI/8) % (2*Math.PI);
+			if (sensorAngle > Math.PI)
+				sensorAngle -= 2*Math.PI;
+			if (sensorAngle >= -Math.PI/4 && sensorAngle < Math.PI/4) {
+				walls[base + r] = RIGHT;
+				cosines[base + r] = Math.cos(sensorAngle);
+			} else if (sensorAngle >= Math.PI/4 && sensorAngle < 3*Math.PI/4) {
+				walls[base + r] = TOP;
+				cosines[base + r] = Math.cos(sensorAngle - Math.PI/2);
+			} else if (sensorAngle >= 3*Math.PI/4) {
+				walls[base + r] = LEFT;
+				cosines[base + r] = Math.cos(sensorAngle - Math.PI);
+			} else if (sensorAngle < -3*Math.PI/4) {
+				walls[base + r] = LEFT;
+				cosines[base + r] = Math.cos(sensorAngle + Math.PI);
+			} else {
+				walls[base + r] = BOTTOM;
+				cosines[base + r] = Math.cos(sensorAngle + Math.PI/2);
+			}
+		}
+	}
+	
+	/**
+	 * @return The distance from a position to the wall a sensor faces,
+	 * along the sensor's direction, as set up by aim().
+	 */
+	static double toWall(int wall, double cosine, double x, double y, double width, double height) {
+		switch (wall) {
+		case RIGHT:
+			return (width - x)/cosine;
+		case TOP:
+			return (height - y)/cosine;
+		case LEFT:
+			return x/cosine;
+		default:
+			return y/cosine;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/**
+ * @file RankSelection.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.12
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import ec.util.MersenneTwisterFast;
+
+/**
+ * Linear rank selection: like roulette, but each individual's slot is
+ * proportional to its rank (1 for the least fit, n for the fittest)
+ * instead of its fitness, so a few outliers can't take over the
+ * population and small fitness differences still count.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class RankSelection implements Selection {
+	@Override
+	public List<Individual> select(List<Individual> individuals, int count, MersenneTwisterFast generator) {
+		List<Individual> ranked = rank(individuals);
+		
+		// Slot i has size i + 1, so the wheel adds up to n(n + 1)/2
+		double[] cumulative = new double[ranked.size() + 1];
+		for (int i = 0; i < ranked.size(); i++)
+			cumulative[i + 1] = cumulative[i] + (i + 1);
+		double total = cumulative[ranked.size()];
+		
+		List<Individual> parents = new ArrayList<Individual>(count);
+		for (int p = 0; p < count; p++)
+			parents.add(ranked.get(RouletteSelection.search(cumulative, generator.nextDouble()*total)));
+		return parents;
+	}
+	
+	/**
+	 * Rank i (from 0) expects 2(i + 1)/(n + 1) offspring, so the threshold
+	 * is the median fitness.
+	 */
+	@Override
+	public double getThreshold(List<Individual> individuals) {
+		List<Individual> ranked = rank(individuals);
+		int n = ranked.size();
+		return (ranked.get((n - 1)/2).getFitness() + ranked.get(n/2).getFitness())/2;
+	}
+	
+	/**
+	 * @return The individuals ordered from least to most fit.
+	 */
+	static List<Individual> rank(List<Individual> individuals) {
+		List<Individual> ranked = new ArrayList<Individual>(individuals);
+		Collections.sort(ranked, new Comparator<Individual>() {
+			public int compare(Individual left, Individual right) {
+				return Double.compare(left.getFitness(), right.getFitness());
+			}
+		});
+		return ranked;
+	}
+}
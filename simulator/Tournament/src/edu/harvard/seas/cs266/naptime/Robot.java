@@ -1,13 +1,18 @@
 package edu.harvard.seas.cs266.naptime;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import sim.engine.SimState;
 import sim.engine.Steppable;
 import sim.field.continuous.Continuous2D;
 import sim.portrayal.Oriented2D;
+import sim.util.Bag;
 import sim.util.Double2D;
 
 @SuppressWarnings("serial")
-public class Robot implements Steppable, Oriented2D {
+public class Robot implements Steppable, Oriented2D, Agent {
 	/**
 	 * The radius of the round robots.
 	 */
@@ -18,6 +23,11 @@ public class Robot implements Steppable, Oriented2D {
 	 */
 	private Grammar.Step strategy = null;
 	
+	/**
+	 * The compiled form of the strategy, or null to interpret the tree.
+	 */
+	private Grammar.Program program = null;
+	
 	/**
 	 * The parent team of this robot.
 	 */
@@ -31,7 +41,26 @@ public class Robot implements Steppable, Oriented2D {
 	/**
 	 * The robot's current range sensor readings, arranged in 16 radial sectors.
 	 */
-	private double ranges[] = new double[16];
+	private double ranges[] = new double[RangeModel.sensors];
+	
+	/**
+	 * The orientation the sensor geometry below was worked out for, so
+	 * it's only redone when the robot turns.
+	 */
+	private double frameOrientation = Double.NaN;
+	
+	/**
+	 * Sine and cosine of the rotation into the robot's frame (-orientation).
+	 */
+	private double frameSin, frameCos;
+	
+	/**
+	 * The wall each range sensor faces, and the cosine of its angle off
+	 * that wall's normal, from RangeModel.aim().
+	 */
+	private int[] sensorWalls = new int[RangeModel.sensors];
+	
+	private double[] sensorCosines = new double[RangeModel.sensors];
 	
 	/**
 	 * The robot's current "camera" view, a single line of 30 pixels, storing
@@ -61,6 +90,17 @@ public class Robot implements Steppable, Oriented2D {
 	 */
 	private double[] odometer = new double[] {0.0, 0.0, 0.0};
 	
+	/**
+	 * Filled in by the field with what the robot might have run into,
+	 * kept so moving doesn't allocate a new Bag every step.
+	 */
+	private final Bag obstacles = new Bag();
+	
+	/**
+	 * Whether the robot moved or turned at all on its last step.
+	 */
+	boolean moved = false;
+	
 	/**
 	 * The possible states of the robot. Kept small for easier evolution.
 	 */
@@ -90,9 +130,34 @@ public class Robot implements Steppable, Oriented2D {
 	 * @param startAngle The robot's starting orientation
 	 */
 	public Robot(Grammar.Step strategy, Team team, double startAngle) {
+		if (Tournament.optimizeStrategies)
+			strategy = strategy.getOptimized();
 		this.strategy = strategy;
 		this.parent = team;
 		this.orientation = startAngle;
+		if (Tournament.compileStrategies)
+			this.program = strategy.getProgram();
+	}
+	
+	/**
+	 * Puts the robot back the way the constructor left it, so a Tournament
+	 * can be restarted without building new robots.
+	 * 
+	 * @param startAngle The robot's starting orientation
+	 */
+	void reset(double startAngle) {
+		orientation = startAngle;
+		Arrays.fill(ranges, 0.0);
+		Arrays.fill(camera, null);
+		Arrays.fill(depthBuffer, 0.0);
+		leftSpeed = rightSpeed = 0.0;
+		Arrays.fill(odometer, 0.0);
+		moved = false;
+		state = State.SEARCH;
+		carrying = null;
+		treatsInView.clear();
+		objectiveMidpoint = objectiveWidth = 0;
+		Arrays.fill(senses, 0.0);
 	}
 	
 	/**
@@ -106,155 +171,129 @@ public class Robot implements Steppable, Oriented2D {
 		Tournament tourney = (Tournament) state;
 		
 		// Update the sensor state
-		updateRanges(tourney.field);
-		updateCamera(tourney.field);
+		perceive(tourney);
 		
-		// Execute this robot's loaded step program (currently team-wide)
-		try {
+		// Execute this robot's loaded step program (currently team-wide),
+		// which was type-checked when it was built so it can't fail
+		if (program != null)
+			program.eval(this);
+		else
 			strategy.eval(this);
-		} catch (InvalidSexpException e) {
-			// Bad step program, stop simulating
-			System.err.println(e.getMessage());
-			System.err.println(strategy.toString());
-			state.kill();
-			return;
-		}
 		
 		// Run the "motors" at their current speed settings
-		move(tourney.field);
+		move(tourney);
+	}
+	
+	/**
+	 * Redoes the sensor geometry that depends only on orientation, if
+	 * the robot has turned since it was last done.
+	 */
+	private void updateFrame() {
+		if (orientation == frameOrientation)
+			return;
+		frameSin = Math.sin(-orientation);
+		frameCos = Math.cos(-orientation);
+		RangeModel.aim(orientation, sensorWalls, sensorCosines, 0);
+		frameOrientation = orientation;
 	}
 	
 	/**
-	 * Update the robot's internal range sensor readings with
-	 * the closest obstacles on all sides.
+	 * The width of the camera's image plane.
 	 */
-	private void updateRanges(Continuous2D field) {
+	private static final double imageWidth = Math.tan(Math.PI/6)*robotSize;
+	
+	/**
+	 * The tangent of (slightly more than) half the camera's field of view,
+	 * including the half pixel at each edge that still rounds into view.
+	 */
+	private static final double viewSlope = 16*imageWidth/(30*robotSize/2);
+	
+	/**
+	 * Reused by perceive() for the treats the TreatGrid finds.
+	 */
+	private List<Treat> treatsInView = new ArrayList<Treat>();
+	
+	/**
+	 * The midpoint and width of the object in the camera, as of the last
+	 * perceive(), so strategies can ask for them as often as they like.
+	 */
+	private int objectiveMidpoint = 0, objectiveWidth = 0;
+	
+	/**
+	 * What the strategy senses this step, laid out as in Agent.getSenses().
+	 */
+	private final double[] senses = new double[Agent.SENSES];
+	
+	/**
+	 * Update everything the robot senses, in a single pass over what's
+	 * around it: the range sensor readings with the closest obstacles
+	 * on all sides, and the camera buffer with the closest object
+	 * currently in view, along with that object's midpoint and width.
+	 * Only robots are obstacles, and each robot's position relative to
+	 * us is worked out once for both. The camera also checks treats in
+	 * front of it (when searching) and our goal (when carrying).
+	 */
+	void perceive(Tournament tourney) {
 		// Get the robot's current location
+		Continuous2D field = tourney.field;
 		Double2D current = field.getObjectLocation(this);
 		
 		// Reset the sensors
-		for (int r = 0; r < 16; r++)
+		for (int r = 0; r < RangeModel.sensors; r++)
 			ranges[r] = Double.MAX_VALUE;
+		for (int pixel = 0; pixel < 30; pixel++) {
+			depthBuffer[pixel] = Double.MAX_VALUE;
+			camera[pixel] = null;
+		}
 		
-		// Find the closest object to each sensor
-		for (Object obstacle: field.getAllObjects()) {
-			if (obstacle.getClass() == Robot.class && obstacle != this) {
+		// Find the closest robot to each sensor, and draw it into the camera
+		updateFrame();
+		double sin = frameSin, cos = frameCos;
+		for (int o = 0; o < tourney.robots.size(); o++) {
+			Robot obstacle = tourney.robots.get(o);
+			if (obstacle != this) {
 				// Get the relative position vector for this obstacle
-				Double2D position = field.getObjectLocation(obstacle).subtract(current).rotate(-orientation);
+				Double2D location = field.getObjectLocation(obstacle);
+				double dx = location.x - current.x, dy = location.y - current.y;
+				double x = cos*dx + -sin*dy, y = sin*dx + cos*dy;
+				double distance = Math.sqrt(x*x + y*y);
 				
-				// Get the angle to the obstacle
-				double obstacleAngle = Math.atan2(position.y, position.x);
-			
-				// Determine which sensor by which it would be seen
-				int sensor = (((int) Math.round(obstacleAngle*8/Math.PI)) + 16) % 16;
+				// Update the closest obstacle to the sensor by which it would be seen, less its radius
+				int sensor = RangeModel.sector(x, y);
+				double range = distance - Robot.robotSize/2;
+				if (range < ranges[sensor])
+					ranges[sensor] = range;
 				
-				// Update the closest obstacle, less its radius
-				double distance = position.length() - Robot.robotSize/2;
-				if (distance < ranges[sensor])
-					ranges[sensor] = distance;
+				// Robots block the camera, but aren't objectives
+				project(x, y, distance, robotSize/2, null);
 			}
 		}
 		
 		// Update distance to closest wall for each sensor, if there isn't a closer obstacle
-		for (int r = 0; r < 16; r++) {
-			if (ranges[r] == Double.MAX_VALUE) {
-				double sensorAngle = (orientation + r*Math.PI/8) % (2*Math.PI);
-				if (sensorAngle > Math.PI)
-					sensorAngle -= 2*Math.PI;
-				if (sensorAngle >= -Math.PI/4 && sensorAngle < Math.PI/4)
-					ranges[r] = (field.getWidth() - current.x)/Math.cos(sensorAngle);
-				else if (sensorAngle >= Math.PI/4 && sensorAngle < 3*Math.PI/4)
-					ranges[r] = (field.getHeight() - current.y)/Math.cos(sensorAngle - Math.PI/2);
-				else if (sensorAngle >= 3*Math.PI/4)
-					ranges[r] = current.x/Math.cos(sensorAngle - Math.PI);
-				else if (sensorAngle < -3*Math.PI/4)
-					ranges[r] = current.x/Math.cos(sensorAngle + Math.PI);
-				else if (sensorAngle >= -3*Math.PI/4 && sensorAngle < -Math.PI/4)
-					ranges[r] = current.y/Math.cos(sensorAngle + Math.PI/2);
-			}
+		for (int r = 0; r < RangeModel.sensors; r++) {
+			if (ranges[r] == Double.MAX_VALUE)
+				ranges[r] = RangeModel.toWall(sensorWalls[r], sensorCosines[r], current.x, current.y,
+											  field.getWidth(), field.getHeight());
 			
 			// Sensors are on the circumference of the robot, so reduce distance by the radius
 			ranges[r] -= Robot.robotSize/2;
 		}
-	}
-	
-	/**
-	 * Update the robot's internal camera buffer with the closest
-	 * object currently in view.
-	 */
-	private void updateCamera(Continuous2D field) {
-		// Calculate some camera constants
-		final double imageWidth = Math.tan(Math.PI/6)*robotSize;
 		
-		// Get the robot's current location
-		Double2D current = field.getObjectLocation(this);
-		
-		// Find the closest object of the specified type within the field of view
-		for (int pixel = 0; pixel < 30; pixel++) {
-			depthBuffer[pixel] = Double.MAX_VALUE;
-			camera[pixel] = null;
-		}
-		for (Object objective: field.getAllObjects()) {
-			if ((state == State.SEARCH && objective.getClass() == Treat.class) ||
-				(state == State.CARRY && objective == parent.goal) ||
-				objective.getClass() == Robot.class) {
+		// Draw the objectives for our current state
+		if (state == State.SEARCH) {
+			tourney.treats.findInWedge(current.x, current.y, orientation, viewSlope, Treat.treatSize/2, treatsInView);
+			for (int t = 0; t < treatsInView.size(); t++) {
 				// Make sure this treat isn't already being carried
-				if (objective.getClass() == Treat.class && ((Treat) objective).carried)
-					continue;
-				
-				// Get the relative position vector for this objective
-				Double2D position = field.getObjectLocation(objective).subtract(current).rotate(-orientation);
-				
-				// Make sure the objective is in front
-				double objectiveAngle = Math.atan2(position.y, position.x);
-				if (objectiveAngle < -Math.PI/2 || objectiveAngle > Math.PI/2)
-					continue;
-				
-				// Determine the span of the object in the image plane
-				double imagePlaneLeft = 0, imagePlaneRight = 0;
-				if (objective.getClass() == Treat.class) {
-					// Treats are round, so edges are based on radius
-					imagePlaneLeft = (position.y - Treat.treatSize/2)*(robotSize/2)/position.x;
-					imagePlaneRight = (position.y + Treat.treatSize/2)*(robotSize/2)/position.x;				
-				} else if (objective.getClass() == Robot.class) {
-					// Robots are round, so edges are based on radius
-					imagePlaneLeft = (position.y - robotSize/2)*(robotSize/2)/position.x;
-					imagePlaneRight = (position.y + robotSize/2)*(robotSize/2)/position.x;				
-				} else if (objective.getClass() == Goal.class) {
-					// Goal is tall, so reproject each end
-					Double2D halfGoal = new Double2D(0, Goal.goalSize/2);
-					Double2D leftPost, rightPost;
-					if (field.getObjectLocation(objective).x == 0.0) {
-						leftPost = field.getObjectLocation(objective).add(halfGoal).subtract(current).rotate(-orientation);
-						rightPost = field.getObjectLocation(objective).subtract(halfGoal).subtract(current).rotate(-orientation);
-					} else {
-						leftPost = field.getObjectLocation(objective).subtract(halfGoal).subtract(current).rotate(-orientation);
-						rightPost = field.getObjectLocation(objective).add(halfGoal).subtract(current).rotate(-orientation);						
-					}
-					imagePlaneLeft = leftPost.y*(robotSize/2)/leftPost.x;
-					imagePlaneRight = rightPost.y*(robotSize/2)/rightPost.x;
-				}
-				
-				// Convert into pixels
-				int pixelLeft = (int) Math.round(imagePlaneLeft*30/imageWidth) + 14;
-				int pixelRight = (int) Math.round(imagePlaneRight*30/imageWidth) + 14;
-				
-				// Keep in bounds
-				if (pixelLeft < 0)
-					pixelLeft = 0;
-				if (pixelRight > 29)
-					pixelRight = 29;
-				
-				// Update the depth buffer and camera where not obscured
-				double distance = position.length();
-				for (int pixel = pixelLeft; pixel <= pixelRight; pixel++) {
-					if (distance < depthBuffer[pixel]) {
-						depthBuffer[pixel] = distance;
-						camera[pixel] = objective.getClass() != Robot.class ? objective : null;
-					}
+				Treat treat = treatsInView.get(t);
+				if (!treat.carried) {
+					Double2D location = field.getObjectLocation(treat);
+					double dx = location.x - current.x, dy = location.y - current.y;
+					double x = cos*dx + -sin*dy, y = sin*dx + cos*dy;
+					project(x, y, Math.sqrt(x*x + y*y), Treat.treatSize/2, treat);
 				}
 			}
-		}
+		} else if (state == State.CARRY)
+			projectGoal(field, current, sin, cos, parent.goal);
 		
 		// "segment" by removing all but the front-most object
 		double minDistance = Double.MAX_VALUE;
@@ -266,13 +305,8 @@ public class Robot implements Steppable, Oriented2D {
 		for (int pixel = 0; pixel < 30; pixel++)
 			if (depthBuffer[pixel] != minDistance)
 				camera[pixel] = null;
-	}
-	
-	/**
-	 * Hacky method for finding the midpoint of the object in view.
-	 */
-	public int findMidpointOfObjectiveInView() {
-		// Loop through the camera buffer, checking for object boundaries
+		
+		// Find the boundaries of what's left
 		int pixelLeft = -1;
 		int pixelRight = -1;
 		for (int pixel = 0; pixel < 30; pixel++) {
@@ -282,38 +316,113 @@ public class Robot implements Steppable, Oriented2D {
 				pixelRight = pixel - 1;
 		}
 		
-		// Check for edge-crossing and calculate the midpoint
-		if (pixelLeft == -1)
-			return 0;
-		else if (pixelRight == -1)
-			return (pixelLeft + 29)/2;
-		else
-			return (pixelLeft + pixelRight)/2;
+		// Check for edge-crossing and calculate the midpoint and width
+		if (pixelLeft == -1) {
+			objectiveMidpoint = 0;
+			objectiveWidth = 0;
+		} else if (pixelRight == -1) {
+			objectiveMidpoint = (pixelLeft + 29)/2;
+			objectiveWidth = 30 - pixelLeft;
+		} else {
+			objectiveMidpoint = (pixelLeft + pixelRight)/2;
+			objectiveWidth = pixelRight - pixelLeft;
+		}
+		
+		// Snapshot it all for the strategy, along with the odometer
+		System.arraycopy(ranges, 0, senses, Agent.RANGES, RangeModel.sensors);
+		senses[Agent.MIDPOINT] = objectiveMidpoint;
+		senses[Agent.WIDTH] = objectiveWidth;
+		senses[Agent.TRAVEL] = getDistanceTraveled();
+		senses[Agent.ROTATIONS] = getRotations();
 	}
-
+	
 	/**
-	 * Hacky method for finding the width of the object in view.
+	 * Draw a single round object into the camera and depth buffers, if in view.
+	 * 
+	 * @param x The object's position in the robot's frame.
+	 * @param y The object's position in the robot's frame.
+	 * @param distance The object's distance from the robot.
+	 * @param radius The object's radius.
+	 * @param objective What the camera records for the object (null for robots).
 	 */
-	public int findWidthOfObjectiveInView() {
-		// Loop through the camera buffer, checking for object boundaries
-		int pixelLeft = -1;
-		int pixelRight = -1;
-		for (int pixel = 0; pixel < 30; pixel++) {
-			if (pixelLeft == -1 && camera[pixel] != null)
-				pixelLeft = pixel;
-			if (pixelLeft != -1 && pixelRight == -1 && camera[pixel] == null)
-				pixelRight = pixel - 1;
+	private void project(double x, double y, double distance, double radius, Object objective) {
+		// Make sure the objective is in front
+		if (x < 0)
+			return;
+		
+		// Round objects' edges are based on radius
+		double imagePlaneLeft = (y - radius)*(robotSize/2)/x;
+		double imagePlaneRight = (y + radius)*(robotSize/2)/x;
+		draw(imagePlaneLeft, imagePlaneRight, distance, objective);
+	}
+	
+	/**
+	 * Draw a goal into the camera and depth buffers, if in view.
+	 * 
+	 * @param sin Sine of the rotation into the robot's frame (-orientation).
+	 * @param cos Cosine of the rotation into the robot's frame (-orientation).
+	 */
+	private void projectGoal(Continuous2D field, Double2D current, double sin, double cos, Goal goal) {
+		// Get the relative position vector for the goal
+		Double2D location = field.getObjectLocation(goal);
+		double dx = location.x - current.x, dy = location.y - current.y;
+		double x = cos*dx + -sin*dy, y = sin*dx + cos*dy;
+		
+		// Make sure the goal is in front
+		if (x < 0)
+			return;
+		
+		// Goal is tall, so reproject each end
+		double leftPostY, rightPostY;
+		if (location.x == 0.0) {
+			leftPostY = location.y + Goal.goalSize/2 - current.y;
+			rightPostY = location.y - Goal.goalSize/2 - current.y;
+		} else {
+			leftPostY = location.y - Goal.goalSize/2 - current.y;
+			rightPostY = location.y + Goal.goalSize/2 - current.y;
 		}
+		double imagePlaneLeft = (sin*dx + cos*leftPostY)*(robotSize/2)/(cos*dx + -sin*leftPostY);
+		double imagePlaneRight = (sin*dx + cos*rightPostY)*(robotSize/2)/(cos*dx + -sin*rightPostY);
+		draw(imagePlaneLeft, imagePlaneRight, Math.sqrt(x*x + y*y), goal);
+	}
+	
+	/**
+	 * Fill in the pixels an object spans where it isn't obscured.
+	 */
+	private void draw(double imagePlaneLeft, double imagePlaneRight, double distance, Object objective) {
+		// Convert into pixels
+		int pixelLeft = (int) Math.round(imagePlaneLeft*30/imageWidth) + 14;
+		int pixelRight = (int) Math.round(imagePlaneRight*30/imageWidth) + 14;
 		
-		// Check for edge-crossing and calculate the width
-		if (pixelLeft == -1)
-			return 0;
-		else if (pixelRight == -1)
-			return 30 - pixelLeft;
-		else
-			return pixelRight - pixelLeft;
+		// Keep in bounds
+		if (pixelLeft < 0)
+			pixelLeft = 0;
+		if (pixelRight > 29)
+			pixelRight = 29;
+		
+		// Update the depth buffer and camera where not obscured
+		for (int pixel = pixelLeft; pixel <= pixelRight; pixel++) {
+			if (distance < depthBuffer[pixel]) {
+				depthBuffer[pixel] = distance;
+				camera[pixel] = objective;
+			}
+		}
 	}
-
+	
+	/**
+	 * @return The midpoint of the object in view, as of the last perceive().
+	 */
+	public int findMidpointOfObjectiveInView() {
+		return objectiveMidpoint;
+	}
+	
+	/**
+	 * @return The width of the object in view, as of the last perceive().
+	 */
+	public int findWidthOfObjectiveInView() {
+		return objectiveWidth;
+	}
+	
 	/**
 	 * Rudimentary accessor to expose the camera buffer to the inspector.
 	 * 
@@ -343,7 +452,8 @@ public class Robot implements Steppable, Oriented2D {
 	/**
 	 * Uses the current speed to adjust the robot's position and orientation.
 	 */
-	private void move(Continuous2D field) {
+	private void move(Tournament tourney) {
+		Continuous2D field = tourney.field;
 		final double minTreatDistance = (Robot.robotSize + Treat.treatSize)/2;
 		
 		// Update the orientation based on relative wheel velocity
@@ -361,50 +471,59 @@ public class Robot implements Steppable, Oriented2D {
 		double midpointSpeed = (rightSpeed + leftSpeed)/2;
 		odometer[0] += midpointSpeed;
 		Double2D current = field.getObjectLocation(this);
-		Double2D direction = new Double2D(Math.cos(orientation), Math.sin(orientation));
-		field.setObjectLocation(this, current.add(direction.multiply(midpointSpeed)));
+		double directionX = Math.cos(orientation), directionY = Math.sin(orientation);
+		double x = current.x + directionX*midpointSpeed, y = current.y + directionY*midpointSpeed;
+		field.setObjectLocation(this, new Double2D(x, y));
 		
-		// Check for collisions
-		for (Object obstacle: field.getObjectsWithinDistance(current, Robot.robotSize, false, true)) {
+		// Check for collisions (working in primitives, allocating only when something moves)
+		field.getObjectsWithinDistance(current, Robot.robotSize, false, true, obstacles);
+		for (int o = 0; o < obstacles.numObjs; o++) {
+			Object obstacle = obstacles.objs[o];
+			if (obstacle == this)
+				continue;
 			Double2D obstaclePosition = field.getObjectLocation(obstacle);
-			Double2D position = field.getObjectLocation(this);
+			double dx = x - obstaclePosition.x, dy = y - obstaclePosition.y;
+			double distance = Math.sqrt(dx*dx + dy*dy);
 			if (obstacle.getClass() == Robot.class) {
-				if (position.distance(obstaclePosition) < Robot.robotSize) {
+				if (distance < Robot.robotSize && distance > 0) {
 					// "Bounce" off the obstacle
-					field.setObjectLocation(this, obstaclePosition.add(position.subtract(obstaclePosition).resize(Robot.robotSize)));
+					x = obstaclePosition.x + dx*Robot.robotSize/distance;
+					y = obstaclePosition.y + dy*Robot.robotSize/distance;
+					field.setObjectLocation(this, new Double2D(x, y));
 				}
 			} else if (obstacle.getClass() == Treat.class && obstacle != carrying) {
-				if (position.distance(obstaclePosition) < minTreatDistance) {
+				if (distance < minTreatDistance && distance > 0) {
 					// "Shove" the treat
-					field.setObjectLocation(obstacle, position.add(obstaclePosition.subtract(position).resize(minTreatDistance)));
+					tourney.moveTreat((Treat) obstacle, new Double2D(x + -dx*minTreatDistance/distance, y + -dy*minTreatDistance/distance));
 				}
 			}
 		}
 		
 		// Check for wall collisions
-		Double2D position = field.getObjectLocation(this);
-		double x, y;
-		if (position.x < Robot.robotSize/2)
-			x = Robot.robotSize/2;
-		else if (position.x > field.getWidth() - Robot.robotSize/2)
-			x = field.getWidth() - Robot.robotSize/2;
+		double nextX, nextY;
+		if (x < Robot.robotSize/2)
+			nextX = Robot.robotSize/2;
+		else if (x > field.getWidth() - Robot.robotSize/2)
+			nextX = field.getWidth() - Robot.robotSize/2;
 		else
-			x = position.x;
-		if (position.y < Robot.robotSize/2)
-			y = Robot.robotSize/2;
-		else if (position.y > field.getHeight() - Robot.robotSize/2)
-			y = field.getWidth() - Robot.robotSize/2;
+			nextX = x;
+		if (y < Robot.robotSize/2)
+			nextY = Robot.robotSize/2;
+		else if (y > field.getHeight() - Robot.robotSize/2)
+			nextY = field.getWidth() - Robot.robotSize/2;
 		else
-			y = position.y;
-		Double2D next = new Double2D(x, y);
-		field.setObjectLocation(this, next);
+			nextY = y;
+		if (nextX != x || nextY != y)
+			field.setObjectLocation(this, new Double2D(nextX, nextY));
 		
 		// Update the long-term odometer for the actual distance moved after collisions
-		odometer[2] += next.distance(current);
+		double movedX = nextX - current.x, movedY = nextY - current.y;
+		odometer[2] += Math.sqrt(movedX*movedX + movedY*movedY);
+		moved = movedX != 0.0 || movedY != 0.0 || deltaTheta != 0.0;
 		
 		// If we're carrying something, update its position too
 		if (carrying != null)
-			field.setObjectLocation(carrying, field.getObjectLocation(this).add(direction.multiply(minTreatDistance)));
+			tourney.moveTreat(carrying, new Double2D(nextX + directionX*minTreatDistance, nextY + directionY*minTreatDistance));
 	}
 	
 	/**
@@ -413,7 +532,7 @@ public class Robot implements Steppable, Oriented2D {
 	 * @param left The desired speed of the left motor.
 	 * @param right The desired speed of the right motor.
 	 */
-	protected void setSpeed(double left, double right) {
+	public void setSpeed(double left, double right) {
 		final double maxSpeed = 0.6;
 		if (left < -maxSpeed)
 			leftSpeed = -maxSpeed;
@@ -434,7 +553,7 @@ public class Robot implements Steppable, Oriented2D {
 	 * 
 	 * @return True on success, false if not carrying anything.
 	 */
-	public Boolean drop() {
+	public boolean drop() {
 		// Pick up food if possible
 		if (carrying != null) {
 			carrying.carried = false;
@@ -451,7 +570,7 @@ public class Robot implements Steppable, Oriented2D {
 	 * @return True on success, false otherwise (already carrying something,
 	 * not a treat, treat out of range, etc.).
 	 */
-	public Boolean pickUp() {
+	public boolean pickUp() {
 		// Pick up food if possible
 		if (carrying == null) {
 			for (int pixel = 0; pixel < 30; pixel++)
@@ -466,6 +585,20 @@ public class Robot implements Steppable, Oriented2D {
 		return false;
 	}
 
+	/**
+	 * @return The strategy this robot runs.
+	 */
+	Grammar.Step getStrategy() {
+		return strategy;
+	}
+	
+	/**
+	 * @return The compiled form of the strategy, or null if it's interpreted.
+	 */
+	Grammar.Program getProgram() {
+		return program;
+	}
+	
 	/**
 	 * Accessor for the robot's current facing. Implements the Oriented2D interface.
 	 */
@@ -474,6 +607,13 @@ public class Robot implements Steppable, Oriented2D {
 		return orientation;
 	}
 
+	/**
+	 * Snapshot of everything the strategy can sense, taken by perceive().
+	 */
+	public double[] getSenses() {
+		return senses;
+	}
+	
 	/**
 	 * Accessor for the robot's range sensors.
 	 * 
@@ -489,7 +629,7 @@ public class Robot implements Steppable, Oriented2D {
 	 * 
 	 * @return True if the robot's state matches the specified state.
 	 */
-	public Boolean inState(State state) {
+	public boolean inState(State state) {
 		return this.state == state;
 	}
 
@@ -502,6 +642,7 @@ public class Robot implements Steppable, Oriented2D {
 		this.state = state;
 		odometer[0] = 0.0;
 		odometer[1] = 0.0;
+		senses[Agent.TRAVEL] = senses[Agent.ROTATIONS] = 0.0;
 	}
 	
 	/**
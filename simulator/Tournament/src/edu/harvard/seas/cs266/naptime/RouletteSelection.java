@@ -0,0 +1,78 @@
+/**
+ * @file RouletteSelection.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.12
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ec.util.MersenneTwisterFast;
+
+/**
+ * Fitness-proportionate selection: each parent is an individual chosen
+ * with probability proportional to its fitness. This is the reference
+ * behavior, and draws the same parents as the original linear scan, but
+ * finds each in the cumulative fitness by binary search.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class RouletteSelection implements Selection {
+	@Override
+	public List<Individual> select(List<Individual> individuals, int count, MersenneTwisterFast generator) {
+		// Running totals, summed in population order like the original scan
+		double[] cumulative = new double[individuals.size() + 1];
+		for (int i = 0; i < individuals.size(); i++)
+			cumulative[i + 1] = cumulative[i] + individuals.get(i).getFitness();
+		double totalFitness = cumulative[individuals.size()];
+		
+		List<Individual> parents = new ArrayList<Individual>(count);
+		for (int p = 0; p < count; p++) {
+			// Randomly select an individual, weighted by fitness (none if nobody has any)
+			int chosen = search(cumulative, generator.nextDouble()*totalFitness);
+			if (chosen < individuals.size())
+				parents.add(individuals.get(chosen));
+		}
+		return parents;
+	}
+	
+	/**
+	 * Fitness-proportional, so the threshold is the mean fitness.
+	 */
+	@Override
+	public double getThreshold(List<Individual> individuals) {
+		return meanFitness(individuals);
+	}
+	
+	/**
+	 * @return The mean fitness of a generation.
+	 */
+	static double meanFitness(List<Individual> individuals) {
+		double totalFitness = 0.0;
+		for (Individual individual: individuals)
+			totalFitness += individual.getFitness();
+		return totalFitness/individuals.size();
+	}
+	
+	/**
+	 * Finds the slot containing a value on a roulette wheel.
+	 * 
+	 * @param cumulative The running total of the slot sizes, starting with 0.
+	 * @param value Where the wheel stopped.
+	 * @return The first slot i with cumulative[i] <= value < cumulative[i + 1],
+	 * or cumulative.length - 1 if the value is past the end.
+	 */
+	static int search(double[] cumulative, double value) {
+		int low = 0, high = cumulative.length - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (cumulative[middle + 1] > value)
+				high = middle;
+			else
+				low = middle + 1;
+		}
+		return low;
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * @file Scenario.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.15
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import ec.util.MersenneTwisterFast;
+import sim.util.Double2D;
+
+/**
+ * Where the treats start in a Tournament whose random number generator
+ * has just been seeded, and the generator state that placing them leaves
+ * behind. The goals and robots always start in the same places, so the
+ * treats are the only part of the initial state that depends on the seed;
+ * placing them takes rejection sampling against the field, so it's done
+ * once per seed and then shared, read-only, by every Tournament (on any
+ * thread) that starts from that seed.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class Scenario {
+	/**
+	 * Seeds beyond this many aren't remembered, to bound memory when
+	 * every simulation gets a different seed.
+	 */
+	private static final int capacity = 4096;
+	
+	private static final ConcurrentHashMap<Long, Scenario> scenarios = new ConcurrentHashMap<Long, Scenario>();
+	
+	/**
+	 * Where each treat starts, in placement order.
+	 */
+	final Double2D[] treatLocations;
+	
+	/**
+	 * The generator just before and just after placing the treats; never
+	 * stepped themselves.
+	 */
+	private final MersenneTwisterFast initial, random;
+	
+	/**
+	 * @param initial The generator just before placing the treats.
+	 * @param random The generator just after, which is copied.
+	 */
+	Scenario(MersenneTwisterFast initial, Double2D[] treatLocations, MersenneTwisterFast random) {
+		this.initial = initial;
+		this.treatLocations = treatLocations;
+		this.random = (MersenneTwisterFast) random.clone();
+	}
+	
+	/**
+	 * @return Whether a generator is in the state this scenario started
+	 * from, i.e. it really was just given this seed.
+	 */
+	boolean startsFrom(MersenneTwisterFast random) {
+		return initial.stateEquals(random);
+	}
+	
+	/**
+	 * @return A generator to continue the simulation with, exactly as if
+	 * the treats had just been placed.
+	 */
+	MersenneTwisterFast copyRandom() {
+		return (MersenneTwisterFast) random.clone();
+	}
+	
+	/**
+	 * @return The scenario for the given seed and number of treats, or
+	 * null if it hasn't been seen yet (or random isn't freshly seeded).
+	 */
+	static Scenario get(long seed, int treats, MersenneTwisterFast random) {
+		Scenario scenario = scenarios.get(seed);
+		if (scenario == null || scenario.treatLocations.length != treats || !scenario.startsFrom(random))
+			return null;
+		return scenario;
+	}
+	
+	/**
+	 * Remembers the scenario for a seed, unless there are already too many.
+	 */
+	static void put(long seed, Scenario scenario) {
+		if (scenarios.size() < capacity)
+			scenarios.putIfAbsent(seed, scenario);
+	}
+}
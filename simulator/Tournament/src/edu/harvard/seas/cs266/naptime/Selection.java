@@ -0,0 +1,40 @@
+/**
+ * @file Selection.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.12
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.util.List;
+
+import ec.util.MersenneTwisterFast;
+
+/**
+ * Strategy for choosing the parents of the next generation from the
+ * individuals of the current one, according to their fitness.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public interface Selection {
+	/**
+	 * Chooses parents, with replacement. Consecutive parents are mated, so
+	 * implementations shouldn't return them in any particular order.
+	 * 
+	 * @param individuals The current generation, with fitness already evaluated.
+	 * @param count How many parents to choose.
+	 * @param generator The source of randomness.
+	 * @return The parents, usually count of them.
+	 */
+	public List<Individual> select(List<Individual> individuals, int count, MersenneTwisterFast generator);
+	
+	/**
+	 * Finds the fitness at which an individual's expected number of
+	 * offspring crosses one, i.e. where a more precise estimate of its
+	 * fitness would most change the outcome of select().
+	 * 
+	 * @param individuals The current generation, with fitness already evaluated.
+	 * @return The threshold, or NaN if fitness makes no difference.
+	 */
+	public double getThreshold(List<Individual> individuals);
+}
@@ -0,0 +1,35 @@
+/**
+ * @file SerialEvaluator.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.02
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.util.List;
+
+/**
+ * Runs each individual one after another on the calling thread.
+ * This is the reference behavior.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class SerialEvaluator implements Evaluator {
+	@Override
+	public void evaluate(List<Individual> individuals, Individual baseline, int simulations, EarlyExit earlyExit) {
+		for (Individual individual: individuals)
+			// Run the simulation for this individual, comparing against the baseline
+			individual.run(baseline, simulations, earlyExit);
+	}
+	
+	@Override
+	public void sample(List<Individual> individuals, Individual baseline, long[] seeds, int target, EarlyExit earlyExit) {
+		for (Individual individual: individuals)
+			individual.sample(baseline, seeds, target, earlyExit);
+	}
+
+	@Override
+	public void shutdown() {
+		// Nothing to clean up
+	}
+}
@@ -7,12 +7,15 @@
 package edu.harvard.seas.cs266.naptime;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
-
-import ec.util.MersenneTwisterFast;
 
 /**
  * Simple S-expression implementation that makes little distinction
@@ -25,8 +28,23 @@ public class Sexp {
 	
 	private List<Object> children;
 	
+	/**
+	 * Parses an S-expression file, streaming it rather than reading it
+	 * into memory first.
+	 */
 	public Sexp(File sexpPath) throws FileNotFoundException, InvalidSexpException {
-		this(new Scanner(sexpPath, "UTF-8").useDelimiter("\\A").next());
+		Reader reader = new InputStreamReader(new FileInputStream(sexpPath), Charset.forName("UTF-8"));
+		try {
+			parse(reader);
+		} catch (IOException e) {
+			throw new InvalidSexpException(String.format("Could not read %s: %s", sexpPath, e.getMessage()));
+		} finally {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				// Nothing left to read anyway
+			}
+		}
 	}
 	
 	/**
@@ -52,105 +70,94 @@ public class Sexp {
 	}
 	
 	public Sexp(String expression) throws InvalidSexpException {
-		this(expression, (Sexp) null);
+		try {
+			parse(new StringReader(expression));
+		} catch (IOException e) {
+			// Strings can't fail to read, but Java makes me do it
+			throw new InvalidSexpException(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Parses an S-expression from a stream of characters.
+	 */
+	public Sexp(Reader reader) throws IOException, InvalidSexpException {
+		parse(reader);
 	}
 	
-	public Sexp(String expression, Sexp parent) throws InvalidSexpException {
-		// Maintain links up the tree
+	/**
+	 * Used by the parser to build child expressions.
+	 */
+	private Sexp(Sexp parent) {
 		this.parent = parent;
-		
+		children = new ArrayList<Object>();
+	}
+	
+	/**
+	 * Single-pass parser: walks the characters once, building the tree as
+	 * it goes (with an explicit stack of open lists, so deep programs
+	 * can't overflow the call stack) and tracking the position for errors.
+	 * 
+	 * @param reader Source of characters; read in blocks, so need not be buffered.
+	 */
+	private void parse(Reader reader) throws IOException, InvalidSexpException {
 		// Initialize the child atoms/lists
 		children = new ArrayList<Object>();
 		
-		// Track the current nesting depth; we only care about content at the top level
-		int depth = 0;
+		// The innermost list still open, or null outside of the expression
+		Sexp current = null;
+		boolean finished = false;
+		
+		// Accumulate the current atom
+		StringBuilder atom = new StringBuilder();
 		
-		// Accumulate the current token (which could be a child expression)
-		String token = "";
+		// Track the position for error messages
+		int line = 1, column = 0;
 		
-		// Loop through the string, parsing the expression recursively
-		for (int i = 0; i < expression.length(); i++) {
-			// Get the current character
-			char c = expression.charAt(i);
-			
-			// Behave differently depending on parse depth
-			if (depth == 0) {
-				if (c == '(') {
-					depth++;
-				} else if (!Character.isWhitespace(c)) {
-					throw new InvalidSexpException("content outside of expression");
+		char[] buffer = new char[8192];
+		int length;
+		while ((length = reader.read(buffer)) != -1) {
+			for (int i = 0; i < length; i++) {
+				char c = buffer[i];
+				if (c == '\n') {
+					line++;
+					column = 0;
+				} else
+					column++;
+				
+				// Outside of the expression only whitespace is allowed
+				if (current == null) {
+					if (c == '(' && !finished)
+						current = this;
+					else if (!Character.isWhitespace(c))
+						throw new InvalidSexpException("content outside of expression", line, column);
+					continue;
 				}
-			} else if (depth == 1) {
-				if (token == "") {
-					if (!Character.isWhitespace(c)) {
-						token += c;
+				
+				// Any delimiter ends the current atom
+				if (c == '(' || c == ')' || Character.isWhitespace(c)) {
+					if (atom.length() > 0) {
+						current.children.add(atom.toString());
+						atom.setLength(0);
 					}
 					if (c == '(') {
-						depth++;
+						Sexp child = new Sexp(current);
+						current.children.add(child);
+						current = child;
 					} else if (c == ')') {
-						depth--;
+						current = current == this ? null : current.parent;
+						finished = current == null;
 					}
-				} else {
-					if (Character.isWhitespace(c)) {
-						if (token.charAt(0) == '(') {
-							children.add(new Sexp(token, this));
-						} else {
-							children.add(token);
-						}
-						token = "";
-					} else if (c == ')') {
-						if (token.charAt(0) == '(') {
-							children.add(new Sexp(token, this));
-						} else {
-							children.add(token);
-						}
-						token = "";
-						depth--;
-					} else {
-						token += c;
-					}
-				}
-			} else {
-				token += c;
-				if (c == '(') {
-					depth++;
-				} else if (c == ')') {
-					depth--;
-				}
+				} else
+					atom.append(c);
 			}
 		}
-		
-		if (depth != 0)
-			throw new InvalidSexpException("Expression not terminated");
-	}
-	
-	public List<Sexp> flatten(Boolean booleanOnly, Boolean valueOnly) {
-		List<Sexp> flat = new ArrayList<Sexp>();
-		if (!firstAtomEquals(Grammar.Step.name))
-			if (firstAtomEquals(Grammar.ValueNoOp.name) ||
-				firstAtomEquals(Grammar.GetRange.name) ||
-				firstAtomEquals(Grammar.GetMidpointInCamera.name) ||
-				firstAtomEquals(Grammar.GetWidthInCamera.name) ||
-				firstAtomEquals(Grammar.GetDistanceTraveled.name) ||
-				firstAtomEquals(Grammar.GetRotations.name)) {
-				if (!booleanOnly)
-					flat.add(this);
-			} else {
-				if (!valueOnly)
-					flat.add(this);
-			}
-		for (Object child: children)
-			if (child.getClass() == Sexp.class)
-				flat.addAll(((Sexp)child).flatten(booleanOnly, valueOnly));
-		return flat;
-	}
-	
-	public Sexp selectRandomNode(MersenneTwisterFast generator, Boolean mustBeBoolean, Boolean mustBeValue) {
-		// First, flatten this S-expression for convenient random selection, possibly filtering by expression name
-		List<Sexp> flat = flatten(mustBeBoolean, mustBeValue);
-		if (flat.size() == 0)
-			return null;
-		return flat.get(generator.nextInt(flat.size()));
+
+		// Nothing but whitespace means there was never an expression to terminate
+		if (current == null && !finished)
+			throw new InvalidSexpException("Input is empty");
+		if (!finished)
+			throw new InvalidSexpException("Expression not terminated", line, column);
 	}
 	
 	public Boolean firstAtomEquals(String label) {
@@ -168,39 +175,137 @@ public class Sexp {
 		return children.subList(1, children.size());
 	}
 	
+	/**
+	 * @return All of the atoms and lists in this expression, name included.
+	 */
+	List<Object> getChildren() {
+		return children;
+	}
+	
+	/**
+	 * @return This S-expression with one element per line, each list
+	 * indented by its depth.
+	 */
 	public String toString() {
-		return prettyString(0);
+		return toString(true);
 	}
-
-	private String prettyString(int depth) {
-		String indent = "";
-		for (int i = 0; i < depth; i++)
-			indent += "  ";
-		String pretty = indent + "(\n";
-		for (Object child: children) {
-			if (child.getClass() == Sexp.class) {
-				pretty += ((Sexp)child).prettyString(depth + 1);
-			} else {
-				pretty += indent + child.toString() + "\n";
-			}
+	
+	/**
+	 * @return This S-expression on a single line with single spaces,
+	 * e.g. for hashing.
+	 */
+	public String toCompactString() {
+		return toString(false);
+	}
+	
+	private String toString(boolean pretty) {
+		StringBuilder out = new StringBuilder();
+		try {
+			write(out, pretty);
+		} catch (IOException e) {
+			// StringBuilders can't fail to append, but Java makes me do it
 		}
-		pretty += indent + ")\n";
-		return pretty;
+		return out.toString();
 	}
 	
-	public static void swap(Sexp left, Sexp right) {
-		// Make sure these are swappable (i.e. have parents)
-		if (left.parent == null || right.parent == null)
-			return;
+	/**
+	 * Writes this S-expression straight to a stream, as toString()
+	 * (pretty) or toCompactString() would produce it.
+	 */
+	public void write(Appendable out, boolean pretty) throws IOException {
+		new Printer(out, pretty).write(this);
+	}
+	
+	/**
+	 * Writes an S-expression a piece at a time, so that trees (of Sexps,
+	 * or of Grammar.Expressions without converting them) can be written
+	 * straight to a stream in a single pass.
+	 */
+	public static class Printer {
+		private final Appendable out;
+		
+		/**
+		 * One element per line, or everything on one line.
+		 */
+		private final boolean pretty;
+		
+		/**
+		 * How many lists are open.
+		 */
+		private int depth = 0;
+		
+		/**
+		 * Whether nothing has been written in the innermost open list yet,
+		 * i.e. no space is needed in compact mode.
+		 */
+		private boolean first = true;
+		
+		public Printer(Appendable out, boolean pretty) {
+			this.out = out;
+			this.pretty = pretty;
+		}
+		
+		/**
+		 * Starts a list; its first element is usually the name atom.
+		 */
+		public void open() throws IOException {
+			if (pretty) {
+				indent(depth);
+				out.append("(\n");
+			} else {
+				if (!first)
+					out.append(' ');
+				out.append('(');
+			}
+			depth++;
+			first = true;
+		}
 		
-		// Cache the current parents
-		Sexp leftParent = left.parent;
-		Sexp rightParent = right.parent;
+		/**
+		 * Writes an atom in the innermost open list. In pretty mode, atoms
+		 * line up with their list's parentheses.
+		 */
+		public void atom(String atom) throws IOException {
+			if (pretty) {
+				indent(depth - 1);
+				out.append(atom).append('\n');
+			} else {
+				if (!first)
+					out.append(' ');
+				out.append(atom);
+			}
+			first = false;
+		}
 		
-		// Update children, then exchange parents
-		leftParent.children.set(leftParent.children.indexOf(left), right);
-		rightParent.children.set(rightParent.children.indexOf(right), left);
-		left.parent = rightParent;
-		right.parent = leftParent;
+		/**
+		 * Ends the innermost open list.
+		 */
+		public void close() throws IOException {
+			depth--;
+			if (pretty) {
+				indent(depth);
+				out.append(")\n");
+			} else
+				out.append(')');
+			first = false;
+		}
+		
+		/**
+		 * Writes a whole Sexp, or an atom.
+		 */
+		public void write(Object sexp) throws IOException {
+			if (sexp.getClass() == Sexp.class) {
+				open();
+				for (Object child: ((Sexp) sexp).children)
+					write(child);
+				close();
+			} else
+				atom(sexp.toString());
+		}
+		
+		private void indent(int levels) throws IOException {
+			for (int i = 0; i < levels; i++)
+				out.append("  ");
+		}
 	}
 }
@@ -0,0 +1,77 @@
+/**
+ * @file TarpeianSelection.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.15
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.util.List;
+
+import ec.util.MersenneTwisterFast;
+
+/**
+ * Tarpeian bloat control (Poli 2003): before another Selection chooses
+ * parents, a fraction of the individuals with more nodes than average are
+ * treated as having no fitness, so growth that doesn't pay for itself
+ * gets bred out without penalizing size directly.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class TarpeianSelection implements Selection {
+	/**
+	 * How parents are chosen once the fitness of the unlucky is zeroed.
+	 */
+	private Selection selection;
+	
+	/**
+	 * The chance of zeroing each above-average individual.
+	 */
+	private double rate;
+	
+	/**
+	 * @param selection How to choose parents afterward.
+	 * @param rate The chance of zeroing each above-average individual, from 0 to 1.
+	 */
+	public TarpeianSelection(Selection selection, double rate) {
+		if (rate < 0.0 || rate > 1.0)
+			throw new IllegalArgumentException(String.format("Tarpeian rate must be between 0 and 1, got %f", rate));
+		this.selection = selection;
+		this.rate = rate;
+	}
+	
+	@Override
+	public List<Individual> select(List<Individual> individuals, int count, MersenneTwisterFast generator) {
+		// Find the average size
+		double totalNodes = 0.0;
+		for (Individual individual: individuals)
+			totalNodes += individual.countNodes();
+		double meanNodes = totalNodes/individuals.size();
+		
+		// Zero some of the larger ones, remembering what they had
+		double[] fitness = new double[individuals.size()];
+		for (int i = 0; i < individuals.size(); i++) {
+			Individual individual = individuals.get(i);
+			fitness[i] = individual.getFitness();
+			if (individual.countNodes() > meanNodes && generator.nextDouble() < rate)
+				individual.setFitness(0.0);
+		}
+		
+		// Choose, then put the fitness back for stats and caching
+		try {
+			return selection.select(individuals, count, generator);
+		} finally {
+			for (int i = 0; i < individuals.size(); i++)
+				individuals.get(i).setFitness(fitness[i]);
+		}
+	}
+	
+	/**
+	 * The threshold of the selection it wraps, ignoring the zeroing (which
+	 * doesn't depend on fitness).
+	 */
+	@Override
+	public double getThreshold(List<Individual> individuals) {
+		return selection.getThreshold(individuals);
+	}
+}
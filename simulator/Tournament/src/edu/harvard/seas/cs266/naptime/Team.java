@@ -1,6 +1,7 @@
 package edu.harvard.seas.cs266.naptime;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 
 import sim.engine.SimState;
@@ -25,18 +26,25 @@ public class Team implements Steppable {
 	 */
 	public Goal goal;
 	
+	/**
+	 * The last step on which any of our robots moved or turned.
+	 */
+	public long lastMoved = 0;
+	
 	public Team(Continuous2D field, Boolean opposing, List<Grammar.Step> strategy) {
 		this.opposing = opposing;
 		
 		if (strategy.size() == 0) {
-			// Load the default strategy if none was specified
+			// Load the default strategy if none was specified, without
+			// touching the caller's list (which may be shared between threads)
+			strategy = new ArrayList<Grammar.Step>(1);
 			try {
 				Sexp sexp = new Sexp(new File("/Users/nward/Documents/Harvard/2012.01-05/CS266/project/steps/baseline.sexp"));
-				strategy.add((Grammar.Step)Grammar.ExpressionFactory.build(sexp));
+				strategy.add(Grammar.ExpressionFactory.buildStep(sexp));
 			} catch (Exception e) {
 				System.err.println(e.getMessage());
 				try {
-					strategy.add((Grammar.Step)Grammar.ExpressionFactory.build(new Sexp("(step)")));
+					strategy.add(Grammar.ExpressionFactory.buildStep(new Sexp("(step)")));
 				} catch (InvalidSexpException ise) {
 					// This will never happen, but Java makes me do it
 					System.err.println(ise.getMessage());
@@ -44,19 +52,37 @@ public class Team implements Steppable {
 			}
 		}
 		
-		// Create a goal at our end of the field
+		// Create a goal and robots, then position them in the field
 		goal = new Goal(this);
+		for (int r = 0; r < members.length; r++)
+			members[r] = new Robot(strategy.get(r % strategy.size()), this, getStartAngle());
+		place(field);
+	}
+	
+	/**
+	 * Puts the goal and robots back where they started in a (cleared)
+	 * field, reusing them rather than building the team again.
+	 */
+	public void reset(Continuous2D field) {
+		lastMoved = 0;
+		goal.reset();
+		for (Robot member: members)
+			member.reset(getStartAngle());
+		place(field);
+	}
+	
+	private double getStartAngle() {
+		return opposing ? Math.PI : 0.0;
+	}
+	
+	/**
+	 * Adds the goal at our end of the field, then our robots.
+	 */
+	private void place(Continuous2D field) {
 		if (opposing)
-			field.setObjectLocation(goal, new Double2D(0.0, field.getHeight()*0.5));
+			goal.place(field, new Double2D(0.0, field.getHeight()*0.5));
 		else
-			field.setObjectLocation(goal, new Double2D(field.getWidth(), field.getHeight()*0.5));
-		
-		// Position our robots in the field after creating them
-		for (int r = 0; r < members.length; r++)
-			if (opposing)
-				members[r] = new Robot(strategy.get(r % strategy.size()), this, Math.PI);
-			else
-				members[r] = new Robot(strategy.get(r % strategy.size()), this, 0.0);				
+			goal.place(field, new Double2D(field.getWidth(), field.getHeight()*0.5));
 		if (opposing) {
 			field.setObjectLocation(members[0], new Double2D(field.getWidth() - Robot.robotSize, field.getHeight()*0.2));
 			field.setObjectLocation(members[1], new Double2D(field.getWidth() - Robot.robotSize, field.getHeight()*0.5));
@@ -75,6 +101,8 @@ public class Team implements Steppable {
 		double minDistance = Double.MAX_VALUE, maxDistance = 0.0;
 		for (Robot member : members) {
 			member.step(state);
+			if (member.moved)
+				lastMoved = state.schedule.getSteps();
 			double distance = member.getTotalDistanceTraveled();
 			if (distance < minDistance)
 				minDistance = distance;
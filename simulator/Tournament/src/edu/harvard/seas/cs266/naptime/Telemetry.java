@@ -0,0 +1,450 @@
+/**
+ * @file Telemetry.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.14
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Per-generation metrics for spotting throughput regressions without a
+ * profiler: simulations and steps run (and their rates), how long
+ * evaluation and breeding took, garbage collection, why simulations
+ * ended and how long they ran, and how big the strategies have grown.
+ * Simulations are recorded from every evaluation thread, so those
+ * counters are atomic; everything else is only touched by the thread
+ * running Population.
+ * 
+ * Each generation is appended to a file as a CSV row (if the file name
+ * ends in .csv) or a JSON object per line, and the last generation can
+ * also be read over JMX.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class Telemetry implements TelemetryMBean {
+	/**
+	 * The simulation length histogram has this many equal buckets up to
+	 * the step budget, plus one for simulations that used it all.
+	 */
+	private static final int buckets = 20;
+	
+	private static final long bucketSteps = Individual.stepBudget/buckets;
+	
+	/**
+	 * Counters for the current generation, from any thread.
+	 */
+	private final AtomicLong simulations = new AtomicLong(), steps = new AtomicLong();
+	
+	private final AtomicLongArray reasons = new AtomicLongArray(EarlyExit.Reason.values().length);
+	
+	private final AtomicLongArray lengths = new AtomicLongArray(buckets + 1);
+	
+	/**
+	 * Counters and timers for the current generation, from Population
+	 * (and Individual, while Population breeds).
+	 */
+	private int individuals, mutations, crossovers, maxNodes, maxDepth;
+	
+	private double meanNodes, meanDepth;
+	
+	private long generationStart, breedingStart, evaluationNanos, breedingNanos, gcCountStart, gcTimeStart;
+	
+	/**
+	 * The last complete generation, for JMX.
+	 */
+	private volatile Record last = new Record();
+	
+	/**
+	 * Totals over the whole run.
+	 */
+	private final AtomicLong totalSimulations = new AtomicLong(), totalSteps = new AtomicLong();
+	
+	/**
+	 * Where each generation is written, or null.
+	 */
+	private PrintWriter writer = null;
+	
+	/**
+	 * Whether the file is CSV rather than JSON lines.
+	 */
+	private boolean csv;
+	
+	/**
+	 * The name this is registered under with JMX, or null.
+	 */
+	private ObjectName name = null;
+	
+	/**
+	 * One generation's metrics, as written out.
+	 */
+	private static class Record {
+		int generation, individuals, mutations, crossovers, maxNodes, maxDepth;
+		
+		long simulations, steps, gcCount, gcMilliseconds;
+		
+		double evaluationSeconds, breedingSeconds, meanFitness, maxFitness, meanNodes, meanDepth;
+		
+		long[] reasons = new long[EarlyExit.Reason.values().length], lengths = new long[buckets + 1];
+		
+		double getStepsPerSecond() {
+			return evaluationSeconds > 0.0 ? steps/evaluationSeconds : 0.0;
+		}
+		
+		double getSimulationsPerSecond() {
+			return evaluationSeconds > 0.0 ? simulations/evaluationSeconds : 0.0;
+		}
+		
+		double getMillisecondsPerIndividual() {
+			return individuals > 0 ? evaluationSeconds*1000/individuals : 0.0;
+		}
+		
+		/**
+		 * @param fraction The fraction of simulations at or below the result.
+		 * @return The upper end of the histogram bucket containing that
+		 * quantile of simulation lengths.
+		 */
+		long getStepsQuantile(double fraction) {
+			long seen = 0;
+			for (int b = 0; b < lengths.length; b++) {
+				seen += lengths[b];
+				if (seen > 0 && seen >= fraction*simulations)
+					return Math.min((b + 1)*bucketSteps, Individual.stepBudget);
+			}
+			return 0;
+		}
+	}
+	
+	/**
+	 * Starts writing each generation to a file, appending if it exists.
+	 * 
+	 * @param path A .csv file, or any other name for JSON lines.
+	 */
+	public void writeTo(File path) throws IOException {
+		if (writer != null)
+			writer.close();
+		csv = path.getName().endsWith(".csv");
+		boolean header = csv && path.length() == 0;
+		writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(path, true), "UTF-8"));
+		if (header) {
+			writer.print("generation,individuals,simulations,steps,steps_per_second,simulations_per_second,ms_per_individual," +
+						 "evaluation_seconds,breeding_seconds,mutations,crossovers,gc_count,gc_ms,mean_fitness,max_fitness," +
+						 "steps_p50,steps_p90,mean_nodes,max_nodes,mean_depth,max_depth");
+			for (EarlyExit.Reason reason: EarlyExit.Reason.values())
+				writer.print("," + reason.name().toLowerCase());
+			writer.println();
+			writer.flush();
+		}
+	}
+	
+	/**
+	 * Makes the last generation readable over JMX, as
+	 * edu.harvard.seas.cs266.naptime:type=Telemetry.
+	 */
+	public void registerMBean() throws JMException {
+		name = new ObjectName("edu.harvard.seas.cs266.naptime:type=Telemetry");
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+	}
+	
+	/**
+	 * Records a finished simulation. Safe to call from any thread.
+	 * 
+	 * @param simulationSteps How many steps it ran.
+	 * @param reason Why it ended.
+	 */
+	public void recordSimulation(long simulationSteps, EarlyExit.Reason reason) {
+		simulations.incrementAndGet();
+		steps.addAndGet(simulationSteps);
+		reasons.incrementAndGet(reason.ordinal());
+		lengths.incrementAndGet((int) Math.min(simulationSteps/bucketSteps, buckets));
+	}
+	
+	/**
+	 * Starts timing a generation, and evaluation in particular.
+	 */
+	public void startGeneration() {
+		simulations.set(0);
+		steps.set(0);
+		for (int r = 0; r < reasons.length(); r++)
+			reasons.set(r, 0);
+		for (int b = 0; b < lengths.length(); b++)
+			lengths.set(b, 0);
+		individuals = mutations = crossovers = maxNodes = maxDepth = 0;
+		meanNodes = meanDepth = 0.0;
+		evaluationNanos = breedingNanos = 0;
+		gcCountStart = sumCollections(true);
+		gcTimeStart = sumCollections(false);
+		generationStart = System.nanoTime();
+	}
+	
+	/**
+	 * Ends the evaluation phase of the generation.
+	 * 
+	 * @param count How many individuals were evaluated.
+	 */
+	public void endEvaluation(int count) {
+		evaluationNanos = System.nanoTime() - generationStart;
+		individuals = count;
+	}
+	
+	/**
+	 * Starts timing the genetic operators.
+	 */
+	public void startBreeding() {
+		breedingStart = System.nanoTime();
+	}
+	
+	/**
+	 * Counts a crossover whose offspring survived the size limits, from
+	 * Individual while breeding.
+	 */
+	public void countCrossover() {
+		crossovers++;
+	}
+	
+	/**
+	 * Counts a strategy that mutation actually changed and the size limits
+	 * kept, from Individual while breeding.
+	 */
+	public void countMutation() {
+		mutations++;
+	}
+	
+	public void endBreeding() {
+		breedingNanos = System.nanoTime() - breedingStart;
+	}
+	
+	/**
+	 * Records the size of the evaluated strategies, in total nodes and
+	 * deepest strategy per individual.
+	 */
+	public void recordSizes(double meanNodes, int maxNodes, double meanDepth, int maxDepth) {
+		this.meanNodes = meanNodes;
+		this.maxNodes = maxNodes;
+		this.meanDepth = meanDepth;
+		this.maxDepth = maxDepth;
+	}
+	
+	/**
+	 * Finishes the generation, writing it out and publishing it over JMX.
+	 */
+	public void endGeneration(int generation, double meanFitness, double maxFitness) {
+		Record record = new Record();
+		record.generation = generation;
+		record.individuals = individuals;
+		record.mutations = mutations;
+		record.crossovers = crossovers;
+		record.simulations = simulations.get();
+		record.steps = steps.get();
+		record.gcCount = sumCollections(true) - gcCountStart;
+		record.gcMilliseconds = sumCollections(false) - gcTimeStart;
+		record.evaluationSeconds = evaluationNanos/1e9;
+		record.breedingSeconds = breedingNanos/1e9;
+		record.meanFitness = meanFitness;
+		record.maxFitness = maxFitness;
+		record.meanNodes = meanNodes;
+		record.maxNodes = maxNodes;
+		record.meanDepth = meanDepth;
+		record.maxDepth = maxDepth;
+		for (int r = 0; r < record.reasons.length; r++)
+			record.reasons[r] = reasons.get(r);
+		for (int b = 0; b < record.lengths.length; b++)
+			record.lengths[b] = lengths.get(b);
+		totalSimulations.addAndGet(record.simulations);
+		totalSteps.addAndGet(record.steps);
+		last = record;
+		
+		if (writer != null) {
+			writer.println(csv ? toCsv(record) : toJson(record));
+			writer.flush();
+		}
+	}
+	
+	/**
+	 * Closes the file and unregisters from JMX.
+	 */
+	public void close() {
+		if (writer != null)
+			writer.close();
+		writer = null;
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (JMException e) {
+				// Already gone
+			}
+			name = null;
+		}
+	}
+	
+	private static String toCsv(Record record) {
+		StringBuilder line = new StringBuilder();
+		line.append(String.format(Locale.US, "%d,%d,%d,%d,%f,%f,%f,%f,%f,%d,%d,%d,%d,%f,%f,%d,%d,%f,%d,%f,%d",
+								  record.generation, record.individuals, record.simulations, record.steps,
+								  record.getStepsPerSecond(), record.getSimulationsPerSecond(), record.getMillisecondsPerIndividual(),
+								  record.evaluationSeconds, record.breedingSeconds, record.mutations, record.crossovers,
+								  record.gcCount, record.gcMilliseconds, record.meanFitness, record.maxFitness,
+								  record.getStepsQuantile(0.5), record.getStepsQuantile(0.9),
+								  record.meanNodes, record.maxNodes, record.meanDepth, record.maxDepth));
+		for (long count: record.reasons)
+			line.append(',').append(count);
+		return line.toString();
+	}
+	
+	private static String toJson(Record record) {
+		StringBuilder line = new StringBuilder();
+		line.append(String.format(Locale.US, "{\"generation\": %d, \"individuals\": %d, \"simulations\": %d, \"steps\": %d, " +
+								  "\"steps_per_second\": %f, \"simulations_per_second\": %f, \"ms_per_individual\": %f, " +
+								  "\"evaluation_seconds\": %f, \"breeding_seconds\": %f, \"mutations\": %d, \"crossovers\": %d, " +
+								  "\"gc_count\": %d, \"gc_ms\": %d, \"mean_fitness\": %f, \"max_fitness\": %f, " +
+								  "\"steps_p50\": %d, \"steps_p90\": %d, \"mean_nodes\": %f, \"max_nodes\": %d, \"mean_depth\": %f, \"max_depth\": %d",
+								  record.generation, record.individuals, record.simulations, record.steps,
+								  record.getStepsPerSecond(), record.getSimulationsPerSecond(), record.getMillisecondsPerIndividual(),
+								  record.evaluationSeconds, record.breedingSeconds, record.mutations, record.crossovers,
+								  record.gcCount, record.gcMilliseconds, record.meanFitness, record.maxFitness,
+								  record.getStepsQuantile(0.5), record.getStepsQuantile(0.9),
+								  record.meanNodes, record.maxNodes, record.meanDepth, record.maxDepth));
+		line.append(", \"reasons\": {");
+		for (EarlyExit.Reason reason: EarlyExit.Reason.values()) {
+			if (reason.ordinal() > 0)
+				line.append(", ");
+			line.append(String.format("\"%s\": %d", reason.name().toLowerCase(), record.reasons[reason.ordinal()]));
+		}
+		line.append(String.format("}, \"steps_histogram\": {\"bucket\": %d, \"counts\": [", bucketSteps));
+		for (int b = 0; b < record.lengths.length; b++) {
+			if (b > 0)
+				line.append(", ");
+			line.append(record.lengths[b]);
+		}
+		line.append("]}}");
+		return line.toString();
+	}
+	
+	/**
+	 * @param count True for the number of collections, false for their time in milliseconds.
+	 * @return The total over all garbage collectors since the JVM started.
+	 */
+	private static long sumCollections(boolean count) {
+		long total = 0;
+		for (GarbageCollectorMXBean collector: ManagementFactory.getGarbageCollectorMXBeans()) {
+			long value = count ? collector.getCollectionCount() : collector.getCollectionTime();
+			if (value > 0)
+				total += value;
+		}
+		return total;
+	}
+	
+	@Override
+	public int getGeneration() {
+		return last.generation;
+	}
+	
+	@Override
+	public long getSimulations() {
+		return last.simulations;
+	}
+	
+	@Override
+	public long getSteps() {
+		return last.steps;
+	}
+	
+	@Override
+	public double getStepsPerSecond() {
+		return last.getStepsPerSecond();
+	}
+	
+	@Override
+	public double getSimulationsPerSecond() {
+		return last.getSimulationsPerSecond();
+	}
+	
+	@Override
+	public double getMillisecondsPerIndividual() {
+		return last.getMillisecondsPerIndividual();
+	}
+	
+	@Override
+	public double getEvaluationSeconds() {
+		return last.evaluationSeconds;
+	}
+	
+	@Override
+	public double getBreedingSeconds() {
+		return last.breedingSeconds;
+	}
+	
+	@Override
+	public long getGcCount() {
+		return last.gcCount;
+	}
+	
+	@Override
+	public long getGcMilliseconds() {
+		return last.gcMilliseconds;
+	}
+	
+	@Override
+	public double getMeanFitness() {
+		return last.meanFitness;
+	}
+	
+	@Override
+	public double getMaxFitness() {
+		return last.maxFitness;
+	}
+	
+	@Override
+	public double getMeanNodes() {
+		return last.meanNodes;
+	}
+	
+	@Override
+	public int getMaxNodes() {
+		return last.maxNodes;
+	}
+	
+	@Override
+	public double getMeanDepth() {
+		return last.meanDepth;
+	}
+	
+	@Override
+	public int getMaxDepth() {
+		return last.maxDepth;
+	}
+	
+	@Override
+	public String getReasons() {
+		StringBuilder line = new StringBuilder();
+		for (EarlyExit.Reason reason: EarlyExit.Reason.values()) {
+			if (line.length() > 0)
+				line.append(' ');
+			line.append(reason.name().toLowerCase()).append('=').append(last.reasons[reason.ordinal()]);
+		}
+		return line.toString();
+	}
+	
+	@Override
+	public long getTotalSimulations() {
+		return totalSimulations.get();
+	}
+	
+	@Override
+	public long getTotalSteps() {
+		return totalSteps.get();
+	}
+}
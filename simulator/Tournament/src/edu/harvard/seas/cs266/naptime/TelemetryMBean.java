@@ -0,0 +1,56 @@
+/**
+ * @file TelemetryMBean.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.14
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+/**
+ * What Telemetry exposes over JMX: the last complete generation, plus
+ * totals for the whole run.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public interface TelemetryMBean {
+	public int getGeneration();
+	
+	public long getSimulations();
+	
+	public long getSteps();
+	
+	public double getStepsPerSecond();
+	
+	public double getSimulationsPerSecond();
+	
+	public double getMillisecondsPerIndividual();
+	
+	public double getEvaluationSeconds();
+	
+	public double getBreedingSeconds();
+	
+	public long getGcCount();
+	
+	public long getGcMilliseconds();
+	
+	public double getMeanFitness();
+	
+	public double getMaxFitness();
+	
+	public double getMeanNodes();
+	
+	public int getMaxNodes();
+	
+	public double getMeanDepth();
+	
+	public int getMaxDepth();
+	
+	/**
+	 * @return How many simulations ended for each EarlyExit.Reason, by name.
+	 */
+	public String getReasons();
+	
+	public long getTotalSimulations();
+	
+	public long getTotalSteps();
+}
@@ -7,8 +7,10 @@
 package edu.harvard.seas.cs266.naptime;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import ec.util.MersenneTwisterFast;
 import sim.engine.SimState;
 import sim.field.continuous.Continuous2D;
 import sim.util.Double2D;
@@ -35,10 +37,39 @@ public class Tournament extends SimState {
 	 */
 	public Continuous2D field = new Continuous2D(1.0, fieldLength, fieldWidth);
 	
+	/**
+	 * Index of the treats in the field, for sensor queries.
+	 */
+	public TreatGrid treats = new TreatGrid(fieldLength, fieldWidth, 20.0);
+	
+	/**
+	 * Every robot in the field, on both teams.
+	 */
+	public List<Robot> robots = new ArrayList<Robot>(6);
+	
+	/**
+	 * Our team and the opposing team, indexed like score.
+	 */
+	public Team[] teams = new Team[2];
+	
 	/**
 	 * Initial count of food particles in the field (may get parameterized).
 	 */
 	public int nTreats = 20;
+	
+	/**
+	 * Whether robots run their strategies as compiled Grammar.Programs
+	 * instead of interpreting the expression trees. Set once before any
+	 * simulations start.
+	 */
+	public static boolean compileStrategies = false;
+	
+	/**
+	 * Whether robots run the optimized form of their strategies (see
+	 * Grammar.Step.getOptimized()), which behaves the same but does less.
+	 * Set once before any simulations start.
+	 */
+	public static boolean optimizeStrategies = false;
 
 	/**
 	 * Our team's strategy.
@@ -62,6 +93,19 @@ public class Tournament extends SimState {
 	 */
 	private double penalty = 1.0;
 	
+	/**
+	 * The treats, kept between simulations along with the teams.
+	 */
+	private Treat[] allTreats = new Treat[0];
+	
+	/**
+	 * The seed random was last set to, and whether nothing has been drawn
+	 * from it since, in which case the treats can be placed from a Scenario.
+	 */
+	private long seed;
+	
+	private boolean seeded;
+	
 	/**
 	 * Creates the simulation.
 	 * 
@@ -71,6 +115,8 @@ public class Tournament extends SimState {
 		super(seed);
 		strategy = new ArrayList<Grammar.Step>();
 		baselineStrategy = new ArrayList<Grammar.Step>();
+		this.seed = seed;
+		seeded = true;
 	}
 	
 	/**
@@ -84,10 +130,24 @@ public class Tournament extends SimState {
 		super(seed);
 		this.strategy = strategy;
 		this.baselineStrategy = opposingStrategy;
+		this.seed = seed;
+		seeded = true;
+	}
+	
+	/**
+	 * Reseeds the RNG before the next start(), e.g. for common random numbers.
+	 * Use this rather than random.setSeed() so the treat layout for the
+	 * seed can be reused.
+	 */
+	public void reseed(long seed) {
+		random.setSeed(seed);
+		this.seed = seed;
+		seeded = true;
 	}
 	
 	/**
-	 * Implements simulation initialization
+	 * Implements simulation initialization. The teams, robots and treats
+	 * are built by the first start() and put back in place by later ones.
 	 */
 	public void start() {
 		// Start the simulation
@@ -95,29 +155,95 @@ public class Tournament extends SimState {
 		
 		// Clear the field of food and robots
 		field.clear();
+		treats.clear();
 		
 		// Reset the scores
 		score[0] = score[1] = 0;
 		
-		// Add our team of robots to the field and activate them
-		Team team = new Team(field, false, strategy);
-		schedule.scheduleRepeating(team);
+		if (teams[0] == null) {
+			// Add both teams of robots to the field
+			teams[0] = new Team(field, false, strategy);
+			robots.addAll(Arrays.asList(teams[0].members));
+			teams[1] = new Team(field, true, baselineStrategy);
+			robots.addAll(Arrays.asList(teams[1].members));
+		} else {
+			// Put them back, in the same order
+			teams[0].reset(field);
+			teams[1].reset(field);
+		}
+		
+		// Activate them
+		schedule.scheduleRepeating(teams[0]);
+		schedule.scheduleRepeating(teams[1]);
 		
-		// Add the opposing team of robots to the field and activate them
-		Team opposingTeam = new Team(field, true, baselineStrategy);
-		schedule.scheduleRepeating(opposingTeam);
+		// Reuse the treats too
+		if (allTreats.length != nTreats) {
+			allTreats = new Treat[nTreats];
+			for (int t = 0; t < nTreats; t++)
+				allTreats[t] = new Treat();
+		}
+		for (Treat treat: allTreats)
+			treat.carried = false;
 		
-		// Add some randomly distributed food to the field
-		for (int t = 0; t < nTreats; t++) {
-			// Select a random but empty location
-			Double2D treatLocation;
-			do {
-				treatLocation = new Double2D(field.getWidth()*(random.nextDouble()*0.8 + 0.1),
-						 					 field.getHeight()*(random.nextDouble()*0.8 + 0.1));
-			} while (field.getObjectsWithinDistance(treatLocation, Treat.treatSize).size() > 0);
-			Treat treat = new Treat();
-			field.setObjectLocation(treat, treatLocation);
+		// Place them as last time this seed was used, if we know
+		Scenario scenario = seeded ? Scenario.get(seed, nTreats, random) : null;
+		if (scenario != null) {
+			for (int t = 0; t < nTreats; t++)
+				moveTreat(allTreats[t], scenario.treatLocations[t]);
+			random = scenario.copyRandom();
+		} else {
+			// Add some randomly distributed food to the field
+			MersenneTwisterFast initial = seeded ? (MersenneTwisterFast) random.clone() : null;
+			Double2D[] treatLocations = new Double2D[nTreats];
+			for (int t = 0; t < nTreats; t++) {
+				// Select a random but empty location
+				Double2D treatLocation;
+				do {
+					treatLocation = new Double2D(field.getWidth()*(random.nextDouble()*0.8 + 0.1),
+							 					 field.getHeight()*(random.nextDouble()*0.8 + 0.1));
+				} while (field.getObjectsWithinDistance(treatLocation, Treat.treatSize).size() > 0);
+				moveTreat(allTreats[t], treatLocation);
+				treatLocations[t] = treatLocation;
+			}
+			if (seeded)
+				Scenario.put(seed, new Scenario(initial, treatLocations, random));
 		}
+		seeded = false;
+	}
+	
+	/**
+	 * Places a treat in the field, keeping the treat index and the goals'
+	 * scoring areas in sync.
+	 * 
+	 * @param treat The treat, which may not be in the field yet.
+	 * @param location Its new location.
+	 */
+	public void moveTreat(Treat treat, Double2D location) {
+		field.setObjectLocation(treat, location);
+		treats.setLocation(treat, location);
+		
+		// The scoring areas don't overlap, so a treat is in at most one
+		Goal area = null;
+		for (Team team: teams)
+			if (team.goal.covers(location))
+				area = team.goal;
+		if (area != treat.area) {
+			if (treat.area != null)
+				treat.area.leave(treat);
+			if (area != null)
+				area.enter(treat);
+		}
+	}
+	
+	/**
+	 * Takes a treat out of play, keeping the treat index and the goals'
+	 * scoring areas in sync.
+	 */
+	public void removeTreat(Treat treat) {
+		field.remove(treat);
+		treats.remove(treat);
+		if (treat.area != null)
+			treat.area.leave(treat);
 	}
 	
 	/**
@@ -126,7 +252,15 @@ public class Tournament extends SimState {
 	 * opposing team. Applies the penalty factor (which defaults to 1).
 	 */
 	public double getFitness() {
-		double collectionRate = ((double)score[0])/schedule.getSteps();
+		return getFitness(schedule.getSteps());
+	}
+	
+	/**
+	 * Calculates fitness as if the simulation had run for some number of
+	 * steps with the score as it is now, e.g. when it was stopped early.
+	 */
+	public double getFitness(long steps) {
+		double collectionRate = ((double)score[0])/steps;
 		double opponentRatio;
 		if (score[1] == 0)
 			opponentRatio = nTreats;
@@ -134,6 +268,21 @@ public class Tournament extends SimState {
 			opponentRatio = ((double)score[0])/score[1];
 		return collectionRate*opponentRatio/penalty;
 	}
+	
+	/**
+	 * @return The highest fitness this simulation could still end with: we
+	 * score every treat left on the next step, and the opposing team
+	 * and penalty don't get any worse for us.
+	 */
+	public double getFitnessUpperBound() {
+		double bestScore = score[0] + treats.size();
+		double opponentRatio;
+		if (score[1] == 0)
+			opponentRatio = nTreats;
+		else
+			opponentRatio = bestScore/score[1];
+		return bestScore/(schedule.getSteps() + 1)*opponentRatio/penalty;
+	}
 
 	/**
 	 * Runs simulation by invoking SimState.doLoop.
@@ -0,0 +1,87 @@
+/**
+ * @file TournamentSelection.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.12
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ec.util.MersenneTwisterFast;
+
+/**
+ * Tournament selection: each parent is the fittest of a few individuals
+ * drawn uniformly at random. Only the order of fitness matters, and
+ * larger tournaments select more strongly. Optionally, ties go to the
+ * individual with fewer nodes (lexicographic parsimony pressure), which
+ * slows bloat without ever trading away fitness.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class TournamentSelection implements Selection {
+	/**
+	 * How many individuals compete for each parent.
+	 */
+	private int size;
+	
+	/**
+	 * Whether equally fit individuals are compared by size.
+	 */
+	private boolean lexicographic;
+	
+	/**
+	 * @param size How many individuals compete for each parent (at least 1).
+	 */
+	public TournamentSelection(int size) {
+		this(size, false);
+	}
+	
+	/**
+	 * @param size How many individuals compete for each parent (at least 1).
+	 * @param lexicographic Whether ties go to the individual with fewer nodes.
+	 */
+	public TournamentSelection(int size, boolean lexicographic) {
+		if (size < 1)
+			throw new IllegalArgumentException(String.format("Tournament size must be at least 1, got %d", size));
+		this.size = size;
+		this.lexicographic = lexicographic;
+	}
+	
+	@Override
+	public List<Individual> select(List<Individual> individuals, int count, MersenneTwisterFast generator) {
+		List<Individual> parents = new ArrayList<Individual>(count);
+		for (int p = 0; p < count; p++) {
+			Individual winner = individuals.get(generator.nextInt(individuals.size()));
+			for (int c = 1; c < size; c++) {
+				Individual challenger = individuals.get(generator.nextInt(individuals.size()));
+				if (challenger.getFitness() > winner.getFitness())
+					winner = challenger;
+				else if (lexicographic && challenger.getFitness() == winner.getFitness() &&
+						 challenger.countNodes() < winner.countNodes())
+					winner = challenger;
+			}
+			parents.add(winner);
+		}
+		return parents;
+	}
+	
+	/**
+	 * The i-th least fit of n (from 1) wins a tournament with probability
+	 * (i/n)^size - ((i - 1)/n)^size, ignoring ties, so the threshold is the
+	 * fitness of the first to expect at least one offspring from n
+	 * tournaments. With tournaments of one, everyone expects exactly one.
+	 */
+	@Override
+	public double getThreshold(List<Individual> individuals) {
+		if (size == 1)
+			return Double.NaN;
+		List<Individual> ranked = RankSelection.rank(individuals);
+		int n = ranked.size();
+		for (int i = 1; i < n; i++)
+			if (n*(Math.pow((double) i/n, size) - Math.pow((double) (i - 1)/n, size)) >= 1.0)
+				return ranked.get(i - 1).getFitness();
+		return ranked.get(n - 1).getFitness();
+	}
+}
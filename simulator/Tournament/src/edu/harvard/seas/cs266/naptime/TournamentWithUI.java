@@ -157,17 +157,17 @@ public class TournamentWithUI extends GUIState {
 			File strategyPath = new File(args[0]);
 			List<Grammar.Step> strategy = new ArrayList<Grammar.Step>();
 			if (strategyPath.isFile())
-				strategy.add((Grammar.Step)Grammar.ExpressionFactory.build(new Sexp(strategyPath)));
+				strategy.add(Grammar.ExpressionFactory.buildStep(new Sexp(strategyPath)));
 			else
 				for (File strategyFile: strategyPath.listFiles())
-					strategy.add((Grammar.Step)Grammar.ExpressionFactory.build(new Sexp(strategyFile)));
+					strategy.add(Grammar.ExpressionFactory.buildStep(new Sexp(strategyFile)));
 			strategyPath = new File(args[1]);
 			List<Grammar.Step> opposingStrategy = new ArrayList<Grammar.Step>();
 			if (strategyPath.isFile())
-				opposingStrategy.add((Grammar.Step)Grammar.ExpressionFactory.build(new Sexp(strategyPath)));
+				opposingStrategy.add(Grammar.ExpressionFactory.buildStep(new Sexp(strategyPath)));
 			else
 				for (File strategyFile: strategyPath.listFiles())
-					opposingStrategy.add((Grammar.Step)Grammar.ExpressionFactory.build(new Sexp(strategyFile)));
+					opposingStrategy.add(Grammar.ExpressionFactory.buildStep(new Sexp(strategyFile)));
 
 			// Initialize the simulation state
 			Tournament tourney = new Tournament(Population.seed, strategy, opposingStrategy);
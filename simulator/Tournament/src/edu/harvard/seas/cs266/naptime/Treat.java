@@ -19,6 +19,17 @@ public class Treat {
 	
 	/**
 	 * Whether or not this treat is currently in the possession of a robot.
+	 * A primitive so each Tournament's treats never share boxed state.
 	 */
-	public Boolean carried = false;
+	public boolean carried = false;
+	
+	/**
+	 * The TreatGrid cell this treat is currently filed under, or -1.
+	 */
+	int cell = -1;
+	
+	/**
+	 * The Goal whose scoring area this treat is in, or null.
+	 */
+	Goal area = null;
 }
@@ -0,0 +1,161 @@
+/**
+ * @file TreatGrid.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.06
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import sim.util.Double2D;
+
+/**
+ * A coarse uniform grid of the treats in a Tournament, so the camera
+ * only has to look at the cells in front of a robot rather than at
+ * every object in the field. Kept in sync by Tournament.moveTreat()
+ * and Tournament.removeTreat().
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class TreatGrid {
+	/**
+	 * The side length of each square cell.
+	 */
+	private final double cellSize;
+	
+	/**
+	 * Grid dimensions, in cells.
+	 */
+	private final int columns, rows;
+	
+	/**
+	 * The treats in each cell, indexed by row*columns + column.
+	 */
+	private final List<List<Treat>> cells;
+	
+	/**
+	 * Every treat in the grid, in insertion order.
+	 */
+	private final List<Treat> treats = new ArrayList<Treat>();
+	
+	/**
+	 * Covers a field of the specified dimensions.
+	 */
+	public TreatGrid(double width, double height, double cellSize) {
+		this.cellSize = cellSize;
+		columns = (int) Math.ceil(width/cellSize);
+		rows = (int) Math.ceil(height/cellSize);
+		cells = new ArrayList<List<Treat>>(columns*rows);
+		for (int c = 0; c < columns*rows; c++)
+			cells.add(new ArrayList<Treat>());
+	}
+	
+	/**
+	 * Removes all treats, so they can be added again.
+	 */
+	public void clear() {
+		for (int c = 0; c < cells.size(); c++)
+			cells.get(c).clear();
+		for (int t = 0; t < treats.size(); t++)
+			treats.get(t).cell = -1;
+		treats.clear();
+	}
+	
+	/**
+	 * Adds a treat, or updates the cell of one already in the grid.
+	 */
+	public void setLocation(Treat treat, Double2D location) {
+		int cell = cellOf(location.x, location.y);
+		if (treat.cell == cell)
+			return;
+		if (treat.cell == -1)
+			treats.add(treat);
+		else
+			cells.get(treat.cell).remove(treat);
+		cells.get(cell).add(treat);
+		treat.cell = cell;
+	}
+	
+	/**
+	 * Removes a treat from the grid, if present.
+	 */
+	public void remove(Treat treat) {
+		if (treat.cell == -1)
+			return;
+		cells.get(treat.cell).remove(treat);
+		treats.remove(treat);
+		treat.cell = -1;
+	}
+	
+	/**
+	 * @return The number of treats in the grid.
+	 */
+	public int size() {
+		return treats.size();
+	}
+	
+	/**
+	 * Collects every treat that could be within a wedge opening forward
+	 * from a viewpoint, i.e. satisfying |y| < slope*x + margin in the
+	 * viewpoint's frame. May include treats outside the wedge, so
+	 * callers still need to do the exact test.
+	 * 
+	 * @param x The viewpoint's position.
+	 * @param y The viewpoint's position.
+	 * @param orientation The direction the wedge opens in.
+	 * @param slope The tangent of the wedge's half-angle.
+	 * @param margin Extra width on both sides, e.g. the treat radius.
+	 * @param found Cleared, then filled with the candidate treats.
+	 */
+	public void findInWedge(double x, double y, double orientation, double slope, double margin, List<Treat> found) {
+		// Copy by index throughout, since addAll() would allocate an array
+		found.clear();
+		
+		// With few treats, checking every cell costs more than checking every treat
+		if (treats.size() < cells.size()) {
+			for (int t = 0; t < treats.size(); t++)
+				found.add(treats.get(t));
+			return;
+		}
+		
+		// Include a cell if its bounding circle could reach inside the wedge
+		double cos = Math.cos(orientation), sin = Math.sin(orientation);
+		double radius = cellSize*Math.sqrt(0.5);
+		double edgeRadius = radius*Math.sqrt(1 + slope*slope);
+		for (int row = 0; row < rows; row++) {
+			for (int column = 0; column < columns; column++) {
+				List<Treat> cell = cells.get(row*columns + column);
+				if (cell.isEmpty())
+					continue;
+				double dx = (column + 0.5)*cellSize - x;
+				double dy = (row + 0.5)*cellSize - y;
+				double forward = dx*cos + dy*sin;
+				double side = dy*cos - dx*sin;
+				if (forward + radius >= 0 &&
+					side - slope*forward - edgeRadius < margin &&
+					side + slope*forward + edgeRadius > -margin)
+					for (int t = 0; t < cell.size(); t++)
+						found.add(cell.get(t));
+			}
+		}
+	}
+	
+	/**
+	 * Finds the cell containing a location, clamping to the grid.
+	 */
+	private int cellOf(double x, double y) {
+		int column = (int) (x/cellSize);
+		int row = (int) (y/cellSize);
+		if (column < 0)
+			column = 0;
+		else if (column >= columns)
+			column = columns - 1;
+		if (row < 0)
+			row = 0;
+		else if (row >= rows)
+			row = rows - 1;
+		return row*columns + column;
+	}
+}
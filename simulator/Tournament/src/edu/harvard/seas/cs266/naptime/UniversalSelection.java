@@ -0,0 +1,64 @@
+/**
+ * @file UniversalSelection.java
+ * @author nward@fas.harvard.edu
+ * @date 2012.05.12
+ */
+
+package edu.harvard.seas.cs266.naptime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ec.util.MersenneTwisterFast;
+
+/**
+ * Stochastic universal sampling: fitness-proportionate like roulette,
+ * but with one spin of a wheel with count evenly spaced pointers, so
+ * each individual gets within one of its expected number of offspring.
+ * Runs in a single pass over the population.
+ * 
+ * @author nward@fas.harvard.edu
+ */
+public class UniversalSelection implements Selection {
+	@Override
+	public List<Individual> select(List<Individual> individuals, int count, MersenneTwisterFast generator) {
+		double totalFitness = 0.0;
+		for (Individual individual: individuals)
+			totalFitness += individual.getFitness();
+		List<Individual> parents = new ArrayList<Individual>(count);
+		if (totalFitness <= 0.0 || count == 0)
+			return parents;
+		
+		// Walk the pointers and the wheel together
+		double spacing = totalFitness/count;
+		double offset = generator.nextDouble()*spacing;
+		double summedFitness = 0.0;
+		Individual last = null;
+		for (Individual individual: individuals) {
+			if (individual.getFitness() <= 0.0)
+				continue;
+			summedFitness += individual.getFitness();
+			while (parents.size() < count && offset + parents.size()*spacing < summedFitness)
+				parents.add(individual);
+			last = individual;
+		}
+		
+		// Rounding can leave the last pointer just past the end
+		while (parents.size() < count)
+			parents.add(last);
+		
+		// The parents come out in population order, so shuffle them before they're paired
+		for (int p = parents.size() - 1; p > 0; p--)
+			Collections.swap(parents, p, generator.nextInt(p + 1));
+		return parents;
+	}
+	
+	/**
+	 * Fitness-proportional, so the threshold is the mean fitness.
+	 */
+	@Override
+	public double getThreshold(List<Individual> individuals) {
+		return RouletteSelection.meanFitness(individuals);
+	}
+}